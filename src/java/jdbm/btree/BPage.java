@@ -200,6 +200,32 @@ public final class BPage
     }
 
 
+    /**
+     * ARC: bulk load constructor.  Creates a BPage holding the first
+     * <code>count</code> keys and values (leaf) or children (non-leaf),
+     * right-aligned as in any other BPage.  The page is not persisted.
+     */
+    BPage( BTree btree, boolean isLeaf, Object[] keys, Object[] values,
+           long[] children, int count )
+    {
+        _btree = btree;
+
+        _isLeaf = isLeaf;
+
+        _first = _btree._pageSize-count;
+
+        _keys = new Object[ _btree._pageSize ];
+        System.arraycopy( keys, 0, _keys, _first, count );
+        if ( isLeaf ) {
+            _values = new Object[ _btree._pageSize ];
+            System.arraycopy( values, 0, _values, _first, count );
+        } else {
+            _children = new long[ _btree._pageSize ];
+            System.arraycopy( children, 0, _children, _first, count );
+        }
+    }
+
+
     /**
      * Overflow page constructor.  Creates an empty BPage.
      */
@@ -961,6 +987,8 @@ public final class BPage
         BPage                 bpage;
 
         bpage = new BPage();
+        // ARC: set before the page is shared with concurrent readers.
+        bpage._btree = _btree;
         bais = new ByteArrayInputStream( serialized );
         ois = new ObjectInputStream( bais );
         
@@ -1192,6 +1220,39 @@ public final class BPage
             return true;
 
         }
+
+
+        /**
+         * ARC: Moves the browser forward, just before the first entry with a
+         * key equal or greater than the given key.  Keys within the current
+         * page are binary searched; farther keys are found by a descent from
+         * the root, so the leaf pages in between are not loaded.  The browser
+         * never moves backwards.
+         *
+         * @param key Key used to position the browser.
+         */
+        void seek( Object key )
+            throws IOException
+        {
+            int last = _page._btree._pageSize-1;
+
+            if ( _page.compare( _page._keys[ last ], key ) >= 0 ) {
+                // key is within the current page.
+                if ( _index < _page._btree._pageSize ) {
+                    int index = _page.findChildren( key );
+                    if ( index > _index ) {
+                        _index = index;
+                    }
+                }
+                return;
+            }
+
+            TupleBrowser browser = _page._btree.browse( key );
+            if ( browser instanceof Browser ) {
+                _page = ( (Browser) browser )._page;
+                _index = ( (Browser) browser )._index;
+            }
+        }
     }
 
 }
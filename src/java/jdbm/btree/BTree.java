@@ -147,6 +147,13 @@ public class BTree
     }
 
 
+    /**
+     * ARC: true if the BTree is not modified any more.  Reads then run
+     * without locking the BTree.
+     */
+    private transient volatile boolean _readOnly;
+
+
     /**
      * Recid of the root BPage
      */
@@ -303,6 +310,7 @@ public class BTree
                                        boolean replace )
         throws IOException
     {
+        checkIfWritable();
         if ( key == null ) {
             throw new IllegalArgumentException( "Argument 'key' is null" );
         }
@@ -359,6 +367,7 @@ public class BTree
     public synchronized Object remove( Object key )
         throws IOException
     {
+        checkIfWritable();
         if ( key == null ) {
             throw new IllegalArgumentException( "Argument 'key' is null" );
         }
@@ -397,7 +406,19 @@ public class BTree
      * @param key Lookup key.
      * @return Value associated with the key, or null if not found.
      */
-    public synchronized Object find( Object key )
+    public Object find( Object key )
+        throws IOException
+    {
+        if ( _readOnly ) {
+            return findUnlocked( key );
+        }
+        synchronized ( this ) {
+            return findUnlocked( key );
+        }
+    }
+
+
+    private Object findUnlocked( Object key )
         throws IOException
     {
         if ( key == null ) {
@@ -433,7 +454,19 @@ public class BTree
      * @return Value associated with the key, or a greater entry, or null if no
      *         greater entry was found.
      */
-    public synchronized Tuple findGreaterOrEqual( Object key )
+    public Tuple findGreaterOrEqual( Object key )
+        throws IOException
+    {
+        if ( _readOnly ) {
+            return findGreaterOrEqualUnlocked( key );
+        }
+        synchronized ( this ) {
+            return findGreaterOrEqualUnlocked( key );
+        }
+    }
+
+
+    private Tuple findGreaterOrEqualUnlocked( Object key )
         throws IOException
     {
         Tuple         tuple;
@@ -464,7 +497,19 @@ public class BTree
      *
      * @return Browser positionned at the beginning of the BTree.
      */
-    public synchronized TupleBrowser browse()
+    public TupleBrowser browse()
+        throws IOException
+    {
+        if ( _readOnly ) {
+            return browseUnlocked();
+        }
+        synchronized ( this ) {
+            return browseUnlocked();
+        }
+    }
+
+
+    private TupleBrowser browseUnlocked()
         throws IOException
     {
         BPage rootPage = getRoot();
@@ -488,7 +533,19 @@ public class BTree
      *            (Null is considered to be an "infinite" key)
      * @return Browser positionned just before the given key.
      */
-    public synchronized TupleBrowser browse( Object key )
+    public TupleBrowser browse( Object key )
+        throws IOException
+    {
+        if ( _readOnly ) {
+            return browseUnlocked( key );
+        }
+        synchronized ( this ) {
+            return browseUnlocked( key );
+        }
+    }
+
+
+    private TupleBrowser browseUnlocked( Object key )
         throws IOException
     {
         BPage rootPage = getRoot();
@@ -500,15 +557,75 @@ public class BTree
     }
 
 
+    /**
+     * ARC: Moves a browser of this BTree forward, just before the given key
+     * or the next greater key.  Entries skipped over are not read, and the
+     * browser never moves backwards.
+     *
+     * @param browser Browser returned by browse().
+     * @param key Key used to position the browser.
+     * @return false if the browser cannot seek, e.g. on an empty BTree.
+     */
+    public boolean seek( TupleBrowser browser, Object key )
+        throws IOException
+    {
+        if ( browser instanceof BPage.Browser ) {
+            ( (BPage.Browser) browser ).seek( key );
+            return true;
+        }
+        return false;
+    }
+
+
     /**
      * Return the number of entries (size) of the BTree.
      */
-    public synchronized int size()
+    public int size()
+    {
+        if ( _readOnly ) {
+            return sizeUnlocked();
+        }
+        synchronized ( this ) {
+            return sizeUnlocked();
+        }
+    }
+
+
+    private int sizeUnlocked()
     {
         return _entries;
     }
 
 
+    /**
+     * ARC: Switches the BTree to read-only mode, in which browse, find and
+     * findGreaterOrEqual run concurrently without locking the BTree, and
+     * modifications are refused.  Concurrent reads also need a record
+     * manager that fetches pages concurrently, e.g. a CacheRecordManager in
+     * read-only mode.
+     *
+     * @param readOnly true to enter read-only mode.
+     */
+    public synchronized void setReadOnly( boolean readOnly )
+    {
+        _readOnly = readOnly;
+    }
+
+
+    public boolean isReadOnly()
+    {
+        return _readOnly;
+    }
+
+
+    private void checkIfWritable()
+    {
+        if ( _readOnly ) {
+            throw new IllegalStateException( "BTree is read-only" );
+        }
+    }
+
+
     /**
      * Return the persistent record identifier of the BTree.
      */
@@ -605,6 +722,189 @@ public class BTree
         }
     }
 
+    /**
+     * ARC: returns a loader that builds this BTree bottom-up from entries
+     * given in ascending key order.  Pages are written sequentially, fully
+     * packed, and each page is written once (leaves are updated once more to
+     * link the next leaf).  The BTree must be empty.
+     */
+    public synchronized BulkLoader bulkLoader()
+    {
+        checkIfWritable();
+        if ( _root != 0 ) {
+            throw new IllegalStateException( "BTree is not empty" );
+        }
+        return new BulkLoader();
+    }
+
+
+    /**
+     * ARC: builds the BTree from entries in ascending key order.  Keeps one
+     * partially filled page per level in memory.
+     */
+    public class BulkLoader
+    {
+        private java.util.ArrayList<LevelBuilder> _levels =
+            new java.util.ArrayList<LevelBuilder>();
+        private Object _lastKey = null;
+        private int _count = 0;
+        private boolean _finished = false;
+
+        BulkLoader()
+        {
+            _levels.add( new LevelBuilder( true ) );
+        }
+
+        /**
+         * Add an entry.  Keys must be strictly increasing.
+         */
+        public void add( Object key, Object value )
+            throws IOException
+        {
+            if ( key == null ) {
+                throw new IllegalArgumentException( "Argument 'key' is null" );
+            }
+            if ( value == null ) {
+                throw new IllegalArgumentException( "Argument 'value' is null" );
+            }
+            if ( _finished ) {
+                throw new IllegalStateException( "Bulk load is finished" );
+            }
+            if ( _count > 0 && _comparator.compare( _lastKey, key ) >= 0 ) {
+                throw new IllegalArgumentException( "Keys are not in ascending order: "
+                                                    + _lastKey + ", " + key );
+            }
+            _levels.get( 0 ).add( key, value, 0 );
+            _lastKey = key;
+            _count++;
+        }
+
+        /**
+         * Write the remaining pages and make them the content of the BTree.
+         */
+        public void finish()
+            throws IOException
+        {
+            if ( _finished ) {
+                return;
+            }
+            _finished = true;
+
+            synchronized ( BTree.this ) {
+                if ( _count == 0 ) {
+                    return;
+                }
+
+                // The rightmost leaf ends with the "infinite" (null) key and,
+                // as in any BTree, holds at least one other key.
+                LevelBuilder leaves = _levels.get( 0 );
+                if ( leaves._size == _pageSize ) {
+                    Object key = leaves._keys[ _pageSize-1 ];
+                    Object value = leaves._values[ _pageSize-1 ];
+                    leaves._size--;
+                    leaves.flush( false );
+                    leaves.add( key, value, 0 );
+                }
+                leaves.add( null, null, 0 );
+
+                for ( int level = 0; ; level++ ) {
+                    LevelBuilder builder = _levels.get( level );
+                    if ( level == _levels.size()-1 && builder._written == 0 ) {
+                        _root = builder.flush( true );
+                        _height = level + 1;
+                        break;
+                    }
+                    builder.flush( false );
+                }
+
+                _entries = _count;
+                _recman.update( _recid, BTree.this );
+            }
+        }
+
+        /**
+         * Page being filled at one level.
+         */
+        private class LevelBuilder
+        {
+            boolean _isLeaf;
+            Object[] _keys = new Object[ _pageSize ];
+            Object[] _values;
+            long[] _children;
+            int _size = 0;
+            int _written = 0;
+
+            // Last written leaf, linked to the next one.
+            BPage _lastLeaf = null;
+
+            LevelBuilder( boolean isLeaf )
+            {
+                _isLeaf = isLeaf;
+                if ( isLeaf ) {
+                    _values = new Object[ _pageSize ];
+                } else {
+                    _children = new long[ _pageSize ];
+                }
+            }
+
+            void add( Object key, Object value, long child )
+                throws IOException
+            {
+                if ( _size == _pageSize ) {
+                    flush( false );
+                }
+                _keys[ _size ] = key;
+                if ( _isLeaf ) {
+                    _values[ _size ] = value;
+                } else {
+                    _children[ _size ] = child;
+                }
+                _size++;
+            }
+
+            /**
+             * Write the page and add it to the parent level, unless it is
+             * the root.
+             * @return recid of the page.
+             */
+            long flush( boolean isRoot )
+                throws IOException
+            {
+                BPage page = new BPage( BTree.this, _isLeaf, _keys, _values,
+                                        _children, _size );
+                if ( _isLeaf && _lastLeaf != null ) {
+                    page._previous = _lastLeaf._recid;
+                }
+                page._recid = _recman.insert( page, _bpageSerializer );
+
+                if ( _isLeaf ) {
+                    if ( _lastLeaf != null ) {
+                        _lastLeaf._next = page._recid;
+                        _recman.update( _lastLeaf._recid, _lastLeaf, _bpageSerializer );
+                    }
+                    _lastLeaf = page;
+                }
+
+                if ( !isRoot ) {
+                    int level = _levels.indexOf( this );
+                    if ( level == _levels.size()-1 ) {
+                        _levels.add( new LevelBuilder( false ) );
+                    }
+                    _levels.get( level+1 ).add( page.getLargestKey(), null, page._recid );
+                }
+
+                java.util.Arrays.fill( _keys, null );
+                if ( _isLeaf ) {
+                    java.util.Arrays.fill( _values, null );
+                }
+                _size = 0;
+                _written++;
+                return page._recid;
+            }
+        }
+    }
+
+
     /**
      * ARC: reads upper levels in order to warm-up the cache.
      */
@@ -338,7 +338,16 @@ public final class BaseRecordManager
      *  @return the object contained in the record.
      *  @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized Object fetch( long recid, Serializer serializer )
+    public Object fetch( long recid, Serializer serializer )
+        throws IOException
+    {
+        // ARC: only reading the record holds the lock; concurrent fetches
+        // deserialize in parallel.
+        return serializer.deserialize( fetchBytes( recid ) );
+    }
+
+
+    private synchronized byte[] fetchBytes( long recid )
         throws IOException
     {
         byte[] data;
@@ -352,7 +361,7 @@ public final class BaseRecordManager
         if ( DEBUG ) {
             System.out.println( "BaseRecordManager.fetch() recid " + recid + " length " + data.length ) ;
         }
-        return serializer.deserialize( data );
+        return data;
     }
 
 
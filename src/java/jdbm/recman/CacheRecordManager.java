@@ -81,11 +81,64 @@ public class CacheRecordManager
      */
     protected CachePolicy _cache;
 
+    /**
+     * ARC: Cache of the read-only mode, or null in read-write mode.
+     */
+    protected volatile ConcurrentRecordCache _readCache;
+
     // ARC: IO stats
     public void emptyCache() {
       if (_cache != null) {
         _cache.removeAll();
       }
+
+      ConcurrentRecordCache readCache = _readCache;
+      if (readCache != null) {
+        readCache.removeAll();
+      }
+    }
+
+
+    /**
+     * ARC: Switches between read-only and read-write modes.  In read-only
+     * mode, records are fetched without locking this record manager, from
+     * a cache with striped locks, and writes are refused.  Records must not
+     * be modified by their readers.
+     *
+     * @param readOnly true to enter read-only mode.
+     * @param cacheSize maximum number of records cached in read-only mode.
+     * @throws IOException when dirty records cannot be written.
+     */
+    public synchronized void setReadOnly( boolean readOnly, int cacheSize )
+        throws IOException
+    {
+        checkIfClosed();
+
+        if ( readOnly ) {
+            updateCacheEntries();
+            _cache.removeAll();
+            _readCache = new ConcurrentRecordCache( cacheSize );
+        } else {
+            _readCache = null;
+        }
+    }
+
+
+    public boolean isReadOnly()
+    {
+        return _readCache != null;
+    }
+
+
+    /**
+     * ARC: Refuses writes in read-only mode.
+     */
+    private void checkIfWritable()
+        throws IllegalStateException
+    {
+        if ( _readCache != null ) {
+            throw new IllegalStateException( "RecordManager is read-only" );
+        }
     }
 
     /**
@@ -160,6 +213,7 @@ public class CacheRecordManager
         throws IOException
     {
         checkIfClosed();
+        checkIfWritable();
 
         long recid = _recman.insert( obj, serializer );
         try {
@@ -181,6 +235,7 @@ public class CacheRecordManager
         throws IOException
     {
         checkIfClosed();
+        checkIfWritable();
 
         _recman.delete( recid );
         _cache.remove( new Long( recid ) );
@@ -217,6 +272,7 @@ public class CacheRecordManager
         Long        id;
         
         checkIfClosed();
+        checkIfWritable();
 
         id = new Long( recid );
         try {
@@ -257,7 +313,31 @@ public class CacheRecordManager
      *  @return the object contained in the record.
      *  @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized Object fetch( long recid, Serializer serializer )
+    public Object fetch( long recid, Serializer serializer )
+        throws IOException
+    {
+        ConcurrentRecordCache readCache = _readCache;
+        if ( readCache != null ) {
+            // ARC: read-only mode, no lock held while records are read.
+            Object obj = readCache.get( recid );
+            if ( obj == null ) {
+                RecordManager recman = _recman;
+                if ( recman == null ) {
+                    throw new IllegalStateException( "RecordManager has been closed" );
+                }
+                obj = recman.fetch( recid, serializer );
+                readCache.put( recid, obj );
+            }
+            return obj;
+        }
+
+        synchronized ( this ) {
+            return fetchCached( recid, serializer );
+        }
+    }
+
+
+    private Object fetchCached( long recid, Serializer serializer )
         throws IOException
     {
         checkIfClosed();
@@ -288,6 +368,7 @@ public class CacheRecordManager
         checkIfClosed();
 
         updateCacheEntries();
+        _readCache = null;
         _recman.close();
         _recman = null;
         _cache = null;
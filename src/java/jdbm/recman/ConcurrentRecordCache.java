@@ -0,0 +1,108 @@
+package jdbm.recman;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ARC: Bounded cache of records shared by concurrent readers.  Records are
+ * spread over independently locked LRU segments, so readers of different
+ * records rarely wait on each other.  Records must not be modified once
+ * cached.
+ */
+final class ConcurrentRecordCache
+{
+
+    private static final int SEGMENT_COUNT = 32;
+
+
+    private final Segment[] _segments;
+
+
+    /**
+     * @param maxRecords Maximum number of cached records.
+     */
+    ConcurrentRecordCache( int maxRecords )
+    {
+        _segments = new Segment[ SEGMENT_COUNT ];
+        int segmentSize = Math.max( 1, maxRecords / SEGMENT_COUNT );
+        for ( int i=0; i<SEGMENT_COUNT; i++ ) {
+            _segments[ i ] = new Segment( segmentSize );
+        }
+    }
+
+
+    private Segment segmentFor( long recid )
+    {
+        int h = (int) ( recid ^ ( recid >>> 32 ) );
+        h ^= ( h >>> 16 );
+        return _segments[ ( h & 0x7fffffff ) % SEGMENT_COUNT ];
+    }
+
+
+    /**
+     * @return cached record, or null if it is not in the cache.
+     */
+    Object get( long recid )
+    {
+        return segmentFor( recid ).get( recid );
+    }
+
+
+    /**
+     * Caches a record, evicting the least recently used record of its
+     * segment if needed.
+     */
+    void put( long recid, Object obj )
+    {
+        segmentFor( recid ).put( recid, obj );
+    }
+
+
+    void removeAll()
+    {
+        for ( int i=0; i<SEGMENT_COUNT; i++ ) {
+            _segments[ i ].clear();
+        }
+    }
+
+
+    /**
+     * LRU segment.  All methods lock the segment.
+     */
+    private static final class Segment
+    {
+
+        private final LinkedHashMap<Long, Object> _records;
+
+
+        Segment( final int maxRecords )
+        {
+            _records = new LinkedHashMap<Long, Object>( 16, 0.75f, true ) {
+                protected boolean removeEldestEntry( Map.Entry<Long, Object> eldest )
+                {
+                    return size() > maxRecords;
+                }
+            };
+        }
+
+
+        synchronized Object get( long recid )
+        {
+            return _records.get( recid );
+        }
+
+
+        synchronized void put( long recid, Object obj )
+        {
+            _records.put( recid, obj );
+        }
+
+
+        synchronized void clear()
+        {
+            _records.clear();
+        }
+
+    }
+
+}
@@ -50,6 +50,7 @@ import javax.servlet.*;
 import javax.servlet.http.*;
 import sks.dataset.RecordParser;
 import sks.dataset.Schema;
+import sks.sif.BitmapCodec;
 import sks.ski.BigSpatialKeywordIndex;
 import sks.ski.Index;
 
@@ -88,6 +89,8 @@ public class LoadServlet extends HttpServlet {
   private static final String RELOADING_FLAG = ".reloading"; // reloading existing index.
   private static final String PARENT_INFO = ".pinfo"; // parent index information.
   public static final String TRX_FLAG = ".trx"; // replacing index in progress.
+  private static final int DEFAULT_NODE_CACHE_SIZE_MB = 64;
+  private static final int DEFAULT_POSTING_CACHE_SIZE_MB = 32;
 
   @Override
 
@@ -200,6 +203,132 @@ public class LoadServlet extends HttpServlet {
   }
 
 
+  /**
+   * Tells whether R-trees are bulk loaded, from the environment entry
+   * "bulkLoad". Defaults to false (records are inserted one at a time).
+   */
+  public static boolean isBulkLoadEnabled() {
+    boolean bulkLoad = false;
+
+    try {
+      InitialContext context = new InitialContext();
+
+      try {
+        bulkLoad = (Boolean) context.lookup("java:comp/env/bulkLoad");
+      } catch (NamingException e) {
+        // Use default.
+      }
+
+      context.close();
+    } catch (NamingException e) {
+      // Use default.
+    }
+
+    return bulkLoad;
+  } // public static boolean isBulkLoadEnabled()
+
+  /**
+   * Gets the codec of the term bitmaps of new indexes, from the environment
+   * entry "bitmapCodec" (WAH or EWAH). Defaults to WAH. Existing indexes
+   * are read with the codec they were built with.
+   */
+  public static BitmapCodec getBitmapCodec() {
+    BitmapCodec codec = BitmapCodec.WAH;
+
+    try {
+      InitialContext context = new InitialContext();
+
+      try {
+        codec = BitmapCodec.valueOf((String) context.lookup("java:comp/env/bitmapCodec"));
+      } catch (NamingException e) {
+        // Use default.
+      } catch (IllegalArgumentException e) {
+        // Unknown codec. Use default.
+      }
+
+      context.close();
+    } catch (NamingException e) {
+      // Use default.
+    }
+
+    return codec;
+  } // public static BitmapCodec getBitmapCodec()
+
+  /**
+   * Gets the number of bins of each numeric field of new indexes, from the
+   * environment entry "numericBins". Defaults to 0 (numeric fields are not
+   * binned).
+   */
+  public static int getNumericBins() {
+    int numericBins = 0;
+
+    try {
+      InitialContext context = new InitialContext();
+
+      try {
+        numericBins = (Integer) context.lookup("java:comp/env/numericBins");
+      } catch (NamingException e) {
+        // Use default.
+      }
+
+      context.close();
+    } catch (NamingException e) {
+      // Use default.
+    }
+
+    return Math.max(numericBins, 0);
+  } // public static int getNumericBins()
+
+  /**
+   * Gets the R-tree node cache size of a category from the environment
+   * entry "nodeCacheSize.category", or "nodeCacheSize" if not defined.
+   * @param category
+   * @return cache size in bytes. 0 if caching is disabled.
+   */
+  public static long getNodeCacheSize(String category) {
+    return getCacheSize("nodeCacheSize", category, DEFAULT_NODE_CACHE_SIZE_MB);
+  }
+
+  /**
+   * Gets the posting list cache size of a category from the environment
+   * entry "postingCacheSize.category", or "postingCacheSize" if not defined.
+   * @param category
+   * @return cache size in bytes. 0 if caching is disabled.
+   */
+  public static long getPostingCacheSize(String category) {
+    return getCacheSize("postingCacheSize", category, DEFAULT_POSTING_CACHE_SIZE_MB);
+  }
+
+  /**
+   * @param name environment entry of the cache size in MB.
+   * @param category
+   * @param defaultMegabytes size used if the entry is not defined.
+   * @return cache size in bytes.
+   */
+  private static long getCacheSize(String name, String category, long defaultMegabytes) {
+    long megabytes = defaultMegabytes;
+
+    try {
+      InitialContext context = new InitialContext();
+
+      try {
+        megabytes = (Integer) context.lookup("java:comp/env/" + name + "." + category);
+      } catch (NamingException e) {
+        try {
+          megabytes = (Integer) context.lookup("java:comp/env/" + name);
+        } catch (NamingException e2) {
+          // Use default size.
+        }
+      }
+
+      context.close();
+    } catch (NamingException e) {
+      // Use default size.
+    }
+
+    return megabytes * 1024 * 1024;
+  } // private static long getCacheSize()
+
   /**
    * 
    * @param category
@@ -248,6 +377,8 @@ public class LoadServlet extends HttpServlet {
       
       // Install BigSpatialKeywordIndex.
       bigSKI.initializeIndexes(skis.toArray(new SpatialKeywordIndex[skis.size()]));
+      // Optional MTC property: parallel=yes searches partitions concurrently.
+      bigSKI.setParallelSearch("yes".equalsIgnoreCase(metaCategory.getProperty("parallel", "no")));
       context.setAttribute(SKS_PREFIX + category + SKIManager.SKI_SUFFIX, bigSKI);
 
       // Retrieve additional MTC parameters.
@@ -256,6 +387,12 @@ public class LoadServlet extends HttpServlet {
               bigSKI.getDataset().getSchema());
 
       if (mtcParameters != null) {
+        // MTC predicates never change between loads: evaluate them once per
+        // partition, so queries skip the SNs they exclude.
+        for (SpatialKeywordIndex ski : skis) {
+          ski.getSIF().materializePredicates(mtcParameters);
+        }
+
         context.setAttribute(SKS_PREFIX + category + SKIManager.MTC_PREDICATES, mtcParameters);
       }
 
@@ -302,7 +439,9 @@ public class LoadServlet extends HttpServlet {
 
     if (ski != null) {
       skiManager.loadNodeMap(); // reload node map.
-      ski.getSIF().startupStore(); // Bitmap store.
+      skiManager.setNodeCacheSize(getNodeCacheSize(category));
+      ski.getSIF().startupStoreReadOnly(); // Bitmap store.
+      ski.getSIF().setPostingCacheSize(getPostingCacheSize(category));
 
 //      if (category.equals("gcity") || category.equals("gtown") //||
 //          //category.equals("gns_2011_wcity_gtown")
@@ -429,6 +568,9 @@ public class LoadServlet extends HttpServlet {
           // Build spatial keyword index.
           Loader loader = new Loader(datasetFile, headerFile, logFile,
                                 category, binStore, tmpStore);
+          loader.setBulkLoad(isBulkLoadEnabled());
+          loader.setBitmapCodec(getBitmapCodec());
+          loader.setNumericBins(getNumericBins());
           context.setAttribute(SKS_PREFIX + category + SKIManager.TEMP_SUFFIX, loader);
           
           if (loader.load()) {
@@ -4,16 +4,21 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
 import sks.dataset.*;
+import sks.rtree.BulkLoader;
 import sks.rtree.Point;
 import sks.rtree.Rtree;
 import sks.rtree.NumericRange;
-import sks.util.RunOSCommand;
+import sks.rtree.DocumentEntry;
+import sks.sif.BitmapCodec;
+import sks.sif.NumericBins;
+import sks.sif.TermDictionary;
+import sks.sif.TermPosting;
+import sks.util.ExternalSorter;
 import sks.sif.SpatialInvertedFile;
 import sks.ski.SKIManager;
 import sks.ski.SpatialKeywordIndex;
@@ -33,6 +38,10 @@ public class Loader {
   static public final String FIELD_SEPARATOR = "\t";
   static public final int IO_BUFFER_SIZE = 65536;
 
+  // Memory and threads of the external sorts of the load pipeline.
+  static private final long SORT_MEMORY = Runtime.getRuntime().maxMemory() / 4;
+  static private final int SORT_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+
   private File logFile;
   private Dataset dataset;
   private SpatialInvertedFile sif = null;
@@ -41,6 +50,9 @@ public class Loader {
   private String binStore;
   private String tmpStore;
   private String category;
+  private boolean bulkLoad = false;
+  private BitmapCodec bitmapCodec = BitmapCodec.WAH;
+  private int numericBins = 0;
 
 
   /**
@@ -67,6 +79,41 @@ public class Loader {
     return loadStage;
   }
 
+  /**
+   * If set, the R-tree is packed bottom-up with STR instead of built by
+   * inserting records one at a time.
+   */
+  public void setBulkLoad(boolean bulkLoad) {
+    this.bulkLoad = bulkLoad;
+  }
+
+  public boolean isBulkLoad() {
+    return bulkLoad;
+  }
+
+  /**
+   * Sets the codec of the term bitmaps of the new index.
+   */
+  public void setBitmapCodec(BitmapCodec bitmapCodec) {
+    this.bitmapCodec = bitmapCodec;
+  }
+
+  public BitmapCodec getBitmapCodec() {
+    return bitmapCodec;
+  }
+
+  /**
+   * Sets the number of bins of each numeric field indexed in the SIF (see
+   * NumericBins). 0 disables the binned index.
+   */
+  public void setNumericBins(int numericBins) {
+    this.numericBins = numericBins;
+  }
+
+  public int getNumericBins() {
+    return numericBins;
+  }
+
   /**
    * Loader class
    */
@@ -90,6 +137,18 @@ public class Loader {
     Rtree rTree = new Rtree(NODE_CAPACITY, 0.5f, numFieldCount);
     DatasetReader reader = new DatasetReader(dataset);
     BufferedWriter logWriter = new BufferedWriter(new FileWriter(logFile));
+    BulkLoader bulkLoader = (bulkLoad)? new BulkLoader(rTree) : null;
+    NumericBins.Builder binsBuilder = null;
+
+    if (numericBins > 0 && numFieldCount > 0) {
+      short[] fieldNumbers = new short[numFieldCount];
+
+      for (int i = 0; i < numFieldCount; i++) {
+        fieldNumbers[i] = numFieldIndexes.get(i).shortValue();
+      }
+
+      binsBuilder = new NumericBins.Builder(fieldNumbers, numericBins);
+    }
 
     // Build R-tree with augmented min/max bins.
     loadStage = "RT";
@@ -110,10 +169,19 @@ public class Loader {
         if (numericValues != null) {
           numRange = new NumericRange();
           numRange.initializeBound(numericValues);
+
+          if (binsBuilder != null) {
+            binsBuilder.add(numericValues);
+          }
         }
         
         // Index record.
-        rTree.insert(rec.getReference(), p, numRange);
+        if (bulkLoader != null) {
+          bulkLoader.add(rec.getReference(), p, numRange);
+        } else {
+          rTree.insert(rec.getReference(), p, numRange);
+        }
+
         //output to webpage
         if (recordsProcessed > 0 && recordsProcessed % 1000000 == 0) {
           logWriter.write(Loader.getCurrentDate() + " records processed: " + recordsProcessed);
@@ -127,111 +195,106 @@ public class Loader {
       recordsProcessed++;
     }
 
-    // Generate <documentId, nodeId> file. The dnode file
     reader.close();
-    File docNodeFile = new File(tmpStore + category + "/" + category + ".dnode");
-    loadStage = "RT-dmpObjNodeId";
-    rTree.dumpDocumentNodeIds(docNodeFile);
 
-    // Persist R-tree and release memory.
-    SKIManager skiManager = new SKIManager(tmpStore, tmpStore, category, true);
-    loadStage = "RT-wNode";
-    skiManager.writeNodes(rTree);
-    rTree.emptyStorage();
-    System.gc();
+    if (bulkLoader != null) {
+      loadStage = "RT-bulk";
+      logWriter.write(Loader.getCurrentDate() + " Packing R-tree with " +
+              bulkLoader.size() + " records.");
+      logWriter.newLine();
+      bulkLoader.build();
+      bulkLoader = null;
+    }
 
-    // Platform information.
-    String platformInfo = System.getProperty("os.name") + "\t" +
-            System.getProperty("os.version") + "\t" +
-            System.getProperty("os.arch");
+    NumericBins bins = (binsBuilder != null)? binsBuilder.build() : null;
+    binsBuilder = null;
 
+    // Generate <documentId, nodeId> pairs, sorted by documentId.
+    File categoryDir = new File(tmpStore + category);
+    ExternalSorter<DocumentEntry> docEntrySorter = new ExternalSorter<DocumentEntry>(
+            DocumentEntry.CODEC, DocumentEntry.DOC_REF_ORDER, SORT_MEMORY, SORT_THREADS,
+            categoryDir, category + ".dnode");
+    ExternalSorter<TermPosting> postingSorter = null;
+    TermDictionary terms = new TermDictionary();
+    SKIManager skiManager = new SKIManager(tmpStore, tmpStore, category, true);
 
-    logWriter.write("Platform:\t" + platformInfo);
-    logWriter.newLine();
-    String osScriptSuffix = ".sh";
+    try {
+      loadStage = "RT-dmpObjNodeId";
+      rTree.dumpDocumentNodeIds(docEntrySorter);
 
-    if (platformInfo.toLowerCase().contains("windows")) {
-      osScriptSuffix = ".bat";
-    }
+      // Persist R-tree and release memory.
+      loadStage = "RT-wNode";
+      skiManager.writeNodes(rTree);
+      rTree.emptyStorage();
+      System.gc();
 
-    // Sort docNode file by documentId.
-    String sortCmd[] = {binStore + "sort_dnode" + osScriptSuffix,
-                        docNodeFile.getCanonicalPath()};
-    RunOSCommand runCmd = null;
-    runCmd = new sks.util.RunOSCommand();
-    int exitValue = 0;
-    loadStage = "RT-srtObjNode";
-
-    if ((exitValue = runCmd.run(sortCmd)) > 0) {
-      // TODO: Close file streams.
-      String cmdMessage = sortCmd[0] + " " + sortCmd[1];
-      logWriter.write(Loader.getCurrentDate() + " OS Error " + exitValue +
-              ", while executing OS command: " + cmdMessage);
+      // Platform information.
+      String platformInfo = System.getProperty("os.name") + "\t" +
+              System.getProperty("os.version") + "\t" +
+              System.getProperty("os.arch");
+
+      logWriter.write("Platform:\t" + platformInfo);
       logWriter.newLine();
-      logWriter.close();
-      throw new Exception("OS Error " + exitValue + ", while executing OS command 1.");
-    }
 
-    // Generate forward index.
-    runCmd = null;
-    File forwardIndexFile = new File(tmpStore + category + "/" + category + ".fidx");
-    File forwardIndexFile0 = new File(tmpStore + category + "/" + category + ".fidx0");
-    loadStage = "SIF-fIndex";
+      // Sort docNode pairs by documentId.
+      loadStage = "RT-srtObjNode";
+      ExternalSorter.Reader<DocumentEntry> docEntries = docEntrySorter.sort();
 
-    if (!buildForwardIndex(forwardIndexFile, forwardIndexFile0)) {
-      throw new Exception("Error while generating forward index.");
-    }
+      // Generate forward index joined with docNode pairs.
+      loadStage = "SIF-fIndex";
+      postingSorter = new ExternalSorter<TermPosting>(TermPosting.CODEC,
+              terms.getPostingOrder(), SORT_MEMORY, SORT_THREADS, categoryDir, category + ".post");
 
-    // Generate spatial inverted file.
-    // Augment fidx file with references in dnode file.
-    File spatialInvertedTextFile = new File(tmpStore + category + "/" + category + ".text");
-    //String joinCmd[] = {binStore + "join_dnode_fidx.bat",
-    String joinCmd[] = {binStore + "join_dnode_fidx" + osScriptSuffix,
-                        docNodeFile.getCanonicalPath(),
-                        forwardIndexFile.getCanonicalPath(),
-                        spatialInvertedTextFile.getCanonicalPath()};
-
-    runCmd = new RunOSCommand();
-    exitValue = 0;
-    loadStage = "SIF-jObjNodeFIndex";
-
-    if ((exitValue = runCmd.run(joinCmd)) > 0) {
-      String cmdMessage = sortCmd[0] + " " + sortCmd[1] + " " + sortCmd[2] + " " + sortCmd[3];
-      logWriter.write(Loader.getCurrentDate() + " OS Error " + exitValue +
-              ", while executing OS command: " + cmdMessage);
-
-      logWriter.write(Loader.getCurrentDate() + " OS Error " +
-              exitValue + ", while executing OS command: " + cmdMessage);
+      try {
+        if (!buildForwardIndex(docEntries, postingSorter, terms, bins)) {
+          throw new Exception("Error while generating forward index.");
+        }
+      } finally {
+        docEntries.close();
+        docEntrySorter.close();
+      }
+
+      // Sort postings by term and entryId.
+      loadStage = "SIF-srtPostings";
+      ExternalSorter.Reader<TermPosting> postings = postingSorter.sort();
+
+      // Build term bitmaps.
+      loadStage = "SIF";
+      sif = new SpatialInvertedFile(category, tmpStore, rTree);
+      sif.setBitmapCodec(bitmapCodec);
+      sif.setNumericBins(bins);
+
+      // DEBUG
+      logWriter.write("Building Bitmap Store for category = " + category);
       logWriter.newLine();
-      logWriter.close();
-      throw new Exception("OS Error " + exitValue + ", while executing OS command: join_dnode_fidx.");
-    }
+      logWriter.write("Temporary directory: " + tmpStore);
+      logWriter.newLine();
+      boolean built = false;
 
-    // Remove intermediate files: .dnode, .fidx
-    runCmd = null;
-    // EXP docNodeFile.delete();
-    forwardIndexFile.delete();
-    forwardIndexFile0.delete();
-    docNodeFile = null;
-    forwardIndexFile = null;
-    forwardIndexFile0 = null;
-
-    // Build term bitmaps.
-    loadStage = "SIF";
-    sif = new SpatialInvertedFile(category, tmpStore, rTree);
-
-    // DEBUG
-    logWriter.write("Building Bitmap Store for category = " + category);
-    logWriter.newLine();
-    logWriter.write("Temporary directory: " + tmpStore);
-    logWriter.newLine();
+      try {
+        built = sif.buildTermBitmaps(postings, terms);
+      } finally {
+        postings.close();
+      }
 
-    if (!sif.buildTermBitmaps(spatialInvertedTextFile)) {
-      // TODO: Close file streams.
-      logWriter.write(Loader.getCurrentDate() + " Error while building term bitmaps.");
+      if (!built) {
+        logWriter.write(Loader.getCurrentDate() + " Error while building term bitmaps.");
+        logWriter.newLine();
+        logWriter.close();
+        throw new Exception("Error while building term bitmaps.");
+      }
+    } catch (IOException ex) {
+      logWriter.write(Loader.getCurrentDate() + " Error while building the spatial inverted file: " +
+              ex.getMessage());
       logWriter.newLine();
       logWriter.close();
-      throw new Exception("Error while building term bitmaps.");
+      throw ex;
+    } finally {
+      docEntrySorter.close();
+
+      if (postingSorter != null) {
+        postingSorter.close();
+      }
     }
 
     // Write SKI structure, timestamp, and Dataset.
@@ -260,13 +323,18 @@ public class Loader {
   }
 
   /**
-   * Builds database forward index.
-   * @param forwardIndexFile
+   * Builds database forward index, joined with the R-tree entries of the
+   * documents. Both are in documentId order: the dataset is read sequentially.
+   * @param docEntries <documentId, entryId> pairs sorted by documentId.
+   * @param postings receives <termId, fieldNbr, entryId> postings.
+   * @param dictionary dictionary of term Ids.
+   * @param bins bins of the numeric fields, or null if they are not indexed.
    * @return
    * @throws IOException
    */
-  private boolean buildForwardIndex(File forwardIndexFile,
-          File forwardIndexFile0) throws IOException {
+  private boolean buildForwardIndex(ExternalSorter.Reader<DocumentEntry> docEntries,
+          ExternalSorter<TermPosting> postings, TermDictionary dictionary,
+          NumericBins bins) throws IOException {
     if (dataset == null) {
       // "createForwardIndex(File): cannot build fidx. dataset is null";
       return false;
@@ -274,17 +342,17 @@ public class Loader {
 
     recordsProcessed = 0;
     DatasetReader reader = new DatasetReader(dataset);
-    Writer output = new BufferedWriter(new FileWriter(forwardIndexFile), Loader.IO_BUFFER_SIZE);
-    Writer output0 = new BufferedWriter(new FileWriter(forwardIndexFile0), Loader.IO_BUFFER_SIZE);
     ArrayList<Integer> textFieldIndexes = dataset.getSchema().getTextFieldIndexes();
     int textFieldCount = 0;
+    DocumentEntry docEntry = docEntries.read();
+    long lastDocRef = -1;
     
     if (textFieldIndexes != null) {
       textFieldCount = textFieldIndexes.size();
     }
 
     try {
-      while (textFieldCount > 0) {
+      while ((textFieldCount > 0 || bins != null) && docEntry != null) {
         try {
           Record rec = reader.readRecord(true, true); // TODO: parse numbers to index.
 
@@ -292,9 +360,27 @@ public class Loader {
             break;
           }
 
+          long docRef = rec.getReference();
+
+          if (docRef <= lastDocRef) {
+            throw new IOException("Records are not in file order at " + docRef);
+          }
+
+          lastDocRef = docRef;
+
+          // Merge join: skip R-tree entries of documents not parsed here.
+          while (docEntry != null && docEntry.docRef < docRef) {
+            docEntry = docEntries.read();
+          }
+
+          if (docEntry == null || docEntry.docRef != docRef) {
+            continue; // Document is not in the R-tree.
+          }
+
+          long entryId = docEntry.entryId;
+
           // Document vocabulary.
           HashSet <String> docTerms = new java.util.HashSet(100);
-          long docRef = rec.getReference();
           String[] textValues = rec.getTextValues();
           
           for (int i = 0; textValues != null && i < textValues.length; i++) {
@@ -305,26 +391,15 @@ public class Loader {
               // Add unique terms into the forward index.
               if (!docTerms.contains(term + "@" + index)) {
                 docTerms.add(term + "@" + index);
-
-                if (term.length() > 0) {
-                  // write: "docRef term fieldNbr"
-                  output.write(docRef + FIELD_SEPARATOR + // docId
-                               term + FIELD_SEPARATOR + // term
-                               index + "\n"); // fieldNbr
-                } else {
-                  // write: "docRef term fieldNbr"
-                  output0.write(docRef + FIELD_SEPARATOR + // docId
-                               term + FIELD_SEPARATOR + // term
-                               index + "\n"); // fieldNbr
-                } // if (term.length() > 0)
-              } // if (!docTerms.contains(term + "@" + index))
+                postings.add(new TermPosting(dictionary.getId(term), (short) index, entryId));
+              }
             } // for (String term : terms)
           }
 
           docTerms.clear();
           docTerms = null;
 
-          // Index numeric null values.
+          // Index numeric null values, and numeric bins.
           double[] numericValues = rec.getNumericValues();
           ArrayList<Integer> numericFieldIndexes = dataset.getSchema().getNumberFieldIndexes();
 
@@ -332,21 +407,23 @@ public class Loader {
             int index = numericFieldIndexes.get(i);
 
             if (numericValues[i] == 0) {
-              // write: "docRef term fieldNbr"
-              output0.write(docRef + FIELD_SEPARATOR + // docId
-                           "" + FIELD_SEPARATOR + // term
-                           index + "\n"); // fieldNbr
+              postings.add(new TermPosting(dictionary.getId(""), (short) index, entryId));
+            }
+
+            int bin = (bins != null)? bins.getBin(i, numericValues[i]) : -1;
+
+            if (bin >= 0) {
+              postings.add(new TermPosting(dictionary.getId(NumericBins.getTerm(bin)),
+                      (short) index, entryId));
             }
           }
         } catch (MalformedRecordException ex) {
           // Ignore document.
+        } finally {
+          recordsProcessed++;
         }
-
-        recordsProcessed++;
       } // while (true)
     } finally {
-      output.close();
-      output0.close();
       reader.close();
     }
     
@@ -1,5 +1,6 @@
 package sks;
 
+import sks.rtree.NodeEntries;
 import sks.rtree.NumericRange;
 import sks.rtree.Point;
 
@@ -30,6 +31,17 @@ public class NumericParameter {
     this.fieldName = fieldName;
   }
 
+  /**
+   * @return index of the field in the record's numeric values.
+   */
+  public int getNumFieldIndex() {
+    return numFieldIndex;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
   public boolean isSatisfiedBy(double d) {
     switch (op) {
       case EQUAL:
@@ -59,29 +71,61 @@ public class NumericParameter {
    * @return
    */
   public boolean isSatisfiedByRange(NumericRange numRange) {
+    return isSatisfiedByBounds(numRange.getLowerBoundAt(numFieldIndex),
+                               numRange.getUpperBoundAt(numFieldIndex));
+  } // public boolean isSatisfiedByRange()
+
+  /**
+   * Tests the predicate against the min/max box of an R-tree entry.
+   * @param entries R-tree node.
+   * @param i entry index.
+   * @return
+   */
+  public boolean isSatisfiedByEntry(NodeEntries entries, int i) {
+    return isSatisfiedByBounds(entries.getLowerBoundAt(i, numFieldIndex),
+                               entries.getUpperBoundAt(i, numFieldIndex));
+  }
+
+  /**
+   * Tests the predicate against an interval of values, e.g. a numeric bin.
+   * @param lowerBound minimum value of the field in the interval.
+   * @param upperBound maximum value of the field in the interval.
+   * @return false if no value in the interval satisfies the predicate.
+   */
+  public boolean isSatisfiedByInterval(double lowerBound, double upperBound) {
+    return isSatisfiedByBounds(lowerBound, upperBound);
+  }
+
+  /**
+   * 
+   * @param lowerBound minimum value of the field in a range.
+   * @param upperBound maximum value of the field in a range.
+   * @return
+   */
+  private boolean isSatisfiedByBounds(double lowerBound, double upperBound) {
     switch (op) {
       case EQUAL:	// EQUAL and NOT_EQUAL are not technically range queries.
-        return (value >= numRange.getLowerBoundAt(numFieldIndex) &&
-                value <= numRange.getUpperBoundAt(numFieldIndex));
+        return (value + Point.EPSILON >= lowerBound &&
+                value - Point.EPSILON <= upperBound);
 
       case NOT_EQUAL: // Range intersection is not sufficient to determine
         return true; // if a leaf node contains a candidate object.
 
       case GREATER_THAN_EQUAL: // data <= value
-        return (numRange.getLowerBoundAt(numFieldIndex) <= value);
+        return (lowerBound <= value);
 
       case LESS_THAN_EQUAL: // data >= value
-        return (numRange.getUpperBoundAt(numFieldIndex) >= value);
+        return (upperBound >= value);
 
       case GREATER_THAN: // data < value
-        return (numRange.getLowerBoundAt(numFieldIndex) < value);
+        return (lowerBound < value);
 
       case LESS_THAN: // data > value
-        return (numRange.getUpperBoundAt(numFieldIndex) > value);
+        return (upperBound > value);
     }
 
     return false;
-  } // public boolean isSatisfiedByRange()
+  } // private boolean isSatisfiedByBounds()
 
   @Override
   public String toString() {
@@ -12,6 +12,7 @@ import sks.dataset.*;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import sks.rtree.*;
+import sks.ski.BigSpatialKeywordIndex;
 import sks.ski.Index;
 import sks.ski.ResultIterator;
 import sks.ski.SKIManager;
@@ -62,6 +63,13 @@ public class QueryServlet extends HttpServlet {
     }
   }
 
+  @Override
+  public void destroy() {
+    // Stop the partition search workers of big indexes.
+    BigSpatialKeywordIndex.shutdownSearchExecutor();
+    super.destroy();
+  }
+
   /**
   * Calculate the distance between two points.
   */
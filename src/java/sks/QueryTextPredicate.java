@@ -77,6 +77,10 @@ public class QueryTextPredicate {
     return fieldNumber;
   }
 
+  public String getFieldName() {
+    return fieldName;
+  }
+
   @Override
   public String toString() {
     return "<" + ((fieldNumber == -1)? "any":fieldName) + ", " + op.toString() +
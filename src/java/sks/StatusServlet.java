@@ -142,6 +142,14 @@ public class StatusServlet extends HttpServlet {
 		} else if (obj instanceof SpatialKeywordIndex) {
       SpatialKeywordIndex ski = (SpatialKeywordIndex) obj;
       request.setAttribute("updatedOn", ski.getLastUpdatedOn());
+
+      if (ski.getSKIManager() != null && ski.getSKIManager().getNodeCache() != null) {
+        request.setAttribute("nodeCache", ski.getSKIManager().getNodeCache().toString());
+      }
+
+      if (ski.getSIF() != null && ski.getSIF().getPostingCache() != null) {
+        request.setAttribute("postingCache", ski.getSIF().getPostingCache().toString());
+      }
 			dispatcher = request.getRequestDispatcher("/views/categorystatus.jsp");
 		} else {
 			dispatcher = request.getRequestDispatcher("/views/categorynotfound.jsp");
@@ -6,23 +6,249 @@
 package sks.dataset;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Reads records at arbitrary offsets of a dataset file. Reads are positional
+ * (they do not move a shared file pointer), so one reader can be shared by
+ * all the queries running on a category.
+ * <p>
+ * The file is memory-mapped in overlapping segments when possible; the end
+ * of a record is found by scanning bytes of the mapped view, and only the
+ * bytes of that record are decoded. Positional channel reads are used when
+ * the file is not mapped or a record does not fit in its segment.
+ */
 public class RandomDatasetReader {
-	private RandomAccessFile file;
-	private RecordParser parser;	
-	
+  // Initial read size; records longer than this are read in several steps.
+  private static final int READ_SIZE = 1024;
+
+  // Mapped segment size and the overlap with the next segment. A record
+  // starting in a segment is read from the mapping if it ends in the overlap.
+  private static final long SEGMENT_SIZE = 1L << 30;
+  private static final int SEGMENT_OVERLAP = 1 << 16;
+
+  // Mapped files cannot be replaced on Windows until they are garbage
+  // collected, which would break index swaps (SKIManager.moveSKIfiles).
+  static public final boolean MEMORY_MAPPED =
+          !System.getProperty("os.name").toLowerCase().contains("windows");
+
+	private File file;
+	private volatile FileChannel channel;
+	private volatile boolean closed = false;
+	private MappedByteBuffer[] segments = null;
+	private long mappedFileSize = 0;
+	private RecordParser parser;
+
 	public RandomDatasetReader(Dataset dataset) throws IOException {
-    file = new RandomAccessFile(dataset.getFile(), "r");
+    this(dataset, MEMORY_MAPPED);
+	}
+
+	public RandomDatasetReader(Dataset dataset, boolean memoryMapped) throws IOException {
+    file = dataset.getFile();
+    channel = new RandomAccessFile(file, "r").getChannel();
     parser = new RecordParser(dataset.getSchema());
+
+    if (memoryMapped) {
+      mapSegments();
+    }
 	}
 
+  /**
+   * Maps the data file in read-only segments. On failure (e.g. not enough
+   * address space) the reader falls back to positional reads.
+   */
+  private void mapSegments() {
+    long fileSize = 0;
+
+    try {
+      fileSize = channel.size();
+      int segmentCount = (int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      MappedByteBuffer[] mapped = new MappedByteBuffer[segmentCount];
+
+      for (int i = 0; i < segmentCount; i++) {
+        long start = i * SEGMENT_SIZE;
+        long size = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, fileSize - start);
+        mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+      }
+
+      mappedFileSize = fileSize;
+      segments = mapped;
+    } catch (IOException ex) {
+      Logger.getLogger(RandomDatasetReader.class.getName()).log(Level.WARNING,
+              "Cannot map " + file + ", using positional reads", ex);
+      segments = null;
+    }
+  } // private void mapSegments()
+
 	public Record recordAt(long pos) throws IOException, MalformedRecordException {
-    file.seek(pos);
-    String line = file.readLine();
+    String line = lineAt(pos);
+
+    if (line == null) {
+      throw new EOFException("No record at offset " + pos);
+    }
+
     return parser.parse(line, true, true);
 	}
 
-	public void close() throws IOException {
-    file.close();
+  /**
+   * Reads the line starting at a given offset. Like RandomAccessFile.readLine,
+   * bytes are mapped one-to-one to characters and the line ends at '\n',
+   * '\r' or the end of the file.
+   * @param pos file offset.
+   * @return line without terminator, or null if pos is at the end of file.
+   * @throws IOException
+   */
+  public String lineAt(long pos) throws IOException {
+    MappedByteBuffer[] mapped = segments;
+
+    if (mapped != null && pos >= 0) {
+      int segment = (int) (pos / SEGMENT_SIZE);
+
+      if (segment < mapped.length) {
+        long segmentStart = segment * SEGMENT_SIZE;
+        String line = mappedLineAt(mapped[segment], (int) (pos - segmentStart),
+                segmentStart + mapped[segment].limit() == mappedFileSize);
+
+        if (line != null) {
+          return line;
+        }
+      }
+    }
+
+    return channelLineAt(pos);
+  } // public String lineAt()
+
+  /**
+   * Reads a line from a mapped segment.
+   * @param segment mapped segment.
+   * @param offset line offset in the segment.
+   * @param endsWithFile true if the segment ends at the end of the file.
+   * @return line, or null if it is not entirely inside the segment.
+   * @throws IOException
+   */
+  private String mappedLineAt(MappedByteBuffer segment, int offset,
+          boolean endsWithFile) throws IOException {
+    // A private view keeps concurrent readers from sharing the buffer position.
+    ByteBuffer view = segment.duplicate();
+    int limit = view.limit();
+
+    if (offset >= limit) {
+      return null;
+    }
+
+    view.position(offset);
+    byte[] bytes = new byte[Math.min(READ_SIZE, limit - offset)];
+    int length = 0;
+
+    while (true) {
+      int chunk = Math.min(bytes.length - length, view.remaining());
+      view.get(bytes, length, chunk);
+
+      for (int i = length; i < length + chunk; i++) {
+        if (bytes[i] == '\n' || bytes[i] == '\r') {
+          return new String(bytes, 0, i, "ISO-8859-1");
+        }
+      }
+
+      length += chunk;
+
+      if (!view.hasRemaining()) {
+        // Either the last line of the file or a line running past the mapping.
+        return (endsWithFile)? new String(bytes, 0, length, "ISO-8859-1") : null;
+      }
+
+      if (length == bytes.length) {
+        byte[] newBytes = new byte[bytes.length * 2];
+        System.arraycopy(bytes, 0, newBytes, 0, length);
+        bytes = newBytes;
+      }
+    } // while (true)
+  } // private String mappedLineAt()
+
+  /**
+   * Reads a line with positional channel reads.
+   * @param pos file offset.
+   * @return line, or null if pos is at the end of file.
+   * @throws IOException
+   */
+  private String channelLineAt(long pos) throws IOException {
+    byte[] bytes = new byte[READ_SIZE];
+    int length = 0;
+    FileChannel fileChannel = channel;
+    boolean interrupted = false;
+
+    try {
+      while (true) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, length, bytes.length - length);
+        int bytesRead;
+
+        try {
+          bytesRead = fileChannel.read(buffer, pos + length);
+        } catch (ClosedChannelException ex) {
+          // A reader interrupted while reading closes the shared channel.
+          // Read on without the interrupt and restore it when done.
+          interrupted |= Thread.interrupted();
+          fileChannel = reopen(fileChannel, ex);
+          continue;
+        }
+
+        if (bytesRead < 0) {
+          // End of file.
+          return (length == 0)? null : new String(bytes, 0, length, "ISO-8859-1");
+        }
+
+        for (int i = length; i < length + bytesRead; i++) {
+          if (bytes[i] == '\n' || bytes[i] == '\r') {
+            return new String(bytes, 0, i, "ISO-8859-1");
+          }
+        }
+
+        length += bytesRead;
+
+        if (length == bytes.length) {
+          byte[] newBytes = new byte[bytes.length * 2];
+          System.arraycopy(bytes, 0, newBytes, 0, length);
+          bytes = newBytes;
+        }
+      } // while (true)
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  } // private String channelLineAt()
+
+  /**
+   * Replaces a channel closed by an interrupted reader. The file is not
+   * reopened after close().
+   * @param closedChannel channel that was found closed.
+   * @param ex exception thrown by the closed channel.
+   * @return open channel on the data file.
+   * @throws IOException
+   */
+  private synchronized FileChannel reopen(FileChannel closedChannel,
+          ClosedChannelException ex) throws IOException {
+    if (closed) {
+      throw ex;
+    }
+
+    if (channel == closedChannel) {
+      channel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    return channel;
+  } // private synchronized FileChannel reopen()
+
+
+	public synchronized void close() throws IOException {
+    // Mapped segments are released by the garbage collector.
+    closed = true;
+    segments = null;
+    channel.close();
 	}
-}
\ No newline at end of file
+}
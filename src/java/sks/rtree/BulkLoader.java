@@ -0,0 +1,223 @@
+/*
+ * BulkLoader.java
+ */
+
+package sks.rtree;
+
+import java.util.Arrays;
+
+/**
+ * Builds an R-tree bottom-up with Sort-Tile-Recursive (STR) packing instead
+ * of inserting objects one at a time. Points are collected with add(), then
+ * build() sorts them once per level and packs nearly full nodes with little
+ * overlap. The tree has the same shape as an insertion-built one (balanced,
+ * leaves at level 0, nodes of at most maxCapacity entries), so entry Ids and
+ * super node Ids are assigned by Rtree.dumpDocumentNodeIds() as before.
+ *
+ * @author Ariel Cary
+ */
+public class BulkLoader {
+  private Rtree rTree;
+  private int count = 0;
+  private long[] refs;
+  private float[] xs;
+  private float[] ys;
+  private NumericRange[] numRanges = null;
+
+  /**
+   * @param rTree empty R-tree to load.
+   */
+  public BulkLoader(Rtree rTree) {
+    this.rTree = rTree;
+    int capacity = 1024;
+    refs = new long[capacity];
+    xs = new float[capacity];
+    ys = new float[capacity];
+
+    if (rTree.getNumFieldCount() > 0) {
+      numRanges = new NumericRange[capacity];
+    }
+  }
+
+  /**
+   * Adds an object to be loaded.
+   * @param ref object reference.
+   * @param point object location.
+   * @param numRange object numeric values, or null.
+   */
+  public void add(long ref, Point point, NumericRange numRange) {
+    if (count == refs.length) {
+      int newLength = (int) Math.min(refs.length * 2L, Integer.MAX_VALUE - 8);
+
+      if (newLength == count) {
+        throw new IllegalStateException("Too many objects to bulk load: " + count);
+      }
+
+      refs = Arrays.copyOf(refs, newLength);
+      xs = Arrays.copyOf(xs, newLength);
+      ys = Arrays.copyOf(ys, newLength);
+
+      if (numRanges != null) {
+        numRanges = Arrays.copyOf(numRanges, newLength);
+      }
+    }
+
+    refs[count] = ref;
+    xs[count] = point.x;
+    ys[count] = point.y;
+
+    if (numRanges != null) {
+      numRanges[count] = numRange;
+    }
+
+    count++;
+  } // public void add()
+
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Packs the added objects into the R-tree and releases them.
+   */
+  public void build() {
+    if (rTree.size() != 1 || rTree.getRootNode().size() != 0) {
+      throw new IllegalStateException("Bulk loading requires an empty R-tree");
+    }
+
+    if (count == 0) {
+      return;
+    }
+
+    short capacity = (short) rTree.getMaxCapacity();
+    int numFieldCount = rTree.getNumFieldCount();
+    VolatileNodeStorage storage = new VolatileNodeStorage();
+    int[] order = new int[count];
+    int[] starts = tile(xs, ys, count, capacity, order);
+
+    // Leaf level.
+    Node[] nodes = new Node[starts.length - 1];
+
+    for (int i = 0; i < nodes.length; i++) {
+      Node leaf = new Node(capacity, (short) 0, (numFieldCount > 0)? true:false);
+
+      for (int j = starts[i]; j < starts[i + 1]; j++) {
+        int k = order[j];
+        Point point = new Point(xs[k], ys[k]);
+        leaf.insert(refs[k], new Rectangle(point, point), (numRanges != null)? numRanges[k] : null);
+      }
+
+      storage.writeNode(leaf);
+      nodes[i] = leaf;
+    }
+
+    // Release input, the leaves hold it now.
+    refs = null;
+    xs = null;
+    ys = null;
+    numRanges = null;
+    count = 0;
+
+    // Upper levels, until a single node remains.
+    short level = 0;
+
+    while (nodes.length > 1) {
+      level++;
+      Rectangle[] mbrs = new Rectangle[nodes.length];
+      float[] centerXs = new float[nodes.length];
+      float[] centerYs = new float[nodes.length];
+
+      for (int i = 0; i < nodes.length; i++) {
+        mbrs[i] = nodes[i].getMinBoundingRect();
+        Point northeast = mbrs[i].getNorthEastPoint();
+        centerXs[i] = (mbrs[i].southwest.x + northeast.x) / 2;
+        centerYs[i] = (mbrs[i].southwest.y + northeast.y) / 2;
+      }
+
+      order = new int[nodes.length];
+      starts = tile(centerXs, centerYs, nodes.length, capacity, order);
+      Node[] parents = new Node[starts.length - 1];
+
+      for (int i = 0; i < parents.length; i++) {
+        Node parent = new Node(capacity, level, (numFieldCount > 0)? true:false);
+        long parentRef = storage.writeNode(parent);
+
+        for (int j = starts[i]; j < starts[i + 1]; j++) {
+          Node child = nodes[order[j]];
+          parent.insert(child.ref, mbrs[order[j]], child.getNumericRange(false, numFieldCount));
+          child.parentRef = parentRef;
+        }
+
+        parents[i] = parent;
+      }
+
+      nodes = parents;
+    } // while (nodes.length > 1)
+
+    rTree.setRoot(nodes[0], storage);
+  } // public void build()
+
+  /**
+   * Sorts items in STR order: by x into vertical slices of whole nodes, then
+   * by y within each slice. Each slice is split in nodes of even size.
+   * @param xs item x coordinates.
+   * @param ys item y coordinates.
+   * @param n number of items.
+   * @param capacity node capacity.
+   * @param order receives the item indexes in STR order.
+   * @return node start offsets in order, followed by n.
+   */
+  static int[] tile(float[] xs, float[] ys, int n, int capacity, int[] order) {
+    int nodeCount = (int) ((n + (long) capacity - 1) / capacity);
+    int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+    long sliceSize = (long) ((nodeCount + sliceCount - 1) / sliceCount) * capacity;
+    long[] keys = new long[n];
+
+    for (int i = 0; i < n; i++) {
+      keys[i] = sortKey(xs[i], i);
+    }
+
+    Arrays.sort(keys);
+
+    for (int i = 0; i < n; i++) {
+      order[i] = (int) keys[i];
+    }
+
+    int[] starts = new int[nodeCount + 1];
+    int node = 0;
+
+    for (long sliceStart = 0; sliceStart < n; sliceStart += sliceSize) {
+      int from = (int) sliceStart;
+      int to = (int) Math.min(sliceStart + sliceSize, n);
+
+      for (int i = from; i < to; i++) {
+        keys[i] = sortKey(ys[order[i]], order[i]);
+      }
+
+      Arrays.sort(keys, from, to);
+
+      for (int i = from; i < to; i++) {
+        order[i] = (int) keys[i];
+      }
+
+      int sliceNodes = (to - from + capacity - 1) / capacity;
+
+      for (int i = 0; i < sliceNodes; i++) {
+        starts[node++] = from + (int) ((long) (to - from) * i / sliceNodes);
+      }
+    } // for (long sliceStart = 0; sliceStart < n; sliceStart += sliceSize)
+
+    starts[node] = n;
+    return (node == nodeCount)? starts : Arrays.copyOf(starts, node + 1);
+  } // static int[] tile()
+
+  /**
+   * @return a key that sorts by coordinate, with the item index in the low
+   * 32 bits.
+   */
+  private static long sortKey(float coordinate, int index) {
+    int bits = Float.floatToIntBits(coordinate);
+    bits ^= (bits >> 31) & 0x7fffffff; // Negative floats sort in reverse.
+    return ((long) bits << 32) | (index & 0xffffffffL);
+  }
+} // class BulkLoader
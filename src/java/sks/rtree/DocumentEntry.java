@@ -0,0 +1,59 @@
+/*
+ * DocumentEntry.java
+ */
+
+package sks.rtree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Comparator;
+import sks.util.ExternalSorter;
+
+/**
+ * A pair &lt;docRef, entryId&gt;: the R-tree leaf entry of a document.
+ *
+ * @author Ariel Cary
+ */
+public class DocumentEntry {
+  public final long docRef;
+  public final long entryId;
+
+  public DocumentEntry(long docRef, long entryId) {
+    this.docRef = docRef;
+    this.entryId = entryId;
+  }
+
+  /**
+   * Orders entries by docRef.
+   */
+  static public final Comparator<DocumentEntry> DOC_REF_ORDER = new Comparator<DocumentEntry>() {
+    public int compare(DocumentEntry e1, DocumentEntry e2) {
+      return (e1.docRef < e2.docRef)? -1 : ((e1.docRef == e2.docRef)? 0 : 1);
+    }
+  };
+
+  /**
+   * Run file encoding: docRef and entryId as variable-length longs.
+   */
+  static public final ExternalSorter.Codec<DocumentEntry> CODEC = new ExternalSorter.Codec<DocumentEntry>() {
+    public void write(DataOutput out, DocumentEntry entry) throws IOException {
+      ExternalSorter.writeVarLong(out, entry.docRef);
+      ExternalSorter.writeVarLong(out, entry.entryId);
+    }
+
+    public DocumentEntry read(DataInput in) throws IOException {
+      long docRef = ExternalSorter.readVarLong(in);
+      return new DocumentEntry(docRef, ExternalSorter.readVarLong(in));
+    }
+
+    public int getMemorySize(DocumentEntry entry) {
+      return 40; // Object header, two longs, and the list slot.
+    }
+  };
+
+  @Override
+  public String toString() {
+    return docRef + "\t" + entryId;
+  }
+} // public class DocumentEntry
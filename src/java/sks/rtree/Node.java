@@ -6,7 +6,7 @@ package sks.rtree;
 
 import java.io.Serializable;
 
-public class Node implements Serializable {
+public class Node implements NodeEntries, Serializable {
   static final long serialVersionUID = -7825231196628624623L;
 
   public long ref = -1;
@@ -101,6 +101,30 @@ public class Node implements Serializable {
     return size;
   }
 
+  public short getLevel() {
+    return level;
+  }
+
+  public long getRef(int i) {
+    return refs[i];
+  }
+
+  public double getDistance(int i, Point point) {
+    return rects[i].getDistance(point);
+  }
+
+  public boolean hasNumericRange(int i) {
+    return numRanges != null && numRanges[i] != null;
+  }
+
+  public float getLowerBoundAt(int i, int numFieldIndex) {
+    return numRanges[i].getLowerBoundAt(numFieldIndex);
+  }
+
+  public float getUpperBoundAt(int i, int numFieldIndex) {
+    return numRanges[i].getUpperBoundAt(numFieldIndex);
+  }
+
   @Override
   public String toString() {
     StringBuffer buff = new StringBuffer("ref=" + ref + ",parentref=" + parentRef + ",level=" + level + ",size=" + size);
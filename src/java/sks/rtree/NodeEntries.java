@@ -0,0 +1,39 @@
+/*
+ * NodeEntries.java
+ */
+
+package sks.rtree;
+
+/**
+ * Read access to the entries of an R-tree node. It is implemented by Node
+ * and by NodeView, a flyweight over a node page of the nodes file, so that
+ * query traversal does not depend on how a node is stored.
+ */
+public interface NodeEntries {
+  public short getLevel();
+
+  public int size();
+
+  /**
+   * @param i entry index.
+   * @return child node reference, or record offset in leaf nodes.
+   */
+  public long getRef(int i);
+
+  /**
+   * @param i entry index.
+   * @param point query point.
+   * @return distance in meters from point to the MBR of entry i.
+   */
+  public double getDistance(int i, Point point);
+
+  /**
+   * @param i entry index.
+   * @return true if entry i has a min/max box.
+   */
+  public boolean hasNumericRange(int i);
+
+  public float getLowerBoundAt(int i, int numFieldIndex);
+
+  public float getUpperBoundAt(int i, int numFieldIndex);
+} // interface NodeEntries
@@ -0,0 +1,219 @@
+/*
+ * NodeView.java
+ */
+
+package sks.rtree;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over a node page of the binary nodes file (.rtn). A view is
+ * repositioned on another page with wrap(), so a query can visit any number
+ * of nodes with a single NodeView object.
+ * <p>
+ * File layout (big-endian): a HEADER_SIZE byte header
+ * [magic, version, capacity, numFieldCount, maxPageSize], followed by node
+ * pages. A page holds [level (short), size (short), flags (byte), 3 padding
+ * bytes], refs as long[size], MBRs as float[4 * size] (minX, minY, maxX, maxY),
+ * and, if flagged, numeric ranges as float[2 * numFieldCount * size]
+ * (lower, upper per field).
+ *
+ * @author Ariel Cary
+ */
+public class NodeView implements NodeEntries {
+  static public final int MAGIC = 0x534B534E; // "SKSN"
+  static public final int VERSION = 2;
+  static public final int HEADER_SIZE = 32;
+
+  static private final int PAGE_HEADER_SIZE = 8;
+  static private final byte HAS_NUMERIC_RANGES = 1;
+
+  private ByteBuffer page = null;
+  private int offset = 0;
+  private int numFieldCount;
+  private int size;
+  private int rectsOffset;
+  private int rangesOffset;
+  private boolean hasNumericRanges;
+
+  // Reusable page buffer for files that are read, not mapped.
+  private ByteBuffer pageBuffer = null;
+
+  public NodeView(int numFieldCount) {
+    this.numFieldCount = numFieldCount;
+  }
+
+  /**
+   * Positions the view on a node page.
+   * @param buffer buffer holding the page.
+   * @param offset page offset in buffer.
+   * @return this view.
+   */
+  public NodeView wrap(ByteBuffer buffer, int offset) {
+    this.page = buffer;
+    this.offset = offset;
+    size = buffer.getShort(offset + 2);
+    hasNumericRanges = (buffer.get(offset + 4) & HAS_NUMERIC_RANGES) != 0;
+    rectsOffset = offset + PAGE_HEADER_SIZE + size * 8;
+    rangesOffset = rectsOffset + size * 16;
+    return this;
+  }
+
+  /**
+   * Gets a buffer of this view large enough for a page.
+   * @param pageSize page size in bytes.
+   * @return cleared buffer with limit pageSize.
+   */
+  public ByteBuffer getPageBuffer(int pageSize) {
+    if (pageBuffer == null || pageBuffer.capacity() < pageSize) {
+      pageBuffer = ByteBuffer.allocate(pageSize);
+    }
+
+    pageBuffer.clear();
+    pageBuffer.limit(pageSize);
+    return pageBuffer;
+  }
+
+  public short getLevel() {
+    return page.getShort(offset);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getRef(int i) {
+    return page.getLong(offset + PAGE_HEADER_SIZE + i * 8);
+  }
+
+  public double getDistance(int i, Point point) {
+    int rect = rectsOffset + i * 16;
+    return Rectangle.getDistance(page.getFloat(rect), page.getFloat(rect + 4),
+            page.getFloat(rect + 8), page.getFloat(rect + 12), point);
+  }
+
+  public boolean hasNumericRange(int i) {
+    return hasNumericRanges;
+  }
+
+  public float getLowerBoundAt(int i, int numFieldIndex) {
+    if (numFieldIndex >= numFieldCount) {
+      return Float.NaN;
+    }
+
+    return page.getFloat(rangesOffset + (i * numFieldCount + numFieldIndex) * 8);
+  }
+
+  public float getUpperBoundAt(int i, int numFieldIndex) {
+    if (numFieldIndex >= numFieldCount) {
+      return Float.NaN;
+    }
+
+    return page.getFloat(rangesOffset + (i * numFieldCount + numFieldIndex) * 8 + 4);
+  }
+
+  /**
+   * Materializes the node under the view.
+   * @param capacity node capacity.
+   * @return a new Node object.
+   */
+  public Node toNode(short capacity) {
+    short level = getLevel();
+    Node node = new Node(capacity, level, hasNumericRanges);
+
+    for (int i = 0; i < size; i++) {
+      int rect = rectsOffset + i * 16;
+      Point southwest = new Point(page.getFloat(rect), page.getFloat(rect + 4));
+      Point northeast = new Point(page.getFloat(rect + 8), page.getFloat(rect + 12));
+      NumericRange numRange = null;
+
+      if (hasNumericRanges) {
+        numRange = new NumericRange(level == 0, numFieldCount);
+
+        for (int j = 0; j < numFieldCount; j++) {
+          numRange.lowerBound[j] = getLowerBoundAt(i, j);
+
+          if (numRange.upperBound != null) {
+            numRange.upperBound[j] = getUpperBoundAt(i, j);
+          }
+        }
+      }
+
+      node.insert(getRef(i), new Rectangle(southwest, northeast), numRange);
+    }
+
+    return node;
+  } // public Node toNode()
+
+  /**
+   * @return page size of a node with the given number of entries.
+   */
+  static public int getPageSize(int size, int numFieldCount, boolean hasNumericRanges) {
+    return PAGE_HEADER_SIZE + size * (8 + 16) +
+           ((hasNumericRanges)? size * numFieldCount * 8 : 0);
+  }
+
+  /**
+   * Writes the nodes file header.
+   */
+  static public void writeHeader(DataOutput out, short capacity, int numFieldCount)
+          throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeShort(capacity);
+    out.writeShort(numFieldCount);
+    out.writeInt(getPageSize(capacity, numFieldCount, true)); // maxPageSize
+
+    for (int i = 16; i < HEADER_SIZE; i++) {
+      out.writeByte(0);
+    }
+  } // static public void writeHeader()
+
+  /**
+   * Writes a node page.
+   * @return page size in bytes.
+   */
+  static public int writeNode(DataOutput out, Node node, int numFieldCount)
+          throws IOException {
+    boolean hasNumericRanges = (numFieldCount > 0 && node.numRanges != null);
+    int size = node.size();
+
+    out.writeShort(node.level);
+    out.writeShort(size);
+    out.writeByte((hasNumericRanges)? HAS_NUMERIC_RANGES : 0);
+    out.writeByte(0);
+    out.writeShort(0);
+
+    for (int i = 0; i < size; i++) {
+      out.writeLong(node.refs[i]);
+    }
+
+    for (int i = 0; i < size; i++) {
+      Point southwest = node.rects[i].southwest;
+      Point northeast = node.rects[i].getNorthEastPoint();
+      out.writeFloat(southwest.x);
+      out.writeFloat(southwest.y);
+      out.writeFloat(northeast.x);
+      out.writeFloat(northeast.y);
+    }
+
+    if (hasNumericRanges) {
+      for (int i = 0; i < size; i++) {
+        for (int j = 0; j < numFieldCount; j++) {
+          if (node.numRanges[i] == null) {
+            // No box: the entry cannot be pruned by numeric predicates.
+            out.writeFloat(Float.NEGATIVE_INFINITY);
+            out.writeFloat(Float.POSITIVE_INFINITY);
+          } else {
+            out.writeFloat(node.numRanges[i].getLowerBoundAt(j));
+            out.writeFloat(node.numRanges[i].getUpperBoundAt(j));
+          }
+        }
+      }
+    } // if (hasNumericRanges)
+
+    return getPageSize(size, numFieldCount, hasNumericRanges);
+  } // static public int writeNode()
+} // class NodeView
@@ -56,23 +56,32 @@ public class Rectangle implements Serializable {
   }
 
   public double getDistance(Point point) {
-    double x;
     Point thisNorthEast = this.getNorthEastPoint();
+    return getDistance(southwest.x, southwest.y, thisNorthEast.x, thisNorthEast.y, point);
+  }
+
+  /**
+   * Computes the distance from a point to a rectangle given by its corners.
+   * @return distance on earth's surface in meters.
+   */
+  public static double getDistance(float minX, float minY, float maxX, float maxY,
+          Point point) {
+    double x;
 
-    if (point.x < southwest.x) {
-      x = southwest.x;
-    } else if (point.x > thisNorthEast.x) {
-      x = thisNorthEast.x;
+    if (point.x < minX) {
+      x = minX;
+    } else if (point.x > maxX) {
+      x = maxX;
     } else {
       x = point.x;
     }
 
     double y;
 
-    if (point.y < southwest.y) {
-      y = southwest.y;
-    } else if (point.y > thisNorthEast.y) {
-      y = thisNorthEast.y;
+    if (point.y < minY) {
+      y = minY;
+    } else if (point.y > maxY) {
+      y = maxY;
     } else {
       y = point.y;
     }
@@ -1,20 +1,16 @@
 package sks.rtree;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.ObjectInputStream;
 import java.io.PrintWriter;
-import java.io.Writer;
 import java.util.Hashtable;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.BitSet;
-import sks.Loader;
 import sks.QueryTextPredicate;
+import sks.sif.SNQueryBitmap;
 import sks.sif.SpatialInvertedFile;
 import sks.ski.SNInterval;
+import sks.util.ExternalSorter;
 
 public class Rtree implements Serializable {
   static final long serialVersionUID = -5185597343178749638L;
@@ -67,6 +63,17 @@ public class Rtree implements Serializable {
     storage.writeNode(root);
   }
 
+  /**
+   * Replaces the tree with one built by BulkLoader.
+   * @param root root node, stored in storage.
+   * @param storage storage holding all nodes of the new tree.
+   */
+  void setRoot(Node root, VolatileNodeStorage storage) {
+    root.parentRef = -1;
+    this.root = root;
+    this.storage = storage;
+  }
+
   public void emptyStorage() {
     if (storage != null) {
       storage.EmptyHashtable();
@@ -232,10 +239,11 @@ public class Rtree implements Serializable {
    * 
    * @param node subtree root node.
    * @param parentEntryId subtree's parent node ID.
-   * @param docOutput a documentNode writer.
+   * @param docEntries receives the pairs.
    * @throws java.io.IOException
    */
-  private void dumpNodeId(Node node, long parentEntryId, Writer docOutput) throws IOException {
+  private void dumpNodeId(Node node, long parentEntryId,
+          ExternalSorter<DocumentEntry> docEntries) throws IOException {
     int nodeSize = 0;
     long entryId = 0;
     long startEntryId = parentEntryId * maxCapacity;
@@ -250,7 +258,7 @@ public class Rtree implements Serializable {
       for (int i = 0; i < nodeSize; i++) {
         // write: "docRef entryID"
         entryId = startEntryId + i;
-        docOutput.write(node.refs[i] + Loader.FIELD_SEPARATOR + entryId + "\n");
+        docEntries.add(new DocumentEntry(node.refs[i], entryId));
       }
 
       return;
@@ -266,7 +274,7 @@ public class Rtree implements Serializable {
     for (int i = 0; i < nodeSize; i++) {
       entryId = startEntryId + i;
       Node childNode = storage.readNode(node.refs[i]);
-      dumpNodeId(childNode, entryId, docOutput);
+      dumpNodeId(childNode, entryId, docEntries);
 
       if (snBoundaries != null) {
         snBoundaries.set(i, childNode.size);
@@ -275,29 +283,18 @@ public class Rtree implements Serializable {
   } // private void dumpNodeID()
 
   /**
-   * Writes <docRef, nodeId> pairs into a file.
+   * Writes <docRef, nodeId> pairs into a sorter.
    * 
-   * @param docNodeFile stores the pairs sorted by docRef.
+   * @param docEntries receives the pairs, to be sorted by docRef.
    * @throws java.io.IOException
    */
-  public void dumpDocumentNodeIds(File docNodeFile) throws IOException {
-    Writer docOutput = null;
-    
-    try {
-      // "doc entry_id"
-      docOutput = new BufferedWriter(new FileWriter(docNodeFile), Loader.IO_BUFFER_SIZE);
-      
-      if (root.level > 2) {
-        snNodeBoundaries = new Hashtable<Integer, SuperNodeBoundary>();
-      }
+  public void dumpDocumentNodeIds(ExternalSorter<DocumentEntry> docEntries) throws IOException {
+    if (root.level > 2) {
+      snNodeBoundaries = new Hashtable<Integer, SuperNodeBoundary>();
+    }
 
-      for (int i = 0; i < root.size(); i++) {
-        dumpNodeId(storage.readNode(root.refs[i]), i, docOutput);
-      }
-    } finally {
-      if (docOutput != null) {
-        docOutput.close();
-      }
+    for (int i = 0; i < root.size(); i++) {
+      dumpNodeId(storage.readNode(root.refs[i]), i, docEntries);
     }
   } // public void dumpDocumentNodeIds()
   
@@ -321,7 +318,7 @@ public class Rtree implements Serializable {
    */
   public boolean isSubtreeCandidate(long entryId, short level,
           ArrayList<SNInterval> ncSNIntervals,
-          Hashtable<Integer, BitSet[]> bufferedSNbitmaps,
+          Hashtable<Integer, SNQueryBitmap> bufferedSNbitmaps,
           ArrayList<QueryTextPredicate> queryTextPredicates,
           SpatialInvertedFile sif) throws IOException {
     // Algorithm to compute super node interval to scan.
@@ -374,7 +371,7 @@ public class Rtree implements Serializable {
     }
 
     ArrayList<Integer> atSNId = new ArrayList<Integer>();
-    BitSet[] querySNbitmap = sif.getQuerySNbitmap(startSN, endSN,
+    SNQueryBitmap querySNbitmap = sif.getQuerySNbitmap(startSN, endSN,
                               queryTextPredicates, atSNId);
 
     if (querySNbitmap != null) {
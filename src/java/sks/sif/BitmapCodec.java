@@ -0,0 +1,36 @@
+package sks.sif;
+
+/**
+ * Compressed bitmap encodings of super node bitmaps. A bitmap store records
+ * the version of its codec; stores without one hold WAH bitmaps.
+ *
+ * @author Ariel Cary
+ */
+public enum BitmapCodec {
+  WAH(1),  // 31-bit words, WAHBitSet.
+  EWAH(2); // 64-bit words, EWAHBitSet.
+
+  private final int version;
+
+  private BitmapCodec(int version) {
+    this.version = version;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * @param version codec version.
+   * @return the codec, or null if the version is unknown.
+   */
+  public static BitmapCodec forVersion(int version) {
+    for (BitmapCodec codec : values()) {
+      if (codec.version == version) {
+        return codec;
+      }
+    }
+
+    return null;
+  }
+} // public enum BitmapCodec
@@ -1,6 +1,7 @@
 package sks.sif;
 
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,10 +19,37 @@ import jdbm.recman.CacheRecordManager;
  * @author acary001
  */
 public class BitmapStore {
+  // Named record holding the codec version of the stored bitmaps.
+  static private final String CODEC_SUFFIX = ".codec";
+  // Named B+tree of term frequencies: term -> TermFrequency.
+  static private final String TERMS_SUFFIX = ".terms";
+  // Named record of the FrontCodedTermDictionary of stores keyed by term Ids.
+  static private final String DICTIONARY_SUFFIX = ".dict";
+  // Named record of the TermSNFilter of stores keyed by term Ids.
+  static private final String FILTER_SUFFIX = ".snfilter";
+  // Named record of the NumericBins of stores with binned numeric fields.
+  static private final String NUMERIC_BINS_SUFFIX = ".numbins";
+  // Pages cached by a read-only store.
+  static private final int READ_ONLY_CACHE_SIZE = 10000;
+
   private RecordManager recordManager;
   private BTree bTree;
+  private BTree.BulkLoader bulkLoader = null;
+  private BTree termTree = null; // null in stores built without frequencies
+  private BTree.BulkLoader termBulkLoader = null;
+  // Stores keyed by TermAtSN, built before term Ids, have no dictionary.
+  private FrontCodedTermDictionary dictionary = null;
+  private long dictionaryRecId = 0;
+  private FrontCodedTermDictionary.Builder dictionaryBuilder = null;
+  private String bulkTerm = null;
+  private int bulkTermId = -1;
+  private TermSNFilter snFilter = null; // null in stores built without it
+  private TermSNFilter.Builder snFilterBuilder = null;
+  private NumericBins numericBins = null; // null in stores without them
+  private BitmapCodec codec = BitmapCodec.WAH;
   private String dbName;
   private String storePath;
+  private boolean readOnly = false;
 
   public BitmapStore(String category, String indexPath) {
     this.dbName = category;
@@ -32,6 +60,20 @@ public class BitmapStore {
     return (recordManager != null && bTree != null);
   }
 
+  /**
+   * Sets the mode of the store from its next startup. A read-only store
+   * serves queries concurrently: B+tree reads take no lock and pages are
+   * cached in a striped cache. Stores are built in read-write mode.
+   * @param readOnly
+   */
+  public void setReadOnly(boolean readOnly) {
+    this.readOnly = readOnly;
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
   public boolean startup() {
     shutdown();
 
@@ -49,11 +91,50 @@ public class BitmapStore {
       } else if (recId == 0) {
         // B+tree does not exist. Create a new instance.
         // EXP bTree = BTree.createInstance(recordManager, new TermComparator());
-        bTree = BTree.createInstance(recordManager, new TermAtSNComparator());
+        // Keys are <term Id, SN> pairs packed in a long, and keys and
+        // bitmaps are written in binary form. Stores created before keep
+        // the keys and serialization recorded with their B+tree.
+        bTree = BTree.createInstance(recordManager, new TermIdAtSNComparator(),
+                new TermIdAtSNSerializer(), new SuperNodeBitmapSerializer());
         recordManager.setNamedObject(dbName, bTree.getRecid());
+        recordManager.setNamedObject(dbName + DICTIONARY_SUFFIX,
+                recordManager.insert(new FrontCodedTermDictionary.Builder().build()));
         recordManager.commit();
       }
+
+      dictionaryRecId = recordManager.getNamedObject(dbName + DICTIONARY_SUFFIX);
+      dictionary = (dictionaryRecId != 0)?
+              (FrontCodedTermDictionary) recordManager.fetch(dictionaryRecId) : null;
+      long filterRecId = recordManager.getNamedObject(dbName + FILTER_SUFFIX);
+      snFilter = (filterRecId != 0)? (TermSNFilter) recordManager.fetch(filterRecId) : null;
+      long binsRecId = recordManager.getNamedObject(dbName + NUMERIC_BINS_SUFFIX);
+      numericBins = (binsRecId != 0)? (NumericBins) recordManager.fetch(binsRecId) : null;
+
+      // Stores without a codec version hold WAH bitmaps.
+      long codecRecId = recordManager.getNamedObject(dbName + CODEC_SUFFIX);
+      codec = BitmapCodec.WAH;
+
+      if (codecRecId != 0) {
+        int version = (Integer) recordManager.fetch(codecRecId);
+        codec = BitmapCodec.forVersion(version);
+
+        if (codec == null) {
+          throw new IOException("Unsupported bitmap codec version " + version + " in " + dbName);
+        }
+      }
       
+      long termsRecId = recordManager.getNamedObject(dbName + TERMS_SUFFIX);
+      termTree = (termsRecId != 0)? BTree.load(recordManager, termsRecId) : null;
+
+      if (readOnly) {
+        ((CacheRecordManager) recordManager).setReadOnly(true, READ_ONLY_CACHE_SIZE);
+        bTree.setReadOnly(true);
+
+        if (termTree != null) {
+          termTree.setReadOnly(true);
+        }
+      }
+
       return isStoreOpen();
     } catch (IOException e) {
       Logger.getLogger(BitmapStore.class.getName()).log(Level.SEVERE, null, e);
@@ -62,6 +143,11 @@ public class BitmapStore {
   } // public boolean startup()
   
   public boolean shutdown() {
+    bulkLoader = null;
+    termBulkLoader = null;
+    dictionaryBuilder = null;
+    snFilterBuilder = null;
+
     if (recordManager != null) {
       try {
         recordManager.commit();
@@ -73,6 +159,10 @@ public class BitmapStore {
       }
       recordManager = null;
       bTree = null;
+      termTree = null;
+      dictionary = null;
+      snFilter = null;
+      numericBins = null;
     }
 
     return true;
@@ -91,6 +181,75 @@ public class BitmapStore {
     return true;
   } // public boolean commit()
 
+  /**
+   * @return codec of the bitmaps in this store.
+   */
+  public BitmapCodec getCodec() {
+    return codec;
+  }
+
+  /**
+   * Sets and records the codec of the bitmaps of an empty store.
+   * @param codec
+   * @return false if the store is not open or not empty.
+   */
+  public boolean setCodec(BitmapCodec codec) {
+    if (!isStoreOpen() || bTree.size() > 0) {
+      return false;
+    }
+
+    try {
+      long codecRecId = recordManager.getNamedObject(dbName + CODEC_SUFFIX);
+      Integer version = new Integer(codec.getVersion());
+
+      if (codecRecId != 0) {
+        recordManager.update(codecRecId, version);
+      } else {
+        recordManager.setNamedObject(dbName + CODEC_SUFFIX, recordManager.insert(version));
+      }
+
+      this.codec = codec;
+      return true;
+    } catch (IOException e) {
+      Logger.getLogger(BitmapStore.class.getName()).log(Level.SEVERE, null, e);
+      return false;
+    }
+  } // public boolean setCodec()
+
+  /**
+   * @return bins of the numeric fields indexed in this store, or null.
+   */
+  public NumericBins getNumericBins() {
+    return numericBins;
+  }
+
+  /**
+   * Records the bins of the numeric fields indexed in this store.
+   * @param numericBins
+   * @return false if the store is not open.
+   */
+  public boolean setNumericBins(NumericBins numericBins) {
+    if (!isStoreOpen()) {
+      return false;
+    }
+
+    try {
+      long binsRecId = recordManager.getNamedObject(dbName + NUMERIC_BINS_SUFFIX);
+
+      if (binsRecId != 0) {
+        recordManager.update(binsRecId, numericBins);
+      } else {
+        recordManager.setNamedObject(dbName + NUMERIC_BINS_SUFFIX, recordManager.insert(numericBins));
+      }
+
+      this.numericBins = numericBins;
+      return true;
+    } catch (IOException e) {
+      Logger.getLogger(BitmapStore.class.getName()).log(Level.SEVERE, null, e);
+      return false;
+    }
+  } // public boolean setNumericBins()
+
   public void emptyCache() throws IOException {
     if (recordManager != null) {
       CacheRecordManager cachedTextRecman = (CacheRecordManager) recordManager;
@@ -127,40 +286,247 @@ public class BitmapStore {
     }
   }
 
+  /**
+   * Starts building an empty store from records inserted in key order
+   * (term, then snId). The B+tree is written bottom-up, page by page, until
+   * endBulkLoad() is called.
+   * @return false if the store is not open or not empty.
+   */
+  public boolean beginBulkLoad() {
+    if (!isStoreOpen() || bTree.size() > 0 ||
+        (termTree != null && termTree.size() > 0)) {
+      return false;
+    }
+
+    try {
+      if (termTree == null) {
+        termTree = BTree.createInstance(recordManager, new TermComparator());
+        recordManager.setNamedObject(dbName + TERMS_SUFFIX, termTree.getRecid());
+      }
+    } catch (IOException e) {
+      Logger.getLogger(BitmapStore.class.getName()).log(Level.SEVERE, null, e);
+      return false;
+    }
+
+    bulkLoader = bTree.bulkLoader();
+    termBulkLoader = termTree.bulkLoader();
+
+    if (dictionary != null) {
+      dictionaryBuilder = new FrontCodedTermDictionary.Builder();
+      snFilterBuilder = new TermSNFilter.Builder();
+      bulkTerm = null;
+    }
+
+    return true;
+  } // public boolean beginBulkLoad()
+
+  /**
+   * Writes the remaining B+tree pages of a bulk load.
+   * @throws IOException
+   */
+  public void endBulkLoad() throws IOException {
+    if (bulkLoader != null) {
+      bulkLoader.finish();
+      bulkLoader = null;
+    }
+
+    if (termBulkLoader != null) {
+      termBulkLoader.finish();
+      termBulkLoader = null;
+    }
+
+    if (dictionaryBuilder != null) {
+      dictionary = dictionaryBuilder.build();
+      recordManager.update(dictionaryRecId, dictionary);
+      dictionaryBuilder = null;
+      bulkTerm = null;
+    }
+
+    if (snFilterBuilder != null) {
+      snFilter = snFilterBuilder.build();
+      long filterRecId = recordManager.getNamedObject(dbName + FILTER_SUFFIX);
+
+      if (filterRecId != 0) {
+        recordManager.update(filterRecId, snFilter);
+      } else {
+        recordManager.setNamedObject(dbName + FILTER_SUFFIX, recordManager.insert(snFilter));
+      }
+
+      snFilterBuilder = null;
+    }
+  }
+
   /**
    * Inserts a record in the store. It replaces current value if any exists.
+   * During a bulk load, records must be inserted in key order.
    * @param term
    * @param snId
    * @param bm
    * @throws IOException
    */
   public void insert(String term, int snId, SuperNodeBitmap bm) throws IOException {
-    TermAtSN termAtSN = new TermAtSN(term, snId);
-    bTree.insert(termAtSN, bm, false);
+    Object key;
+
+    if (dictionary == null) {
+      key = new TermAtSN(term, snId);
+    } else if (dictionaryBuilder != null) {
+      // Terms come in order: each new term gets the next Id.
+      if (!term.equals(bulkTerm)) {
+        bulkTermId = dictionaryBuilder.add(term);
+        bulkTerm = term;
+      }
+
+      snFilterBuilder.add(bulkTermId, snId);
+
+      key = new Long(TermIdAtSN.key(bulkTermId, snId));
+    } else {
+      int termId = dictionary.getId(term);
+
+      if (termId < 0) {
+        throw new IOException("Term " + term + " is not in the dictionary of " + dbName);
+      }
+
+      key = new Long(TermIdAtSN.key(termId, snId));
+    }
+
+    if (bulkLoader != null) {
+      bulkLoader.add(key, bm);
+    } else {
+      bTree.insert(key, bm, false);
+    }
+  } // public void insert()
+
+  /**
+   * @return true if store keys are term Ids packed by TermIdAtSN, false if
+   * they are TermAtSN pairs.
+   */
+  public boolean hasTermIds() {
+    return dictionary != null;
+  }
+
+  /**
+   * @param term
+   * @return Id of the term, or -1 if the term is not in the store or the
+   * store is keyed by TermAtSN.
+   */
+  public int getTermId(String term) {
+    FrontCodedTermDictionary tmpDictionary = dictionary;
+    return (tmpDictionary != null)? tmpDictionary.getId(term) : -1;
+  }
+
+  /**
+   * Tells, without reading the B+tree, whether a term may have postings in
+   * a SN interval.
+   * @param termId getTermId(term).
+   * @param startSN
+   * @param endSN
+   * @return false if the term has no posting in [startSN, endSN], true if it
+   * may have one or the store has no TermSNFilter.
+   */
+  public boolean mayContain(int termId, int startSN, int endSN) {
+    TermSNFilter tmpFilter = snFilter;
+    return (tmpFilter != null)? tmpFilter.mayContain(termId, startSN, endSN) : true;
+  }
+
+  /**
+   * @param termId getTermId(term).
+   * @return groups of TermSNFilter.GROUP_SIZE SNs where the term may have
+   * postings, or null if they are not known.
+   */
+  public BitSet getGroups(int termId) {
+    TermSNFilter tmpFilter = snFilter;
+    return (tmpFilter != null)? tmpFilter.getGroups(termId) : null;
+  }
+
+  /**
+   * @param term
+   * @param termId getTermId(term).
+   * @param snId
+   * @return key of the term at a SN in this store.
+   * @throws IOException
+   */
+  public Object getKey(String term, int termId, int snId) throws IOException {
+    if (dictionary != null) {
+      return new Long(TermIdAtSN.key(termId, snId));
+    } else {
+      return new TermAtSN(term, snId);
+    }
+  }
+
+  /**
+   * Records the frequency of a term. During a bulk load, terms must be
+   * inserted in order.
+   * @param term
+   * @param frequency
+   * @throws IOException
+   */
+  public void insertTermFrequency(String term, TermFrequency frequency) throws IOException {
+    if (termBulkLoader != null) {
+      termBulkLoader.add(term, frequency);
+    } else if (termTree != null) {
+      termTree.insert(term, frequency, true);
+    }
+  }
+
+  /**
+   * @return true if the store records term frequencies.
+   */
+  public boolean hasTermFrequencies() {
+    return isStoreOpen() && termTree != null;
+  }
+
+  /**
+   * @param term
+   * @return frequency of the term, or null if the term is not in the store
+   * or the store has no term frequencies.
+   * @throws IOException
+   */
+  public TermFrequency getTermFrequency(String term) throws IOException {
+    if (!hasTermFrequencies()) {
+      return null;
+    }
+
+    return (TermFrequency) termTree.find(term);
   }
 
   /**
    * 
-   * @param key
+   * @param key see getKey().
    * @return
    * @throws IOException
    */
-  public TupleBrowser browse(TermAtSN key) throws IOException {
+  public TupleBrowser browse(Object key) throws IOException {
     if (isStoreOpen()) {
-      return bTree.browse((Object) key);
+      return bTree.browse(key);
     } else {
       return null;
     }
   }
 
-  public SuperNodeBitmap find(TermAtSN key) throws IOException {
+  /**
+   * Moves a browser forward to the first record at or after key, without
+   * reading the records in between. It never moves backwards.
+   * @param browser browser returned by browse().
+   * @param key see getKey().
+   * @throws IOException
+   */
+  public void seek(TupleBrowser browser, Object key) throws IOException {
+    if (isStoreOpen()) {
+      bTree.seek(browser, key);
+    }
+  }
+
+  /**
+   * @param key see getKey().
+   */
+  public SuperNodeBitmap find(Object key) throws IOException {
     if (!isStoreOpen()) {
       if (!startup()) {
         return null;
       }
     }
 
-    Object object = bTree.find((Object) key);
+    Object object = bTree.find(key);
 
     if (object != null && object instanceof SuperNodeBitmap) {
       return ((SuperNodeBitmap) object);
@@ -169,16 +535,18 @@ public class BitmapStore {
     }
   }
 
-  public Tuple findGreaterOrEqual(TermAtSN key) throws IOException {
+  /**
+   * @param key see getKey().
+   */
+  public Tuple findGreaterOrEqual(Object key) throws IOException {
     if (!isStoreOpen()) {
       if (!startup()) {
         return null;
       }
     }
 
-    Tuple tuple = bTree.findGreaterOrEqual((Object) key);
-    if (tuple != null && tuple.getKey() instanceof TermAtSN &&
-        tuple.getValue() instanceof SuperNodeBitmap) {
+    Tuple tuple = bTree.findGreaterOrEqual(key);
+    if (tuple != null && tuple.getValue() instanceof SuperNodeBitmap) {
       return tuple;
     } else {
       return null;
@@ -7,6 +7,9 @@
 
 package sks.sif;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.BitSet;
 
@@ -14,48 +17,145 @@ import java.util.BitSet;
  * Implements a compressed bitmap object.
  * This is a key object in the spatial keyword index.
  * Modifying this class usually means rebuilding the index.
+ * <p>
+ * The bitmap is encoded with one codec (see BitmapCodec): exactly one of
+ * bitmap (WAH) and ewahBitmap (EWAH) is set. Bitmaps serialized before
+ * EWAH existed have no ewahBitmap and read as WAH.
  *
  * @author Ariel Cary
  */
 public class CBitmap implements Serializable {
   static final long serialVersionUID = -8641513433515117242L;
   private WAHBitSet bitmap;
+  private EWAHBitSet ewahBitmap;
 
   /** Creates a new instance of CBitmap */
   public CBitmap(BitSet bs) {
     this.bitmap = new WAHBitSet(bs);
   }
 
+  /** Creates a new instance of CBitmap with the given codec. */
+  public CBitmap(BitSet bs, BitmapCodec codec) {
+    if (codec == BitmapCodec.EWAH) {
+      this.ewahBitmap = EWAHBitSet.valueOf(bs);
+    } else {
+      this.bitmap = new WAHBitSet(bs);
+    }
+  }
+
   /** Creates a new instance of CBitmap */
   public CBitmap(WAHBitSet cbs) {
     this.bitmap = cbs;
   }
 
+  /** Creates a new instance of CBitmap */
+  public CBitmap(EWAHBitSet cbs) {
+    this.ewahBitmap = cbs;
+  }
+
+  /**
+   * @return a bitmap with bits [0, nbits) set.
+   */
+  public static CBitmap ones(int nbits, BitmapCodec codec) {
+    if (codec == BitmapCodec.EWAH) {
+      return new CBitmap(EWAHBitSet.ones(nbits));
+    } else {
+      return new CBitmap(WAHBitSet.ones(nbits));
+    }
+  }
+
+  /**
+   * Writes the codec version and the compressed words; see readFrom().
+   */
+  void writeTo(DataOutput out) throws IOException {
+    out.writeByte(getCodec().getVersion());
+
+    if (ewahBitmap != null) {
+      ewahBitmap.writeTo(out);
+    } else {
+      bitmap.writeTo(out);
+    }
+  }
+
+  /**
+   * Reads a bitmap written by writeTo().
+   */
+  static CBitmap readFrom(DataInput in) throws IOException {
+    int version = in.readUnsignedByte();
+    BitmapCodec codec = BitmapCodec.forVersion(version);
+
+    if (codec == BitmapCodec.EWAH) {
+      return new CBitmap(EWAHBitSet.readFrom(in));
+    } else if (codec == BitmapCodec.WAH) {
+      return new CBitmap(WAHBitSet.readFrom(in));
+    } else {
+      throw new IOException("Unsupported bitmap codec version " + version);
+    }
+  }
+
+  public BitmapCodec getCodec() {
+    return (ewahBitmap != null)? BitmapCodec.EWAH : BitmapCodec.WAH;
+  }
+
+  /**
+   * @return the other bitmap in the codec of this one. Bitmaps of one index
+   * share a codec, so conversions are rare.
+   */
+  private CBitmap operand(CBitmap cBitmap) {
+    if (cBitmap.getCodec() == getCodec()) {
+      return cBitmap;
+    } else {
+      return new CBitmap(cBitmap.getBitSet(), getCodec());
+    }
+  }
+
   public int cardinality() {
-    if (bitmap != null) {
+    if (ewahBitmap != null) {
+      return ewahBitmap.cardinality();
+    } else if (bitmap != null) {
       return bitmap.cardinality();
     } else {
       return 0;
     }
   }
 
+  /**
+   * @return size of the compressed words in bytes.
+   */
+  public int sizeInBytes() {
+    if (ewahBitmap != null) {
+      return ewahBitmap.sizeInBytes();
+    } else if (bitmap != null) {
+      return (int) bitmap.memSize() * 4;
+    } else {
+      return 0;
+    }
+  }
+
   public CBitmap and(CBitmap cBitmap) {
     if (cBitmap != null) {
+      cBitmap = operand(cBitmap);
+
+      if (ewahBitmap != null) {
+        return new CBitmap(this.ewahBitmap.and(cBitmap.ewahBitmap));
+      }
+
       return new CBitmap(this.bitmap.and(cBitmap.bitmap));
     } else {
       return null;
     }
   } // public CBitmap and()
 
+  /**
+   * Intersection computed on the compressed words.
+   * @return null if no bit is set in both bitmaps.
+   */
   public CBitmap sAnd(CBitmap cBitmap, int nbits) {
     if (cBitmap != null) {
-      // uncompress bitmaps
-      BitSet bs1 = this.getBitSet(nbits);
-      BitSet bs2 = cBitmap.getBitSet(nbits);
-      bs1.and(bs2);
+      CBitmap result = this.and(cBitmap);
 
-      if (bs1.cardinality() > 0) {
-        return new CBitmap(bs1);
+      if (result.cardinality() > 0) {
+        return result;
       } else {
         return null;
       }
@@ -64,19 +164,40 @@ public class CBitmap implements Serializable {
     }
   }
 
+  /**
+   * Union computed on the compressed words.
+   */
   public CBitmap or(CBitmap cBitmap, int nbits) {
     if (cBitmap != null) {
-      // uncompress bitmaps
-      BitSet bs1 = this.getBitSet(nbits);
-      BitSet bs2 = cBitmap.getBitSet(nbits);
-      bs1.or(bs2);
+      cBitmap = operand(cBitmap);
 
-      return new CBitmap(bs1);
+      if (ewahBitmap != null) {
+        return new CBitmap(this.ewahBitmap.or(cBitmap.ewahBitmap));
+      }
+
+      return new CBitmap(this.bitmap.or(cBitmap.bitmap));
     } else {  // Nothing to do.
       return null;
     }
   }
 
+  /**
+   * Bits of this bitmap not set in cBitmap, computed on the compressed words.
+   */
+  public CBitmap andNot(CBitmap cBitmap) {
+    if (cBitmap != null) {
+      cBitmap = operand(cBitmap);
+
+      if (ewahBitmap != null) {
+        return new CBitmap(this.ewahBitmap.andNot(cBitmap.ewahBitmap));
+      }
+
+      return new CBitmap(this.bitmap.andNot(cBitmap.bitmap));
+    } else {
+      return this;
+    }
+  }
+
   /**
    * Retuns uncompressed version of this bitmap.
    */
@@ -85,7 +206,9 @@ public class CBitmap implements Serializable {
   }
 
   public WAHBitSet.IndexSet getIndexSet() {
-    if (bitmap != null) {
+    if (ewahBitmap != null) {
+      return new WAHBitSet(getBitSet()).getIndexSet();
+    } else if (bitmap != null) {
       return this.bitmap.getIndexSet();
     } else {
       return null;
@@ -93,7 +216,9 @@ public class CBitmap implements Serializable {
   }
 
   public WAHBitSet.WAHIterator getIterator() {
-    if (bitmap != null) {
+    if (ewahBitmap != null) {
+      return (WAHBitSet.WAHIterator) new WAHBitSet(getBitSet()).iterator();
+    } else if (bitmap != null) {
       return (WAHBitSet.WAHIterator) this.bitmap.iterator();
     } else {
       return null;
@@ -101,20 +226,43 @@ public class CBitmap implements Serializable {
   }
 
   /**
-   * Flips the bits in this CBitmap.
+   * Flips the first nbits bits in this CBitmap, without decompressing it.
    *
-   * @param nBits initial size of the resulting BitSet.
+   * @param nBits number of bits to flip.
    */
   public CBitmap flip(int nbits) {
-    BitSet fbs = getBitSet(nbits);
-    fbs.flip(0, nbits);
-    return (new CBitmap(fbs));
+    if (ewahBitmap != null) {
+      return new CBitmap(this.ewahBitmap.not(nbits));
+    }
+
+    return new CBitmap(this.bitmap.not(nbits));
   }
 
   public BitSet flipBS(int nbits) {
-    BitSet fbs = getBitSet(nbits);
-    fbs.flip(0, nbits);
-    return fbs;
+    return flip(nbits).getBitSet(nbits);
+  }
+
+  /**
+   * Returns the bits in [fromIndex, toIndex), e.g. the bitmap of one node
+   * in a super node, decoding only the words that cover them.
+   */
+  public BitSet getBitSet(int fromIndex, int toIndex) {
+    if (ewahBitmap != null) {
+      return this.ewahBitmap.get(fromIndex, toIndex);
+    }
+
+    return this.bitmap.get(fromIndex, toIndex);
+  }
+
+  /**
+   * @return index of the first set bit at or after fromIndex, or -1.
+   */
+  public int nextSetBit(int fromIndex) {
+    if (ewahBitmap != null) {
+      return this.ewahBitmap.nextSetBit(fromIndex);
+    }
+
+    return this.bitmap.nextSetBit(fromIndex);
   }
 
   /**
@@ -123,6 +271,10 @@ public class CBitmap implements Serializable {
    * @param nBits initial size of the resulting BitSet.
    */
   public BitSet getBitSet(int nBits) {
+    if (ewahBitmap != null) {
+      return ewahBitmap.getBitSet();
+    }
+
     BitSet bs = null;
     if (nBits > 0) {
       bs = new BitSet(nBits);
@@ -171,6 +323,6 @@ public class CBitmap implements Serializable {
       bits = bits.substring(i, i + 3000) + " ...}";
     }
     
-    return ("[card=" + bitmap.cardinality() + ", bits=" + bits + "]");
+    return ("[card=" + cardinality() + ", bits=" + bits + "]");
   }
 } // public class CBitmap implements Serializable
\ No newline at end of file
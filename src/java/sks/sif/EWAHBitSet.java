@@ -0,0 +1,495 @@
+/*
+ * EWAHBitSet.java
+ */
+
+package sks.sif;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import sks.util.ExternalSorter;
+
+/**
+ * Compressed bitmap with 64-bit words, in the Enhanced Word-Aligned Hybrid
+ * (EWAH) layout. Words of all zeros or all ones ("clean" words) are run
+ * length encoded; any other word is stored verbatim ("literal" words).
+ * <p>
+ * The words are a sequence of marker words, each one followed by its
+ * literal words. A marker word holds, from the lowest bit:
+ * the value of the clean run (1 bit), the run length in words (32 bits)
+ * and the number of literal words that follow (31 bits).
+ * Bit i of the bitmap is bit (i % 64) of uncompressed word i / 64, as in
+ * BitSet. Bitmaps are immutable once built.
+ *
+ * @author Ariel Cary
+ */
+public class EWAHBitSet implements Serializable {
+  static final long serialVersionUID = 5184230977519214718L;
+
+  static private final int WORD_BITS = 64;
+  static private final long MAX_RUN_LENGTH = 0xFFFFFFFFL;
+  static private final int MAX_LITERALS = 0x7FFFFFFF;
+
+  private long[] words;
+  private int size = 0;       // words used
+  private int sizeInBits = 0; // bitmap length
+  private int marker = 0;     // position of the last marker word
+
+  private EWAHBitSet(int capacity) {
+    words = new long[Math.max(capacity, 1)];
+    size = 1; // First marker word.
+  }
+
+  /**
+   * Compresses uncompressed words.
+   * @param bits uncompressed words, bit i in bits[i / 64].
+   * @param sizeInBits bitmap length; higher bits must be clear.
+   */
+  public static EWAHBitSet valueOf(long[] bits, int sizeInBits) {
+    int nWords = (sizeInBits + WORD_BITS - 1) / WORD_BITS;
+    EWAHBitSet ret = new EWAHBitSet(Math.min(nWords, 16) + 1);
+
+    for (int i = 0; i < nWords; i++) {
+      ret.addWord((i < bits.length)? bits[i] : 0L);
+    }
+
+    ret.sizeInBits = sizeInBits;
+    ret.trim();
+    return ret;
+  } // public static EWAHBitSet valueOf()
+
+  /**
+   * Compresses a BitSet, word by word.
+   */
+  public static EWAHBitSet valueOf(BitSet bs) {
+    return valueOf(toWords(bs), bs.length());
+  }
+
+  /**
+   * @return a bitmap with bits [0, nbits) set.
+   */
+  public static EWAHBitSet ones(int nbits) {
+    EWAHBitSet ret = new EWAHBitSet(2);
+    ret.addRun(true, nbits / WORD_BITS);
+
+    if (nbits % WORD_BITS > 0) {
+      ret.addWord((1L << (nbits % WORD_BITS)) - 1);
+    }
+
+    ret.sizeInBits = nbits;
+    ret.trim();
+    return ret;
+  } // public static EWAHBitSet ones()
+
+  /**
+   * Packs the bits of a BitSet into words, one run of set bits at a time.
+   */
+  static long[] toWords(BitSet bs) {
+    long[] bits = new long[(bs.length() + WORD_BITS - 1) / WORD_BITS];
+
+    for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i)) {
+      int end = bs.nextClearBit(i);
+
+      while (i < end) {
+        int w = i / WORD_BITS;
+        int to = Math.min(end, (w + 1) * WORD_BITS);
+        int n = to - i;
+        bits[w] |= ((n == WORD_BITS)? -1L : ((1L << n) - 1)) << (i % WORD_BITS);
+        i = to;
+      }
+    }
+
+    return bits;
+  } // static long[] toWords()
+
+  // Marker word fields.
+
+  private static boolean runBit(long m) {
+    return (m & 1) != 0;
+  }
+
+  private static long runLength(long m) {
+    return (m >>> 1) & MAX_RUN_LENGTH;
+  }
+
+  private static int literals(long m) {
+    return (int) (m >>> 33);
+  }
+
+  private static long newMarker(boolean bit, long runLength, int literals) {
+    return (bit? 1L : 0L) | (runLength << 1) | ((long) literals << 33);
+  }
+
+  private void append(long w) {
+    if (size == words.length) {
+      words = Arrays.copyOf(words, words.length * 2);
+    }
+
+    words[size++] = w;
+  }
+
+  /**
+   * Appends n clean words.
+   */
+  private void addRun(boolean bit, long n) {
+    while (n > 0) {
+      long m = words[marker];
+
+      if (literals(m) == 0 && (runLength(m) == 0 || runBit(m) == bit) &&
+          runLength(m) < MAX_RUN_LENGTH) {
+        long k = Math.min(n, MAX_RUN_LENGTH - runLength(m));
+        words[marker] = newMarker(bit, runLength(m) + k, 0);
+        n -= k;
+      } else {
+        append(newMarker(bit, 0, 0));
+        marker = size - 1;
+      }
+    }
+  } // private void addRun()
+
+  /**
+   * Appends an uncompressed word.
+   */
+  private void addWord(long w) {
+    if (w == 0L) {
+      addRun(false, 1);
+    } else if (w == -1L) {
+      addRun(true, 1);
+    } else {
+      if (literals(words[marker]) == MAX_LITERALS) {
+        append(newMarker(false, 0, 0));
+        marker = size - 1;
+      }
+
+      long m = words[marker];
+      words[marker] = newMarker(runBit(m), runLength(m), literals(m) + 1);
+      append(w);
+    }
+  } // private void addWord()
+
+  private void trim() {
+    if (words.length > size) {
+      words = Arrays.copyOf(words, size);
+    }
+  }
+
+  /**
+   * Writes the compressed words in binary form; see readFrom().
+   */
+  void writeTo(DataOutput out) throws IOException {
+    ExternalSorter.writeVarLong(out, sizeInBits);
+    ExternalSorter.writeVarLong(out, marker);
+    ExternalSorter.writeVarLong(out, size);
+
+    for (int i = 0; i < size; i++) {
+      out.writeLong(words[i]);
+    }
+  }
+
+  /**
+   * Reads a bitmap written by writeTo().
+   */
+  static EWAHBitSet readFrom(DataInput in) throws IOException {
+    int sizeInBits = (int) ExternalSorter.readVarLong(in);
+    int marker = (int) ExternalSorter.readVarLong(in);
+    int size = (int) ExternalSorter.readVarLong(in);
+    EWAHBitSet ret = new EWAHBitSet(size);
+
+    for (int i = 0; i < size; i++) {
+      ret.words[i] = in.readLong();
+    }
+
+    ret.size = size;
+    ret.sizeInBits = sizeInBits;
+    ret.marker = marker;
+    return ret;
+  } // static EWAHBitSet readFrom()
+
+  public int sizeInBits() {
+    return sizeInBits;
+  }
+
+  /**
+   * @return size of the compressed words in bytes.
+   */
+  public int sizeInBytes() {
+    return size * 8;
+  }
+
+  public int cardinality() {
+    int count = 0;
+    int i = 0;
+
+    while (i < size) {
+      long m = words[i++];
+
+      if (runBit(m)) {
+        count += runLength(m) * WORD_BITS;
+      }
+
+      for (int j = literals(m); j > 0; j--) {
+        count += Long.bitCount(words[i++]);
+      }
+    }
+
+    return count;
+  } // public int cardinality()
+
+  /**
+   * @return index of the first set bit at or after fromIndex, or -1.
+   */
+  public int nextSetBit(int fromIndex) {
+    fromIndex = Math.max(fromIndex, 0);
+    long start = 0; // first bit of the current word
+    int i = 0;
+
+    while (i < size) {
+      long m = words[i++];
+      long end = start + runLength(m) * WORD_BITS;
+
+      if (runBit(m) && end > fromIndex) {
+        return (int) Math.max(start, fromIndex);
+      }
+
+      start = end;
+      int n = literals(m);
+
+      if (start + (long) n * WORD_BITS <= fromIndex) {
+        // Skip the literal words.
+        i += n;
+        start += (long) n * WORD_BITS;
+        continue;
+      }
+
+      for (; n > 0; n--, start += WORD_BITS) {
+        long w = words[i++];
+
+        if (fromIndex > start) {
+          w &= (fromIndex - start >= WORD_BITS)? 0L : (-1L << (fromIndex - start));
+        }
+
+        if (w != 0) {
+          return (int) (start + Long.numberOfTrailingZeros(w));
+        }
+      }
+    } // while (i < size)
+
+    return -1;
+  } // public int nextSetBit()
+
+  /**
+   * @return bits [fromIndex, toIndex) at [0, toIndex - fromIndex).
+   */
+  public BitSet get(int fromIndex, int toIndex) {
+    BitSet ret = new BitSet(Math.max(toIndex - fromIndex, 0));
+    long start = 0;
+    int i = 0;
+
+    while (i < size && start < toIndex) {
+      long m = words[i++];
+      long end = start + runLength(m) * WORD_BITS;
+
+      if (runBit(m) && end > fromIndex) {
+        ret.set((int) Math.max(start, fromIndex) - fromIndex,
+                (int) Math.min(end, toIndex) - fromIndex);
+      }
+
+      start = end;
+      int n = literals(m);
+
+      if (start + (long) n * WORD_BITS <= fromIndex) {
+        i += n;
+        start += (long) n * WORD_BITS;
+        continue;
+      }
+
+      for (; n > 0; n--, start += WORD_BITS) {
+        long w = words[i++];
+
+        while (w != 0 && start < toIndex) {
+          long index = start + Long.numberOfTrailingZeros(w);
+
+          if (index >= toIndex) {
+            break;
+          }
+
+          if (index >= fromIndex) {
+            ret.set((int) (index - fromIndex));
+          }
+
+          w &= w - 1;
+        }
+      }
+    } // while (i < size && start < toIndex)
+
+    return ret;
+  } // public BitSet get()
+
+  /**
+   * @return uncompressed bitmap.
+   */
+  public BitSet getBitSet() {
+    return get(0, sizeInBits);
+  }
+
+  public EWAHBitSet and(EWAHBitSet other) {
+    return op(Op.AND, other);
+  }
+
+  public EWAHBitSet or(EWAHBitSet other) {
+    return op(Op.OR, other);
+  }
+
+  public EWAHBitSet andNot(EWAHBitSet other) {
+    return op(Op.AND_NOT, other);
+  }
+
+  public EWAHBitSet xor(EWAHBitSet other) {
+    return op(Op.XOR, other);
+  }
+
+  /**
+   * @return this bitmap with bits [0, nbits) flipped.
+   */
+  public EWAHBitSet not(int nbits) {
+    return op(Op.XOR, ones(nbits));
+  }
+
+  private enum Op { AND, OR, AND_NOT, XOR }
+
+  private static long apply(Op op, long x, long y) {
+    switch (op) {
+      case AND:
+        return x & y;
+      case OR:
+        return x | y;
+      case AND_NOT:
+        return x & ~y;
+      default:
+        return x ^ y;
+    }
+  }
+
+  /**
+   * @return true if a clean word of x (or y when left is false) gives the
+   * result of op on its own.
+   */
+  private static boolean decides(Op op, long cleanWord, boolean left) {
+    switch (op) {
+      case AND:
+        return cleanWord == 0;
+      case OR:
+        return cleanWord == -1L;
+      case AND_NOT:
+        return left? cleanWord == 0 : cleanWord == -1L;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Merges both bitmaps word by word. Clean runs are combined in one step,
+   * and a clean run that decides the result skips the other operand's words.
+   * The shorter bitmap is taken as padded with zeros.
+   */
+  private EWAHBitSet op(Op op, EWAHBitSet other) {
+    int length = Math.max(sizeInBits, other.sizeInBits);
+    long nWords = (length + WORD_BITS - 1) / WORD_BITS;
+    EWAHBitSet ret = new EWAHBitSet(Math.max(size, other.size) + 1);
+    Cursor x = new Cursor(this), y = new Cursor(other);
+
+    while (nWords > 0) {
+      long n;
+
+      if (x.isClean() && y.isClean()) {
+        n = Math.min(Math.min(x.count, y.count), nWords);
+        ret.addRun(apply(op, x.word, y.word) != 0, n);
+      } else if (x.isClean() && decides(op, x.word, true)) {
+        n = Math.min(x.count, nWords);
+        ret.addRun(apply(op, x.word, 0) != 0, n);
+      } else if (y.isClean() && decides(op, y.word, false)) {
+        n = Math.min(y.count, nWords);
+        ret.addRun(apply(op, 0, y.word) != 0, n);
+      } else {
+        n = 1;
+        ret.addWord(apply(op, x.word, y.word));
+      }
+
+      x.skip(n);
+      y.skip(n);
+      nWords -= n;
+    } // while (nWords > 0)
+
+    ret.sizeInBits = length;
+    ret.trim();
+    return ret;
+  } // private EWAHBitSet op()
+
+  /**
+   * Reads the words of a bitmap as runs: a clean run of count words, or one
+   * literal word. Clean words follow the last word.
+   */
+  private static final class Cursor {
+    private final long[] words;
+    private final int size;
+    private int i = 0;            // next word to read
+    private int literalsLeft = 0; // literal words left after the marker
+    long word;                    // clean word (0 or -1) or literal word
+    long count;                   // words left in the run
+    boolean clean;
+
+    Cursor(EWAHBitSet b) {
+      words = b.words;
+      size = b.size;
+      load();
+    }
+
+    boolean isClean() {
+      return clean || word == 0 || word == -1L;
+    }
+
+    void skip(long n) {
+      while (n > 0) {
+        long k = Math.min(n, count);
+        count -= k;
+        n -= k;
+
+        if (count == 0) {
+          load();
+        }
+      }
+    } // void skip()
+
+    private void load() {
+      while (true) {
+        if (literalsLeft > 0) {
+          literalsLeft--;
+          clean = false;
+          word = words[i++];
+          count = 1;
+          return;
+        }
+
+        if (i >= size) {
+          clean = true;
+          word = 0;
+          count = Long.MAX_VALUE;
+          return;
+        }
+
+        long m = words[i++];
+        literalsLeft = literals(m);
+
+        if (runLength(m) > 0) {
+          clean = true;
+          word = runBit(m)? -1L : 0L;
+          count = runLength(m);
+          return;
+        }
+      } // while (true)
+    } // private void load()
+  } // private static final class Cursor
+} // public class EWAHBitSet
@@ -0,0 +1,266 @@
+package sks.sif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Sorted dictionary of the terms of a bitmap store. A term's Id is its rank,
+ * so term Ids order as terms do (String.compareTo()).
+ * <p>
+ * Terms are front-coded in blocks of BLOCK_SIZE terms: the first term of a
+ * block is written whole, every other term as the length of the prefix it
+ * shares with the previous term and the remaining bytes. Lookups search the
+ * block heads, then decode one block. Chars are encoded one by one with a
+ * UTF-8 like scheme, so unsigned byte order is the order of the terms.
+ * Instances are immutable and may be shared by concurrent queries.
+ *
+ * @author Ariel Cary
+ */
+public class FrontCodedTermDictionary implements Serializable {
+  static final long serialVersionUID = 2853021547993311730L;
+  private static final int BLOCK_SIZE = 16;
+
+  private int size;
+  private int[] blockOffsets; // position of each block in data
+  private byte[] data;
+
+  private FrontCodedTermDictionary(int size, int[] blockOffsets, byte[] data) {
+    this.size = size;
+    this.blockOffsets = blockOffsets;
+    this.data = data;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return Id of the term, or -1 if it is not in the dictionary.
+   */
+  public int getId(String term) {
+    byte[] key = encode(term);
+    int[] pos = new int[1];
+
+    // Find the last block whose head is not greater than term.
+    int low = 0;
+    int high = blockOffsets.length - 1;
+    int block = -1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      pos[0] = blockOffsets[mid];
+      int length = readVarInt(data, pos);
+      int c = compare(data, pos[0], length, key, key.length);
+
+      if (c == 0) {
+        return mid * BLOCK_SIZE;
+      } else if (c < 0) {
+        block = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    if (block < 0) {
+      return -1;
+    }
+
+    // Decode the block.
+    byte[] buffer = new byte[Math.max(key.length, 16)];
+    pos[0] = blockOffsets[block];
+    int length = readVarInt(data, pos);
+    buffer = copy(buffer, 0, pos, length);
+    int count = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+
+    for (int i = 1; i < count; i++) {
+      int prefix = readVarInt(data, pos);
+      int suffix = readVarInt(data, pos);
+      buffer = copy(buffer, prefix, pos, suffix);
+      length = prefix + suffix;
+      int c = compare(buffer, 0, length, key, key.length);
+
+      if (c == 0) {
+        return block * BLOCK_SIZE + i;
+      } else if (c > 0) {
+        break;
+      }
+    }
+
+    return -1;
+  } // public int getId()
+
+  /**
+   * @return term with the given Id.
+   */
+  public String getTerm(int id) {
+    if (id < 0 || id >= size) {
+      throw new IndexOutOfBoundsException("Term Id " + id + " of " + size);
+    }
+
+    int[] pos = new int[] {blockOffsets[id / BLOCK_SIZE]};
+    int length = readVarInt(data, pos);
+    byte[] buffer = copy(new byte[Math.max(length, 16)], 0, pos, length);
+
+    for (int i = 0; i < id % BLOCK_SIZE; i++) {
+      int prefix = readVarInt(data, pos);
+      int suffix = readVarInt(data, pos);
+      buffer = copy(buffer, prefix, pos, suffix);
+      length = prefix + suffix;
+    }
+
+    return decode(buffer, length);
+  }
+
+  /**
+   * Copies length bytes of data at pos[0] to buffer at offset, growing the
+   * buffer if needed, and advances pos[0].
+   */
+  private byte[] copy(byte[] buffer, int offset, int[] pos, int length) {
+    if (offset + length > buffer.length) {
+      buffer = Arrays.copyOf(buffer, 2 * (offset + length));
+    }
+
+    System.arraycopy(data, pos[0], buffer, offset, length);
+    pos[0] += length;
+    return buffer;
+  }
+
+  /**
+   * Unsigned lexicographic order of byte strings.
+   */
+  private static int compare(byte[] b1, int offset1, int length1, byte[] b2, int length2) {
+    int n = Math.min(length1, length2);
+
+    for (int i = 0; i < n; i++) {
+      int c = (b1[offset1 + i] & 0xFF) - (b2[i] & 0xFF);
+
+      if (c != 0) {
+        return c;
+      }
+    }
+
+    return length1 - length2;
+  }
+
+  private static byte[] encode(String term) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(term.length() + 4);
+
+    for (int i = 0; i < term.length(); i++) {
+      char c = term.charAt(i);
+
+      if (c < 0x80) {
+        out.write(c);
+      } else if (c < 0x800) {
+        out.write(0xC0 | (c >> 6));
+        out.write(0x80 | (c & 0x3F));
+      } else {
+        out.write(0xE0 | (c >> 12));
+        out.write(0x80 | ((c >> 6) & 0x3F));
+        out.write(0x80 | (c & 0x3F));
+      }
+    }
+
+    return out.toByteArray();
+  } // private static byte[] encode()
+
+  private static String decode(byte[] bytes, int length) {
+    StringBuilder term = new StringBuilder(length);
+
+    for (int i = 0; i < length; i++) {
+      int b = bytes[i] & 0xFF;
+
+      if (b < 0x80) {
+        term.append((char) b);
+      } else if (b < 0xE0) {
+        term.append((char) (((b & 0x1F) << 6) | (bytes[++i] & 0x3F)));
+      } else {
+        int c = ((b & 0x0F) << 12) | ((bytes[++i] & 0x3F) << 6);
+        term.append((char) (c | (bytes[++i] & 0x3F)));
+      }
+    }
+
+    return term.toString();
+  } // private static String decode()
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    out.write(value);
+  }
+
+  private static int readVarInt(byte[] data, int[] pos) {
+    int value = 0;
+
+    for (int shift = 0; ; shift += 7) {
+      int b = data[pos[0]++] & 0xFF;
+      value |= (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Builds a dictionary from terms added in increasing order.
+   */
+  public static class Builder {
+    private ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private int[] blockOffsets = new int[64];
+    private byte[] last = null;
+    private int size = 0;
+
+    /**
+     * @param term must be greater than the last term added.
+     * @return Id of the term.
+     */
+    public int add(String term) {
+      byte[] bytes = encode(term);
+
+      if (last != null && compare(bytes, 0, bytes.length, last, last.length) <= 0) {
+        throw new IllegalArgumentException("Term " + term + " is out of order");
+      }
+
+      if (size % BLOCK_SIZE == 0) {
+        int block = size / BLOCK_SIZE;
+
+        if (block == blockOffsets.length) {
+          blockOffsets = Arrays.copyOf(blockOffsets, 2 * block);
+        }
+
+        blockOffsets[block] = data.size();
+        writeVarInt(data, bytes.length);
+        data.write(bytes, 0, bytes.length);
+      } else {
+        int prefix = 0;
+        int n = Math.min(bytes.length, last.length);
+
+        while (prefix < n && bytes[prefix] == last[prefix]) {
+          prefix++;
+        }
+
+        writeVarInt(data, prefix);
+        writeVarInt(data, bytes.length - prefix);
+        data.write(bytes, prefix, bytes.length - prefix);
+      }
+
+      last = bytes;
+      return size++;
+    } // public int add()
+
+    public int size() {
+      return size;
+    }
+
+    public FrontCodedTermDictionary build() {
+      int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      return new FrontCodedTermDictionary(size, Arrays.copyOf(blockOffsets, blocks),
+              data.toByteArray());
+    }
+  } // public static class Builder
+} // public class FrontCodedTermDictionary
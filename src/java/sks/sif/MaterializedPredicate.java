@@ -0,0 +1,121 @@
+package sks.sif;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import sks.ComparisonOperator;
+import sks.QueryTextPredicate;
+import sks.ski.SNInterval;
+
+/**
+ * Query predicates evaluated once, at load time, e.g. the fixed predicates
+ * of a meta-category. Holds their conjunction at every SN where some object
+ * qualifies, so queries evaluate them in memory and skip the other SNs
+ * without reading the bitmap store. See
+ * SpatialInvertedFile.materializePredicates().
+ *
+ * @author Ariel Cary
+ */
+public class MaterializedPredicate extends QueryTextPredicate {
+  private final ArrayList<QueryTextPredicate> predicates;
+  private final CBitmap[] bitmaps; // indexed by SN Id; null if none qualifies
+  private final BitSet snIds = new BitSet();
+  private final BitSet groups = new BitSet(); // see TermSNFilter.getGroups()
+
+  /**
+   * @param predicates materialized predicates. Queries use the materialized
+   * bitmaps when they hold these very instances.
+   * @param bitmaps conjunction of the predicates at each SN.
+   */
+  MaterializedPredicate(ArrayList<QueryTextPredicate> predicates, CBitmap[] bitmaps) {
+    super(ComparisonOperator.EQUAL, (short) -1, "");
+    this.predicates = new ArrayList<QueryTextPredicate>(predicates);
+    this.bitmaps = bitmaps;
+
+    for (int i = 0; i < bitmaps.length; i++) {
+      if (bitmaps[i] != null) {
+        snIds.set(i);
+        groups.set(i / TermSNFilter.GROUP_SIZE);
+      }
+    }
+  }
+
+  /**
+   * @return true if queryTextPredicates holds every materialized predicate.
+   */
+  public boolean isPartOf(List<QueryTextPredicate> queryTextPredicates) {
+    for (QueryTextPredicate predicate : predicates) {
+      if (!containsInstance(queryTextPredicates, predicate)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @return copy of queryTextPredicates without the materialized predicates.
+   */
+  public ArrayList<QueryTextPredicate> removeFrom(List<QueryTextPredicate> queryTextPredicates) {
+    ArrayList<QueryTextPredicate> rest = new ArrayList<QueryTextPredicate>();
+
+    for (QueryTextPredicate predicate : queryTextPredicates) {
+      if (!containsInstance(predicates, predicate)) {
+        rest.add(predicate);
+      }
+    }
+
+    return rest;
+  }
+
+  private static boolean containsInstance(List<QueryTextPredicate> list,
+          QueryTextPredicate predicate) {
+    for (QueryTextPredicate p : list) {
+      if (p == predicate) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns the bitmap of the smallest SN in the interval where the
+   * predicates are satisfied, like the semantics methods of
+   * SpatialInvertedFile.
+   * @param snInterval
+   * @param atSNId output: the qualifying SN, or empty.
+   * @return null if no SN in the interval satisfies the predicates.
+   */
+  public CBitmap getBitmap(SNInterval snInterval, ArrayList<Integer> atSNId) {
+    int snId = snIds.nextSetBit(snInterval.getStart());
+    atSNId.clear();
+
+    if (snId < 0 || snId > snInterval.getEnd()) {
+      return null;
+    }
+
+    atSNId.add(0, snId);
+    return bitmaps[snId];
+  }
+
+  /**
+   * @return groups of TermSNFilter.GROUP_SIZE SNs where the predicates are
+   * satisfied. Must not be modified.
+   */
+  BitSet getGroups() {
+    return groups;
+  }
+
+  /**
+   * @return number of SNs where the predicates are satisfied.
+   */
+  public int getSuperNodes() {
+    return snIds.cardinality();
+  }
+
+  @Override
+  public String toString() {
+    return "<materialized " + predicates + " at " + getSuperNodes() + " SNs>";
+  }
+} // public class MaterializedPredicate
@@ -0,0 +1,189 @@
+package sks.sif;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+import sks.ComparisonOperator;
+import sks.NumericParameter;
+import sks.QueryTextPredicate;
+
+/**
+ * Binned index of the numeric fields of a category. The values of each field
+ * are split in bins of about the same number of records (equi-depth), and
+ * each record is indexed in the SIF under the term of its bin, at the field
+ * number of the numeric field. Values frequent enough to fill a bin get a bin
+ * of their own, so skewed fields are not covered by a few wide bins.
+ * <p>
+ * A numeric query predicate becomes an OR predicate of the bins that may
+ * hold qualifying values, evaluated with the text predicates. Bins are
+ * conservative: records of a bin may still fail the predicate and are
+ * filtered after they are read.
+ * Instances are immutable and may be shared by concurrent queries.
+ *
+ * @author Ariel Cary
+ */
+public class NumericBins implements Serializable {
+  static final long serialVersionUID = 6210733921754863107L;
+  // Bin terms cannot be query terms: text fields are cleansed of '#'.
+  static public final String TERM_PREFIX = "#";
+
+  private short[] fieldNumbers; // field number of each numeric field
+  // Bin k of field i holds values in [boundaries[i][k - 1], boundaries[i][k]).
+  // The first and last bins are open.
+  private double[][] boundaries;
+
+  private NumericBins(short[] fieldNumbers, double[][] boundaries) {
+    this.fieldNumbers = fieldNumbers;
+    this.boundaries = boundaries;
+  }
+
+  /**
+   * @return term of a bin.
+   */
+  static public String getTerm(int bin) {
+    return TERM_PREFIX + bin;
+  }
+
+  /**
+   * @param numFieldIndex index of the field in the record's numeric values.
+   * @return field number of the bin terms of the field.
+   */
+  public short getFieldNumber(int numFieldIndex) {
+    return fieldNumbers[numFieldIndex];
+  }
+
+  /**
+   * @param numFieldIndex index of the field in the record's numeric values.
+   * @param value
+   * @return bin of the value, or -1 if the value is not a number.
+   */
+  public int getBin(int numFieldIndex, double value) {
+    if (Double.isNaN(value) || numFieldIndex >= boundaries.length) {
+      return -1;
+    }
+
+    int bin = Arrays.binarySearch(boundaries[numFieldIndex], value);
+    return (bin >= 0)? bin + 1 : -(bin + 1);
+  }
+
+  /**
+   * Translates a numeric query predicate into an OR predicate on the bins
+   * that may hold values satisfying it.
+   * @param numericParameter
+   * @return predicate on the bin terms, with no terms if no bin qualifies,
+   * or null if every bin qualifies.
+   */
+  public QueryTextPredicate getPredicate(NumericParameter numericParameter) {
+    int numFieldIndex = numericParameter.getNumFieldIndex();
+
+    if (numFieldIndex >= boundaries.length) {
+      return null;
+    }
+
+    double[] fieldBoundaries = boundaries[numFieldIndex];
+    QueryTextPredicate predicate = new QueryTextPredicate(ComparisonOperator.OR,
+            fieldNumbers[numFieldIndex], numericParameter.getFieldName());
+
+    for (int bin = 0; bin <= fieldBoundaries.length; bin++) {
+      double lowerBound = (bin > 0)? fieldBoundaries[bin - 1] : Double.NEGATIVE_INFINITY;
+      double upperBound = (bin < fieldBoundaries.length)?
+              fieldBoundaries[bin] : Double.POSITIVE_INFINITY;
+
+      if (numericParameter.isSatisfiedByInterval(lowerBound, upperBound)) {
+        predicate.add(getTerm(bin));
+      }
+    }
+
+    if (predicate.getKeywordList().size() > fieldBoundaries.length) {
+      // Not selective.
+      return null;
+    }
+
+    return predicate;
+  } // public QueryTextPredicate getPredicate()
+
+  /**
+   * Computes the bins of the numeric fields from a sample of their values.
+   */
+  public static class Builder {
+    private static final int SAMPLE_SIZE = 100000;
+    // Fixed seed, so rebuilding an index from the same data gives the same bins.
+    private static final long SAMPLE_SEED = 6210733921L;
+
+    private short[] fieldNumbers;
+    private int bins;
+    private double[][] samples;
+    private int[] sampleSizes;
+    private long records = 0;
+    private Random random = new Random(SAMPLE_SEED);
+
+    /**
+     * @param fieldNumbers field number of each numeric field.
+     * @param bins number of bins per field.
+     */
+    public Builder(short[] fieldNumbers, int bins) {
+      this.fieldNumbers = fieldNumbers;
+      this.bins = bins;
+      samples = new double[fieldNumbers.length][SAMPLE_SIZE];
+      sampleSizes = new int[fieldNumbers.length];
+    }
+
+    /**
+     * Adds the numeric values of a record to the sample (reservoir sampling).
+     * @param numericValues
+     */
+    public void add(double[] numericValues) {
+      int slot = (records < SAMPLE_SIZE)? (int) records :
+              (int) (random.nextDouble() * (records + 1));
+      records++;
+
+      if (slot >= SAMPLE_SIZE) {
+        return;
+      }
+
+      for (int i = 0; i < samples.length && i < numericValues.length; i++) {
+        if (Double.isNaN(numericValues[i])) {
+          continue;
+        }
+
+        if (slot < sampleSizes[i]) {
+          samples[i][slot] = numericValues[i];
+        } else {
+          samples[i][sampleSizes[i]++] = numericValues[i];
+        }
+      }
+    } // public void add()
+
+    public NumericBins build() {
+      double[][] boundaries = new double[samples.length][];
+
+      for (int i = 0; i < samples.length; i++) {
+        double[] sample = Arrays.copyOf(samples[i], sampleSizes[i]);
+        TreeSet<Double> fieldBoundaries = new TreeSet<Double>();
+        Arrays.sort(sample);
+
+        for (int j = 1; j < bins && sample.length > 0; j++) {
+          double value = sample[(int) ((long) j * sample.length / bins)];
+          fieldBoundaries.add(value);
+
+          // A value at two quantiles fills a bin: give it a bin of its own.
+          if (value == sample[(int) ((long) (j - 1) * sample.length / bins)] ||
+              (j + 1 < bins && value == sample[(int) ((long) (j + 1) * sample.length / bins)])) {
+            fieldBoundaries.add(Math.nextUp(value));
+          }
+        }
+
+        boundaries[i] = new double[fieldBoundaries.size()];
+        int k = 0;
+
+        for (Double value : fieldBoundaries) {
+          boundaries[i][k++] = value;
+        }
+      } // for (int i = 0; i < samples.length; i++)
+
+      samples = null;
+      return new NumericBins(fieldNumbers, boundaries);
+    } // public NumericBins build()
+  } // public static class Builder
+} // public class NumericBins
@@ -0,0 +1,69 @@
+package sks.sif;
+
+import java.util.Arrays;
+
+/**
+ * Postings of a term for one field, read once from the bitmap store: the
+ * SNs where the term occurs in the field, in increasing order, and the field
+ * bitmap at each of them. Instances are immutable and may be shared by
+ * concurrent queries.
+ *
+ * @author Ariel Cary
+ */
+class PostingList {
+  // Estimated memory of a posting besides its compressed words: the SN id,
+  // the array slot and the bitmap objects.
+  static final int POSTING_OVERHEAD = 48;
+
+  private final int[] snIds;
+  private final CBitmap[] bitmaps;
+  private final long bytes;
+
+  PostingList(int[] snIds, CBitmap[] bitmaps, int size, long bytes) {
+    this.snIds = (snIds.length == size)? snIds : Arrays.copyOf(snIds, size);
+    this.bitmaps = (bitmaps.length == size)? bitmaps : Arrays.copyOf(bitmaps, size);
+    this.bytes = bytes;
+  }
+
+  int size() {
+    return snIds.length;
+  }
+
+  int getSNId(int posting) {
+    return snIds[posting];
+  }
+
+  CBitmap getBitmap(int posting) {
+    return bitmaps[posting];
+  }
+
+  /**
+   * @return estimated memory size in bytes.
+   */
+  long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @param from first posting to consider.
+   * @param snId
+   * @return first posting at or after from whose SN is at least snId, or
+   * size() if there is none.
+   */
+  int ceiling(int from, int snId) {
+    int low = from;
+    int high = snIds.length;
+
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+
+      if (snIds[middle] < snId) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+
+    return low;
+  } // int ceiling()
+} // class PostingList
@@ -0,0 +1,229 @@
+package sks.sif;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-bounded LRU cache of term posting lists, keyed by (term, field),
+ * shared by all queries on one spatial inverted file. A cached list answers
+ * every SN interval of the term, so queries on popular terms do not browse
+ * or seek the bitmap store B+tree.
+ * <p>
+ * A list is loaded on the second miss of its key only, so terms seen once
+ * do not push popular terms out of the cache. Lists larger than a quarter
+ * of the cache are not loaded again once found too large, as long as their
+ * terms keep being queried. Lookups are one per term and predicate
+ * evaluation, not one per posting, so a single lock is enough.
+ *
+ * @author Ariel Cary
+ */
+public class PostingListCache {
+  private static final int RECENT_MISSES = 16384;
+  private static final int REJECTED_LISTS = 4096;
+
+  private final long maxBytes;
+  private long bytes = 0;
+
+  private final LinkedHashMap<Key, PostingList> entries =
+          new LinkedHashMap<Key, PostingList>(256, 0.75f, true); // access order
+
+  // Keys that missed once and were not loaded yet.
+  private final LinkedHashMap<Key, Boolean> recentMisses =
+          new LinkedHashMap<Key, Boolean>(256, 0.75f, false) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+      return size() > RECENT_MISSES;
+    }
+  };
+
+  // Keys whose list is too large. Access ordered, so the markers of terms
+  // that are still queried are the last ones dropped.
+  private final LinkedHashMap<Key, Boolean> rejectedLists =
+          new LinkedHashMap<Key, Boolean>(64, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+      return size() > REJECTED_LISTS;
+    }
+  };
+
+  // Stats
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxBytes maximum size of cached posting lists in bytes.
+   */
+  public PostingListCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return maximum size of a list admitted in the cache.
+   */
+  long getMaxListBytes() {
+    return maxBytes / 4;
+  }
+
+  /**
+   * @param term
+   * @param fieldNumber field, or -1 for any field.
+   * @return cached posting list, or null if it is not in the cache.
+   */
+  PostingList get(String term, short fieldNumber) {
+    PostingList list;
+
+    synchronized (this) {
+      list = entries.get(new Key(term, fieldNumber));
+    }
+
+    if (list != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+
+    return list;
+  }
+
+  /**
+   * Records a miss and tells whether the list should be loaded now.
+   * @return true if the key missed recently too and its list is not known
+   * to be too large.
+   */
+  synchronized boolean admit(String term, short fieldNumber) {
+    Key key = new Key(term, fieldNumber);
+
+    if (rejectedLists.get(key) != null) {
+      // Too large. The lookup keeps the marker recently used.
+      return false;
+    }
+
+    if (recentMisses.remove(key) == null) {
+      // First miss.
+      recentMisses.put(key, Boolean.TRUE);
+      return false;
+    }
+
+    return true;
+  } // synchronized boolean admit()
+
+  /**
+   * Caches a loaded list, evicting least recently used lists if needed.
+   */
+  void put(String term, short fieldNumber, PostingList list) {
+    int evicted = 0;
+
+    synchronized (this) {
+      PostingList previous = entries.put(new Key(term, fieldNumber), list);
+      bytes += list.getBytes() - ((previous == null)? 0 : previous.getBytes());
+      Iterator<PostingList> iterator = entries.values().iterator();
+
+      // Least recently used lists come first.
+      while (bytes > maxBytes && iterator.hasNext()) {
+        PostingList eldest = iterator.next();
+        iterator.remove();
+        bytes -= eldest.getBytes();
+        evicted++;
+      }
+    }
+
+    loads.incrementAndGet();
+    evictions.addAndGet(evicted);
+  } // void put()
+
+  /**
+   * Records that the list of a key is too large to be cached.
+   */
+  synchronized void reject(String term, short fieldNumber) {
+    rejectedLists.put(new Key(term, fieldNumber), Boolean.TRUE);
+    rejections.incrementAndGet();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    recentMisses.clear();
+    rejectedLists.clear();
+    bytes = 0;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getLoads() {
+    return loads.get();
+  }
+
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public void resetStats() {
+    hits.set(0);
+    misses.set(0);
+    loads.set(0);
+    rejections.set(0);
+    evictions.set(0);
+  }
+
+  @Override
+  public String toString() {
+    long h = getHits();
+    long m = getMisses();
+    return "hits=" + h + ", misses=" + m +
+           ", hitRate=" + ((h + m > 0)? (100 * h / (h + m)) : 0) + "%" +
+           ", loads=" + getLoads() +
+           ", rejections=" + getRejections() +
+           ", evictions=" + getEvictions() +
+           ", bytes=" + getBytes() + "/" + maxBytes;
+  }
+
+  /**
+   * Cache key: postings of a term in a field.
+   */
+  private static final class Key {
+    final String term;
+    final short fieldNumber;
+
+    Key(String term, short fieldNumber) {
+      this.term = term;
+      this.fieldNumber = fieldNumber;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+      return fieldNumber == other.fieldNumber && term.equals(other.term);
+    }
+
+    @Override
+    public int hashCode() {
+      return term.hashCode() * 31 + fieldNumber;
+    }
+  } // private static final class Key
+} // public class PostingListCache
@@ -0,0 +1,61 @@
+/*
+ * SNQueryBitmap.java
+ */
+
+package sks.sif;
+
+import java.util.BitSet;
+
+/**
+ * Query bitmap of a super node, kept compressed. The bitmap of a leaf node
+ * (M bits) is decoded the first time the node is expanded; level-1 nodes
+ * are pruned with nextSetBit() on the compressed words.
+ *
+ * @author Ariel Cary
+ */
+public class SNQueryBitmap {
+  private final CBitmap bitmap;
+  private final int M;
+
+  // Decoded leaf node bitmaps; null entries are not decoded yet.
+  private BitSet[] nodeBitmaps;
+
+  /**
+   * @param bitmap super node bitmap of M * M bits.
+   * @param M R-tree node capacity.
+   */
+  public SNQueryBitmap(CBitmap bitmap, int M) {
+    this.bitmap = bitmap;
+    this.M = M;
+    this.nodeBitmaps = new BitSet[M];
+  }
+
+  /**
+   * Tests if a level-1 entry points to a leaf node with candidate objects.
+   * @param entryId entry Id of the level-1 entry.
+   */
+  public boolean isCandidateNode(long entryId) {
+    int from = (int) (entryId % M) * M;
+    int next = bitmap.nextSetBit(from);
+    return next >= 0 && next < from + M;
+  }
+
+  /**
+   * Gets the bitmap of the candidate objects of a leaf node.
+   * @param entryId entry Id of the first entry in the leaf node.
+   * @return node bitmap; empty if no object qualifies.
+   */
+  public BitSet getLeafBitmap(long entryId) {
+    int node = (int) ((entryId / M) % M);
+
+    if (nodeBitmaps[node] == null) {
+      nodeBitmaps[node] = bitmap.getBitSet(node * M, node * M + M);
+    }
+
+    return nodeBitmaps[node];
+  }
+
+  public CBitmap getBitmap() {
+    return bitmap;
+  }
+} // public class SNQueryBitmap
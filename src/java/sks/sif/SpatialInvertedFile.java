@@ -9,24 +9,27 @@
 
 package sks.sif;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jdbm.helper.Tuple;
 import jdbm.helper.TupleBrowser;
+import sks.NumericParameter;
 import sks.QueryTextPredicate;
 import sks.ComparisonOperator;
-import sks.Loader;
 import sks.rtree.Rtree;
 import sks.rtree.SuperNodeBoundary;
 import sks.ski.SNInterval;
+import sks.util.ExternalSorter;
 
 /**
  *
@@ -41,7 +44,22 @@ public class SpatialInvertedFile {
   private final int M;
   private final int SUPER_NODE_SIZE;
   private Hashtable<Integer, SuperNodeBoundary> snNodeBoundaries = null;
-  private final CBitmap CBM_ALL_BITS_SET;
+  private CBitmap allBitsSet = null;
+  // Occupied entries of each SN, indexed by SN Id, in the codec of the store.
+  private volatile CBitmap[] snMasks = null;
+  private BitmapCodec snMasksCodec = null;
+
+  // Codec of the bitmaps built by buildTermBitmaps().
+  private BitmapCodec bitmapCodec = BitmapCodec.WAH;
+
+  // Bins of the numeric fields indexed by buildTermBitmaps(); null if none.
+  private NumericBins numericBins = null;
+
+  // Term posting lists shared by queries; null if disabled.
+  private volatile PostingListCache postingCache = null;
+
+  // Fixed predicates evaluated at load time; null if none.
+  private volatile MaterializedPredicate materializedPredicate = null;
   
   // Progress counter.
   transient private long recordsProcessed;
@@ -72,48 +90,178 @@ public class SpatialInvertedFile {
   }
 
   /**
-   * Eliminates set bits that are outside the boundaries of actual leaf nodes
-   * inside a super node.
-   * @param snId
-   * @param cBitmap
-   * @return
+   * Computes the mask of the occupied entries of every SN, in the codec of
+   * the store. Masks are computed once, when the store starts up.
    */
-  private CBitmap cleanseSNBitmap(int snId, BitSet bs) {
-    if (snNodeBoundaries == null || snNodeBoundaries.get(snId) == null) {
-      return new CBitmap(bs);
+  private CBitmap[] buildSNMasks() {
+    BitmapCodec codec = (bitmapStore != null)? bitmapStore.getCodec() : BitmapCodec.WAH;
+    CBitmap[] masks = snMasks;
+
+    if (snNodeBoundaries == null || (masks != null && snMasksCodec == codec)) {
+      return masks;
     }
 
-    SuperNodeBoundary snBoundary = snNodeBoundaries.get(snId);
+    int maxSNId = -1;
 
-    for (int i = 0; i < snBoundary.length(); i++) {
-      if (snBoundary.get(i) == M) {
-        // Node is full.
-        continue;
+    for (Integer snId : snNodeBoundaries.keySet()) {
+      maxSNId = Math.max(maxSNId, snId);
+    }
+
+    masks = new CBitmap[maxSNId + 1];
+
+    for (Map.Entry<Integer, SuperNodeBoundary> entry : snNodeBoundaries.entrySet()) {
+      SuperNodeBoundary snBoundary = entry.getValue();
+
+      // Mask of the occupied entries of every leaf node.
+      BitSet mask = new BitSet(SUPER_NODE_SIZE);
+
+      for (int i = 0; i < snBoundary.length(); i++) {
+        mask.set(i * M, i * M + snBoundary.get(i));
+      }
+
+      masks[entry.getKey()] = new CBitmap(mask, codec);
+    }
+
+    snMasksCodec = codec;
+    snMasks = masks;
+    return masks;
+  } // private CBitmap[] buildSNMasks()
+
+  /**
+   * @return mask of the occupied entries of a SN, or null if the SN has no
+   * boundaries.
+   */
+  private CBitmap getSNMask(int snId) {
+    CBitmap[] masks = snMasks;
+
+    if (masks == null) {
+      masks = buildSNMasks();
+
+      if (masks == null) {
+        return null;
       }
-      
-      int from = i * M + snBoundary.get(i);
-      int to = (i + 1) * M;
-      bs.clear(from, to);
     }
 
-    int from = (snBoundary.length() - 1) * M + snBoundary.get((snBoundary.length() - 1));
-    bs.clear(from, SUPER_NODE_SIZE);
+    return (snId >= 0 && snId < masks.length)? masks[snId] : null;
+  }
 
-    if (bs.cardinality() == 0) {
+  /**
+   * Eliminates set bits that are outside the boundaries of actual leaf nodes
+   * inside a super node. The bitmap stays compressed.
+   * @param snId
+   * @param cBitmap
+   * @return null if no bit remains set.
+   */
+  private CBitmap cleanseSNBitmap(int snId, CBitmap cBitmap) {
+    CBitmap mask = getSNMask(snId);
+
+    if (mask == null) {
+      return cBitmap;
+    }
+
+    CBitmap cleansed = cBitmap.and(mask);
+
+    if (cleansed.cardinality() == 0) {
       return null;
     } else {
-      return new CBitmap(bs);
+      return cleansed;
     }
   } // private CBitmap cleanseSNBitmap()
 
+  /**
+   * @return occupied entries of a SN, i.e., the entries that qualify for a
+   * term absent from the SN.
+   */
+  private CBitmap getOccupiedEntries(int snId) {
+    CBitmap mask = getSNMask(snId);
+    return (mask != null)? mask : getAllBitsSet();
+  }
+
+  /**
+   * @return occupied entries of a SN not in termBitmap, computed by one
+   * ANDNOT against the SN mask; null if none.
+   */
+  private CBitmap getEntriesWithout(int snId, CBitmap termBitmap) {
+    CBitmap mask = getSNMask(snId);
+
+    if (mask == null) {
+      return termBitmap.flip(SUPER_NODE_SIZE);
+    }
+
+    CBitmap entries = mask.andNot(termBitmap);
+    return (entries.cardinality() > 0)? entries : null;
+  }
+
+  /**
+   * @return super node bitmap with all bits set, in the codec of the store.
+   */
+  private CBitmap getAllBitsSet() {
+    BitmapCodec codec = (bitmapStore != null)? bitmapStore.getCodec() : BitmapCodec.WAH;
+    CBitmap bitmap = allBitsSet;
+
+    if (bitmap == null || bitmap.getCodec() != codec) {
+      bitmap = CBitmap.ones(SUPER_NODE_SIZE, codec);
+      allBitsSet = bitmap;
+    }
+
+    return bitmap;
+  }
+
+  /**
+   * Sets the codec of the bitmaps built by buildTermBitmaps(). Existing
+   * stores keep the codec they were built with.
+   * @param bitmapCodec
+   */
+  public void setBitmapCodec(BitmapCodec bitmapCodec) {
+    this.bitmapCodec = bitmapCodec;
+  }
+
+  public BitmapCodec getBitmapCodec() {
+    return bitmapCodec;
+  }
+
+  /**
+   * Sets the bins of the numeric fields whose bin terms are among the
+   * postings of buildTermBitmaps(). They are recorded in the store.
+   * @param numericBins
+   */
+  public void setNumericBins(NumericBins numericBins) {
+    this.numericBins = numericBins;
+  }
+
+  /**
+   * Sets the size of the posting list cache, dropping cached lists.
+   * @param maxBytes cache size in bytes; 0 disables the cache.
+   */
+  public void setPostingCacheSize(long maxBytes) {
+    clearPostingCache();
+    postingCache = (maxBytes > 0)? new PostingListCache(maxBytes) : null;
+  }
+
+  /**
+   * @return posting list cache, or null if disabled.
+   */
+  public PostingListCache getPostingCache() {
+    return postingCache;
+  }
+
+  /**
+   * Drops cached posting lists. Must be called whenever the bitmap store
+   * changes.
+   */
+  public void clearPostingCache() {
+    PostingListCache cache = postingCache;
+
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
   // DEBUG
   public SpatialInvertedFile() {
     M = 80;
     SUPER_NODE_SIZE = M * M;
     bitmapStore = null;
-    BitSet allSetBS = new BitSet(SUPER_NODE_SIZE);
-    allSetBS.set(0, SUPER_NODE_SIZE);
-    CBM_ALL_BITS_SET = new CBitmap(allSetBS);
   }
 
   /**
@@ -135,13 +283,12 @@ public class SpatialInvertedFile {
     recordsProcessed = 0;
     bitmapStore = null;
     snNodeBoundaries = rTree.getSNNodeBoundaries();
-    
-    BitSet allSetBS = new BitSet(SUPER_NODE_SIZE);
-    allSetBS.set(0, SUPER_NODE_SIZE);
-    CBM_ALL_BITS_SET = new CBitmap(allSetBS);
   }
 
   public void setBitmapStore(String category, String indexPath) {
+    clearPostingCache();
+    materializedPredicate = null;
+
     if (bitmapStore != null) {
       bitmapStore.shutdown();
       bitmapStore = null;
@@ -171,132 +318,128 @@ public class SpatialInvertedFile {
   /**
    * Builds term bitmaps and persists them in a B-Tree: <key="term superNodeId", value=termBitmap>.
    *
-   * @param spatialInvertedIndexFile
+   * @param postings <termId, fieldNbr, entryId> postings sorted by term and entryId.
+   * @param terms dictionary of the term Ids.
    * @return Boolean state of the process outcome.
-   * @throws java.io.FileNotFoundException
    * @throws java.io.IOException
    */
-  public boolean buildTermBitmaps(File spatialInvertedIndexFile) throws FileNotFoundException, IOException {
+  public boolean buildTermBitmaps(ExternalSorter.Reader<TermPosting> postings,
+          TermDictionary terms) throws IOException {
     // Check if the bitmap store is open.
     if (bitmapStore != null && !bitmapStore.startup()) {
       return false;
     }
     
+    clearPostingCache();
+    materializedPredicate = null;
+
     // counts the number of term bitmaps built so far.
     recordsProcessed = 0; //buildStage = "siidx_bld_tsnbm";
 
-    String line;
-    BufferedReader input = null;
-
     try {
-      try {
-        // Larger commit frequency values require more RAM.
-        final int COMMIT_FREQUENCY = 200000;
-        input = new BufferedReader(new FileReader(spatialInvertedIndexFile), Loader.IO_BUFFER_SIZE);
-
-        String term = null, currTerm = null;
-        //long currEntryId = 0;
-        long currEntryId = 0;
-        int superNodeId = 0;
-        int superNodeIdCount = 0;
-        Short fieldNbr = null;
-        Hashtable<Short, BitSet> termSNbs = new Hashtable<Short, BitSet>();
-        long firstEntryId = 0;
-        int nextBitToSet = 0;
-
-        while ((line = input.readLine()) != null) {
-          // line format is: "term:String FS fieldNbr:Number FS nodeId:Number"
-          String fields[] = line.split(Loader.FIELD_SEPARATOR);
-
-          // Get term and fieldNbr.
-          currTerm = fields[0];
-          fieldNbr = new Short(fields[1]);
-
-          // Get entry Id.
-          currEntryId = Long.valueOf(fields[2]);
-
-          // Calculate next bit to set.
-          nextBitToSet = (int) (currEntryId - firstEntryId);
-
-          if (term != null && term.equals(currTerm) &&
-              superNodeId == (currEntryId / SUPER_NODE_SIZE)) {
-            // term continuation
-            if (termSNbs.get(fieldNbr) == null) {
-              termSNbs.put(fieldNbr, new BitSet(SUPER_NODE_SIZE));
-            }
+      // Postings come in key order: write the B+tree bottom-up.
+      if (bitmapStore != null &&
+          (!bitmapStore.beginBulkLoad() || !bitmapStore.setCodec(bitmapCodec))) {
+        throw new IOException("Bitmap store is not empty.");
+      }
 
-            // Set bit in the corresponding nodeId.
-            termSNbs.get(fieldNbr).set(nextBitToSet);
-          } else { // term or super node or both switch has occurred.
-            // Check term switch
-            if (term != null && !term.equals(currTerm)) {
-              // Term switch
-              superNodeIdCount = 0;
-              recordsProcessed++;
-            }
+      if (bitmapStore != null && numericBins != null &&
+          !bitmapStore.setNumericBins(numericBins)) {
+        throw new IOException("Numeric bins could not be recorded.");
+      }
 
-            // Store term bitmap at super node.
-            if (term != null && termSNbs.size() > 0) {
-              SuperNodeBitmap termBitmap = new SuperNodeBitmap(termSNbs);
+      // Larger commit frequency values require more RAM.
+      final int COMMIT_FREQUENCY = 200000;
+      int termId = -1;
+      int superNodeId = 0;
+      Hashtable<Short, BitSet> termSNbs = new Hashtable<Short, BitSet>();
+      TermPosting posting;
+
+      // Frequency of the current term.
+      int termDocuments = 0;
+      int termSuperNodes = 0;
+      long lastEntryId = -1;
+
+      while ((posting = postings.read()) != null) {
+        int currSuperNodeId = (int) (posting.entryId / SUPER_NODE_SIZE);
+
+        if (posting.termId != termId || currSuperNodeId != superNodeId) {
+          // Term or super node or both switch has occurred.
+          // Store term bitmap at super node.
+          if (termId >= 0 && termSNbs.size() > 0 && bitmapStore != null) {
+            // Insert pair ("term snId", termBitmap).
+            bitmapStore.insert(terms.getTerm(termId), superNodeId, new SuperNodeBitmap(termSNbs, bitmapCodec));
+          }
 
-              // Insert pair ("term snId", termBitmap).
-              if (bitmapStore != null) {
-                bitmapStore.insert(term, superNodeId, termBitmap);
-              }
+          termSuperNodes++;
+
+          // Check term switch
+          if (termId >= 0 && posting.termId != termId) {
+            recordsProcessed++;
+
+            if (bitmapStore != null) {
+              bitmapStore.insertTermFrequency(terms.getTerm(termId),
+                      new TermFrequency(termDocuments, termSuperNodes));
             }
-            
-            if (recordsProcessed > 0 && recordsProcessed%COMMIT_FREQUENCY == 0) {
+
+            if (recordsProcessed % COMMIT_FREQUENCY == 0 && bitmapStore != null) {
               // Commit changes to the database.
-              if (bitmapStore != null) {
-                bitmapStore.commit();
-              }
+              bitmapStore.commit();
             }
+          }
 
-            term = currTerm;
-            superNodeId = (int) (currEntryId / SUPER_NODE_SIZE);
-            superNodeIdCount++;
-            firstEntryId = superNodeId * SUPER_NODE_SIZE;
-
-            // calculate next bit to set.
-            nextBitToSet = (int) (currEntryId - firstEntryId);
+          if (posting.termId != termId) {
+            termDocuments = 0;
+            termSuperNodes = 0;
+            lastEntryId = -1;
+          }
 
-            // Allocate memory for new term's super node bitmaps.
-            termSNbs.clear();
-            termSNbs = null;
-            termSNbs = new Hashtable<Short, BitSet>();
-            termSNbs.put(fieldNbr, new BitSet(SUPER_NODE_SIZE));
+          termId = posting.termId;
+          superNodeId = currSuperNodeId;
 
-            // Set bit at the node where the term is found.
-            termSNbs.get(fieldNbr).set(nextBitToSet);
-          }
-        } // while ((line = input.readLine()) != null)
+          // Allocate memory for new term's super node bitmaps.
+          termSNbs = new Hashtable<Short, BitSet>();
+        }
 
-        if (input != null) {
-          input.close();
+        if (posting.entryId != lastEntryId) {
+          termDocuments++;
+          lastEntryId = posting.entryId;
         }
 
-        // Store the last term bitmap at SN.
-        if (term != null && termSNbs.size() > 0) {
-          SuperNodeBitmap termBitmap = new SuperNodeBitmap(termSNbs);
-          
-          // Insert pair ("term snId", TS).
-          if (bitmapStore != null) {
-            bitmapStore.insert(term, superNodeId, termBitmap);
-          }
-          
-          recordsProcessed++;
+        BitSet fieldBS = termSNbs.get(posting.fieldNbr);
+
+        if (fieldBS == null) {
+          fieldBS = new BitSet(SUPER_NODE_SIZE);
+          termSNbs.put(posting.fieldNbr, fieldBS);
         }
-      } catch (Exception e) {
-        // Close database.
+
+        // Set bit at the node where the term is found.
+        fieldBS.set((int) (posting.entryId - (long) superNodeId * SUPER_NODE_SIZE));
+      } // while ((posting = postings.read()) != null)
+
+      // Store the last term bitmap at SN.
+      if (termId >= 0 && termSNbs.size() > 0) {
+        // Insert pair ("term snId", TS).
         if (bitmapStore != null) {
-          bitmapStore.shutdown();
+          bitmapStore.insert(terms.getTerm(termId), superNodeId, new SuperNodeBitmap(termSNbs, bitmapCodec));
+          bitmapStore.insertTermFrequency(terms.getTerm(termId),
+                  new TermFrequency(termDocuments, termSuperNodes + 1));
         }
-        
-        return false;
+
+        recordsProcessed++;
+      }
+
+      if (bitmapStore != null) {
+        bitmapStore.endBulkLoad();
       }
     } catch (Exception e) {
+      Logger.getLogger(SpatialInvertedFile.class.getName()).log(Level.SEVERE, null, e);
+
       // Close database.
-      bitmapStore.shutdown();
+      if (bitmapStore != null) {
+        bitmapStore.shutdown();
+      }
+
       return false;
     }
     
@@ -309,37 +452,19 @@ public class SpatialInvertedFile {
   } // public boolean buildTermBitmaps()
 
   /**
-   * Partitions cBitmap into an array of M-Sized, uncompressed BitSets.
-   * The array itself has size equal to M.
-   * @param cBitmap
-   * @return
+   * @param tuple
+   * @param term
+   * @param termId bitmapStore.getTermId(term).
+   * @return SN of the tuple, or -1 if the tuple holds a different term.
    */
-  private BitSet[] CBitmap2BitSets(CBitmap cBitmap) {
-    if (cBitmap == null) {
-      return null;
+  private int getSNId(Tuple tuple, String term, int termId) {
+    if (tuple.getKey() instanceof Long) {
+      long key = ((Long) tuple.getKey()).longValue();
+      return (TermIdAtSN.getTermId(key) == termId)? TermIdAtSN.getSNId(key) : -1;
+    } else {
+      TermAtSN termAtSN = (TermAtSN) tuple.getKey();
+      return term.equals(termAtSN.getTerm())? termAtSN.getSNId() : -1;
     }
-
-    BitSet bitmapBS = cBitmap.getBitSet(SUPER_NODE_SIZE);
-    BitSet[] partitionedBS = new BitSet[M];
-    int nextSetBit = bitmapBS.nextSetBit(0);
-
-    for (int i = nextSetBit / M; i < M && nextSetBit >= 0; i++) {
-      // Take M-sized chunks and create a BitSet with it.
-      int startBit = i * M; // inclusive
-      int endBit = startBit + M; // exclusive
-
-      BitSet nodeBS = bitmapBS.get(startBit, endBit);
-      if (nodeBS.cardinality() > 0) {
-        partitionedBS[i] = nodeBS;
-      }
-
-      nextSetBit = bitmapBS.nextSetBit(endBit);
-      if (nextSetBit / M > i + 1) {
-        i = nextSetBit / M - 1;
-      }
-    } // for (int i = nextSetBit/M; i < M && nextSetBit >= 0; i++)
-    
-    return partitionedBS;
   }
 
   /**
@@ -347,6 +472,7 @@ public class SpatialInvertedFile {
    * 
    * @param tuple
    * @param term
+   * @param termId bitmapStore.getTermId(term).
    * @param fieldNumber
    * @param searchInterval SN search interval.
    * @param atSNId output containing the SN where term was found in searchInterval,
@@ -359,35 +485,239 @@ public class SpatialInvertedFile {
    *   - a SN id inside the search interval, but term was found in a different field.
    *   - a SN id outside of search interval.
    */
-  private CBitmap getTermBitmap(Tuple tuple, String term, short fieldNumber,
+  private CBitmap getTermBitmap(Tuple tuple, String term, int termId, short fieldNumber,
           SNInterval searchInterval, ArrayList<Integer> atSNId) {
-    TermAtSN termAtSN = (TermAtSN) tuple.getKey();
+    int snId = getSNId(tuple, term, termId);
     atSNId.clear();
 
-    if (!term.equals(termAtSN.getTerm())) {
+    if (snId < 0) {
       // Different term.
       return null;
     }
 
     // term found. It may be outside the interval.
-    atSNId.add(0, termAtSN.getSNId());
+    atSNId.add(0, snId);
 
-    if (termAtSN.getSNId() >= searchInterval.getStart() &&
-        termAtSN.getSNId() <= searchInterval.getEnd()) {
+    if (snId >= searchInterval.getStart() && snId <= searchInterval.getEnd()) {
       // term found within search interval.
-      // Check if a bitmap is available for the field.
-      SuperNodeBitmap bitmap = (SuperNodeBitmap) tuple.getValue();
-
-      if (fieldNumber == -1) {
-        return bitmap.getAnyFieldBitmap();
-      } else {
-        return bitmap.getAFieldBitmap(fieldNumber);
-      }
+      return getFieldBitmap((SuperNodeBitmap) tuple.getValue(), fieldNumber);
     }
     
     return null;
   } // private boolean tupleContainsTerm()
 
+  /**
+   * @param bitmap
+   * @param fieldNumber field, or -1 for any field.
+   * @return bitmap of the field, or null if the term is not in the field.
+   */
+  private static CBitmap getFieldBitmap(SuperNodeBitmap bitmap, short fieldNumber) {
+    if (fieldNumber == -1) {
+      return bitmap.getAnyFieldBitmap();
+    } else {
+      return bitmap.getAFieldBitmap(fieldNumber);
+    }
+  }
+
+  /**
+   * Cursor on the postings of a term in a field, in SN order. Postings where
+   * the term is not in the field are skipped.
+   */
+  private static abstract class PostingCursor {
+    int snId = -1; // SN of the current posting
+    CBitmap bitmap = null; // field bitmap of the current posting
+    boolean exhausted = false;
+
+    /**
+     * Moves to the next posting.
+     * @return false if the term has no more postings.
+     */
+    abstract boolean next() throws IOException;
+
+    /**
+     * Moves to the first posting at or after a SN. It never moves backwards,
+     * and stays on the current posting if it is at or after the SN.
+     * @return false if the term has no more postings.
+     */
+    abstract boolean seek(int snId) throws IOException;
+  } // private static abstract class PostingCursor
+
+  /**
+   * Cursor on the postings of a term in the bitmap store.
+   */
+  private class BrowserCursor extends PostingCursor {
+    private final String term;
+    private final int termId;
+    private final short fieldNumber;
+    private final TupleBrowser browser;
+    private final Tuple tuple = new Tuple(null, null);
+
+    BrowserCursor(String term, int termId, short fieldNumber, int startSN)
+            throws IOException {
+      this.term = term;
+      this.termId = termId;
+      this.fieldNumber = fieldNumber;
+      browser = bitmapStore.browse(bitmapStore.getKey(term, termId, startSN));
+    }
+
+    @Override
+    boolean next() throws IOException {
+      while (!exhausted && browser.getNext(tuple)) {
+        snId = getSNId(tuple, term, termId);
+
+        if (snId < 0) {
+          // Different term.
+          break;
+        }
+
+        bitmap = getFieldBitmap((SuperNodeBitmap) tuple.getValue(), fieldNumber);
+
+        if (bitmap != null) {
+          return true;
+        }
+      }
+
+      exhausted = true;
+      bitmap = null;
+      return false;
+    } // boolean next()
+
+    @Override
+    boolean seek(int snId) throws IOException {
+      if (exhausted || (bitmap != null && this.snId >= snId)) {
+        return !exhausted;
+      }
+
+      // Skip postings before snId without reading them.
+      bitmapStore.seek(browser, bitmapStore.getKey(term, termId, snId));
+      return next();
+    }
+  } // private class BrowserCursor
+
+  /**
+   * Cursor on a cached posting list.
+   */
+  private static class CachedCursor extends PostingCursor {
+    private final PostingList list;
+    private int posting = -1;
+
+    CachedCursor(PostingList list) {
+      this.list = list;
+    }
+
+    private boolean moveTo(int posting) {
+      this.posting = posting;
+
+      if (posting >= list.size()) {
+        exhausted = true;
+        bitmap = null;
+        return false;
+      }
+
+      snId = list.getSNId(posting);
+      bitmap = list.getBitmap(posting);
+      return true;
+    }
+
+    @Override
+    boolean next() {
+      return !exhausted && moveTo(posting + 1);
+    }
+
+    @Override
+    boolean seek(int snId) {
+      if (exhausted || (posting >= 0 && this.snId >= snId)) {
+        return !exhausted;
+      }
+
+      return moveTo(list.ceiling(Math.max(posting, 0), snId));
+    }
+  } // private static class CachedCursor
+
+  /**
+   * Opens a cursor on the postings of a term in a field. Popular lists come
+   * from the posting list cache; a list is loaded into the cache on its
+   * second miss.
+   * @param term
+   * @param termId bitmapStore.getTermId(term).
+   * @param fieldNumber field, or -1 for any field.
+   * @param startSN first SN the caller will seek.
+   * @return cursor before the first posting.
+   * @throws IOException
+   */
+  private PostingCursor openCursor(String term, int termId, short fieldNumber,
+          int startSN) throws IOException {
+    PostingListCache cache = postingCache;
+
+    if (cache != null) {
+      PostingList list = cache.get(term, fieldNumber);
+
+      if (list == null && cache.admit(term, fieldNumber)) {
+        list = loadPostingList(term, termId, fieldNumber, cache.getMaxListBytes());
+
+        if (list != null) {
+          cache.put(term, fieldNumber, list);
+        } else {
+          cache.reject(term, fieldNumber);
+        }
+      }
+
+      if (list != null) {
+        return new CachedCursor(list);
+      }
+    } // if (cache != null)
+
+    return new BrowserCursor(term, termId, fieldNumber, startSN);
+  } // private PostingCursor openCursor()
+
+  /**
+   * Reads all postings of a term in a field.
+   * @param maxBytes size limit of the list.
+   * @return posting list, or null if it is larger than maxBytes.
+   * @throws IOException
+   */
+  private PostingList loadPostingList(String term, int termId, short fieldNumber,
+          long maxBytes) throws IOException {
+    BrowserCursor cursor = new BrowserCursor(term, termId, fieldNumber, 0);
+    int[] snIds = new int[16];
+    CBitmap[] bitmaps = new CBitmap[16];
+    int size = 0;
+    long bytes = 0;
+
+    while (cursor.next()) {
+      bytes += cursor.bitmap.sizeInBytes() + PostingList.POSTING_OVERHEAD;
+
+      if (bytes > maxBytes) {
+        return null;
+      }
+
+      if (size == snIds.length) {
+        snIds = Arrays.copyOf(snIds, size * 2);
+        bitmaps = Arrays.copyOf(bitmaps, size * 2);
+      }
+
+      snIds[size] = cursor.snId;
+      bitmaps[size++] = cursor.bitmap;
+    }
+
+    return new PostingList(snIds, bitmaps, size, bytes);
+  } // private PostingList loadPostingList()
+
+  /**
+   * Resolves the keywords of a predicate to term Ids once, so store keys
+   * are built and compared as longs. Keywords not in the store get -1.
+   */
+  private int[] getTermIds(QueryTextPredicate queryTextPredicate) {
+    ArrayList<String> keywords = queryTextPredicate.getKeywordList();
+    int[] termIds = new int[keywords.size()];
+
+    for (int i = 0; i < termIds.length; i++) {
+      termIds[i] = bitmapStore.getTermId(keywords.get(i));
+    }
+
+    return termIds;
+  }
+
 
   /**
    * Returns the bitmap of the smallest SNId in the SN interval (inclusive)
@@ -405,38 +735,31 @@ public class SpatialInvertedFile {
     int endSN = snInterval.getEnd();
     int currSNId = snInterval.getStart();
     short fieldNumber = queryTextPredicate.getFieldNumber();
-    TupleBrowser[] browsers = new TupleBrowser[numberOfTerms];
-    
-    // Initialize term browsers and current SN.
-    for (int i = 0; i < numberOfTerms; i++) {
-      String term = queryTextPredicate.getKeywordList().get(i);
-      TermAtSN termAtSN = new TermAtSN(term, currSNId);
-      browsers[i] = bitmapStore.browse(termAtSN);
-      
-      // Check if tuple contains term.
-      Tuple tuple = new Tuple(null, null);
+    PostingCursor[] cursors = new PostingCursor[numberOfTerms];
+    int[] termIds = getTermIds(queryTextPredicate);
 
-      if (!browsers[i].getNext(tuple)) {
-        // term not found. No need to search further.
+    // Skip the interval if a term has no posting in it.
+    for (int i = 0; i < numberOfTerms; i++) {
+      if (!bitmapStore.mayContain(termIds[i], currSNId, endSN)) {
         atSNId.clear();
         return null;
       }
+    }
+    
+    // Initialize term cursors and current SN.
+    for (int i = 0; i < numberOfTerms; i++) {
+      cursors[i] = openCursor(queryTextPredicate.getKeywordList().get(i),
+              termIds[i], fieldNumber, currSNId);
 
-      SNInterval searchInterval = new SNInterval(currSNId, endSN);
-      getTermBitmap(tuple, term, fieldNumber, searchInterval, atSNId);
-
-      if (atSNId.size() == 0 || atSNId.get(0) > endSN) {
-        // term not found in the search interval.
+      if (!cursors[i].seek(currSNId) || cursors[i].snId > endSN) {
+        // term not found in the search interval. No need to search further.
+        atSNId.clear();
         return null;
       }
-      // (atSNId >= currSNId)
 
-      // Re-position browser.
-      browsers[i].getPrevious(tuple);
-
-      if (atSNId.get(0) > currSNId) {
+      if (cursors[i].snId > currSNId) {
         // Start search at the greater SN.
-        currSNId = atSNId.get(0);
+        currSNId = cursors[i].snId;
       }
     } // for (int i = 0; i < numberOfTerms; i++)
     
@@ -453,48 +776,23 @@ public class SpatialInvertedFile {
           continue;
         }
 
-        Tuple tuple = new Tuple(null, null);
-        CBitmap termBitmap = null;
-        SNInterval searchInterval = new SNInterval(currSNId, endSN);
-        String term = queryTextPredicate.getKeywordList().get(i);
-
-        while (termBitmap == null) {
-          if (!browsers[i].getNext(tuple)) {
-            // No more terms. No need to search further.
-            atSNId.clear();
-            return null;
-          }
+        if (!cursors[i].seek(currSNId) || cursors[i].snId > endSN) {
+          // term not found in the search interval. No need to search further.
+          atSNId.clear();
+          return null;
+        }
 
-          // Check if tuple contains term and is within the SN interval.
-          termBitmap = getTermBitmap(tuple, term, fieldNumber,
-                        searchInterval, atSNId);
+        CBitmap termBitmap = cursors[i].bitmap;
 
-          if (atSNId.size() == 0) {
-            // term not found in the search interval.
-            return null;
-          }
+        if (cursors[i].snId > currSNId) {
+          // Re-start search at the greater SN.
+          currSNId = cursors[i].snId;
 
-          // (atSNId != null)
-          if (atSNId.get(0) > currSNId) {
-            if (termBitmap != null) {
-              // Re-start search at the greater SN.
-              currSNId = atSNId.get(0);
-
-              // Discard previous bitmaps.
-              predicateBitmap = null;
-              matches = 0;
-              lastFoundTermIndex = i;
-            } else {
-              // Re-start search at the next SN.
-              currSNId = atSNId.get(0) + 1;
-
-              // Discard previous bitmaps.
-              predicateBitmap = null;
-              matches = 0;
-              lastFoundTermIndex = -1;
-            }
-          }
-        } // while (termBitmap)
+          // Discard previous bitmaps.
+          predicateBitmap = null;
+          matches = 0;
+          lastFoundTermIndex = i;
+        }
 
         // (termBitmap != null at currSNId)
 
@@ -540,6 +838,27 @@ public class SpatialInvertedFile {
     return null;
   } // private CBitmap andSemantics()
 
+  /**
+   * Posting cursor of a term of an OR predicate.
+   */
+  private static class TermCursor {
+    static final Comparator<TermCursor> SN_ORDER = new Comparator<TermCursor>() {
+      public int compare(TermCursor c1, TermCursor c2) {
+        int sn1 = c1.postings.snId;
+        int sn2 = c2.postings.snId;
+        return (sn1 < sn2)? -1 : ((sn1 == sn2)? 0 : 1);
+      }
+    };
+
+    final int term; // index of the term in the predicate
+    final PostingCursor postings;
+
+    TermCursor(int term, PostingCursor postings) {
+      this.term = term;
+      this.postings = postings;
+    }
+  } // private static class TermCursor
+
   /**
    * Returns the bitmap of the smallest SNId in the SN interval (inclusive)
    * where the OR-semantics predicate is satisfied.
@@ -555,112 +874,50 @@ public class SpatialInvertedFile {
     int numberOfTerms = queryTextPredicate.getKeywordList().size();
     int startSN = snInterval.getStart();
     int endSN = snInterval.getEnd();
-    int currSNId = endSN + 1;
     short fieldNumber = queryTextPredicate.getFieldNumber();
-    TupleBrowser[] browsers = new TupleBrowser[numberOfTerms];
-    SNInterval searchInterval = new SNInterval(startSN, endSN);
+    int[] termIds = getTermIds(queryTextPredicate);
 
-    // Keeps terms not found in the interval.
-    ArrayList<String> exhaustedTerms = new ArrayList<String>();
+    // Term cursors ordered by the SN of their current posting. Terms not
+    // found in the interval have no cursor.
+    PriorityQueue<TermCursor> cursors = new PriorityQueue<TermCursor>(
+            Math.max(1, numberOfTerms), TermCursor.SN_ORDER);
 
-    // Initialize term browsers and current SN.
+    // Initialize term cursors.
     for (int i = 0; i < numberOfTerms; i++) {
-      String term = queryTextPredicate.getKeywordList().get(i);
-      TermAtSN termAtSN = new TermAtSN(term, startSN);
-      browsers[i] = bitmapStore.browse(termAtSN);
-      
-      // Check if tuple contains term.
-      Tuple tuple = new Tuple(null, null);
-
-      if (!browsers[i].getNext(tuple)) {
-        // term not found. No need to search it any further.
-        exhaustedTerms.add(term);
-
-        // Check next term.
+      if (!bitmapStore.mayContain(termIds[i], startSN, endSN)) {
+        // term has no posting in the interval. No need to search it.
         continue;
       }
 
-      getTermBitmap(tuple, term, fieldNumber, searchInterval, atSNId);
-
-      if (atSNId.size() == 0 || atSNId.get(0) > endSN) {
-        // term not found in the search interval. No need to search it any further.
-        exhaustedTerms.add(term);
+      PostingCursor postings = openCursor(queryTextPredicate.getKeywordList().get(i),
+              termIds[i], fieldNumber, startSN);
 
-        // Check next term.
-        continue;
-      }
-      // (atSNId >= startSN)
-
-      // Re-position browser.
-      browsers[i].getPrevious(tuple);
-
-      if (atSNId.get(0) < currSNId) {
-        // Start search at the lowest SN.
-        currSNId = atSNId.get(0);
+      if (postings.seek(startSN) && postings.snId <= endSN) {
+        cursors.add(new TermCursor(i, postings));
       }
     } // for (int i = 0; i < numberOfTerms; i++)
 
-    if (exhaustedTerms.size() == numberOfTerms) {
-      // No term found in the search interval.
-      atSNId.clear();
-      return null;
-    }
-
-    // (currSNId >= startSN && currSNId <= endSN)
+    ArrayList<TermCursor> currCursors = new ArrayList<TermCursor>(numberOfTerms);
 
-    // TODO: case for aField. bitmap at currSN may be null.
-    // Then you need to iterate until a not-null bitmap is found.
-
-    while (currSNId <= endSN) {
+    // Merge posting lists: visit SNs in order, reading every posting once.
+    while (!cursors.isEmpty()) {
+      int currSNId = cursors.peek().postings.snId;
       CBitmap predicateBitmap = null;
-      searchInterval = new SNInterval(currSNId, endSN);
-      int nextSNId = endSN;
-
-      // Combine posting lists.
-      for (int i = 0; i < numberOfTerms; i++) {
-        String term = queryTextPredicate.getKeywordList().get(i);
-
-        if (exhaustedTerms.contains(term)) {
-          // term does not exist in the interval. Skip it.
-          continue;
-        }
-
-        Tuple tuple = new Tuple(null, null);
-
-        if (!browsers[i].getNext(tuple)) {
-          // term not found. No need to search it any further.
-          exhaustedTerms.add(term);
-
-          // Check next term.
-          continue;
-        }
-
-        // Check if tuple contains term and is within the SN interval.
-        CBitmap termBitmap = null;
-        termBitmap = getTermBitmap(tuple, term, fieldNumber, searchInterval, atSNId);
-
-        if (atSNId.size() == 0) {
-          // term not found in the search interval.
-          exhaustedTerms.add(term);
+      currCursors.clear();
 
-          // Check next term.
-          continue;
-        }
+      // Combine the bitmaps of every term at the smallest SN.
+      while (!cursors.isEmpty() && cursors.peek().postings.snId == currSNId) {
+        TermCursor cursor = cursors.poll();
 
-        if (atSNId.get(0) == currSNId) {
-          // Combine bitmaps.
-          if (predicateBitmap == null) {
-            predicateBitmap = termBitmap;
-          } else {
-            predicateBitmap = combineSuperNodeBitmaps(predicateBitmap, termBitmap,
-                              ComparisonOperator.OR);
-          }
+        if (predicateBitmap == null) {
+          predicateBitmap = cursor.postings.bitmap;
+        } else {
+          predicateBitmap = combineSuperNodeBitmaps(predicateBitmap,
+                            cursor.postings.bitmap, ComparisonOperator.OR);
         }
 
-        if (atSNId.get(0) < nextSNId) {
-          nextSNId = atSNId.get(0);
-        }
-      } // for (int i = 0; i < numberOfTerms; i++)
+        currCursors.add(cursor);
+      }
 
       if (predicateBitmap != null && predicateBitmap.cardinality() > 0) {
         // Candidate found.
@@ -668,13 +925,14 @@ public class SpatialInvertedFile {
         atSNId.add(0, currSNId);
         return predicateBitmap;
       }
-      
-      if (nextSNId > currSNId + 1) {
-        currSNId = nextSNId;
-      } else {
-        currSNId++;
+
+      // No candidate at currSNId: advance the cursors that were at it.
+      for (TermCursor cursor : currCursors) {
+        if (cursor.postings.next() && cursor.postings.snId <= endSN) {
+          cursors.add(cursor);
+        }
       }
-    } // while (currSNId <= endSN)
+    } // while (!cursors.isEmpty())
     
     // Interval was exhausted.
     atSNId.clear();
@@ -700,13 +958,20 @@ public class SpatialInvertedFile {
     int currSNId = endSN + 1;
     short fieldNumber = queryTextPredicate.getFieldNumber();
     TupleBrowser[] browsers = new TupleBrowser[numberOfTerms];
+    int[] termIds = getTermIds(queryTextPredicate);
     ArrayList<String> exhaustedTerms = new ArrayList<String>();
 
     // Initialize term browsers and current SN.
     for (int i = 0; i < numberOfTerms; i++) {
       String term = queryTextPredicate.getKeywordList().get(i);
-      TermAtSN termAtSN = new TermAtSN(term, startSNId);
-      browsers[i] = bitmapStore.browse(termAtSN);
+
+      if (!bitmapStore.mayContain(termIds[i], startSNId, endSN)) {
+        // term has no posting in the interval. Its browser is left null.
+        exhaustedTerms.add(term);
+        continue;
+      }
+
+      browsers[i] = bitmapStore.browse(bitmapStore.getKey(term, termIds[i], startSNId));
 
       // Check if tuple contains term.
       Tuple tuple = new Tuple(null, null);
@@ -718,7 +983,7 @@ public class SpatialInvertedFile {
       }
 
       SNInterval searchInterval = new SNInterval(startSNId, endSN);
-      getTermBitmap(tuple, term, fieldNumber, searchInterval, atSNId);
+      getTermBitmap(tuple, term, termIds[i], fieldNumber, searchInterval, atSNId);
 
       if (atSNId.size() == 0 || atSNId.get(0) > endSN) {
         // term not found in the search interval. Check next term.
@@ -740,7 +1005,7 @@ public class SpatialInvertedFile {
       // All objects in startSN qualify.
       atSNId.clear();
       atSNId.add(startSNId);
-      return cleanseSNBitmap(startSNId, CBM_ALL_BITS_SET.getBitSet());
+      return getOccupiedEntries(startSNId);
     }
 
     // (currSNId == startSNId)
@@ -762,45 +1027,53 @@ public class SpatialInvertedFile {
         CBitmap termBitmap = null;
         String term = queryTextPredicate.getKeywordList().get(i);
 
-        // Flip bits as needed.
-        while (termBitmap == null && currSNId <= endSN) {
-          if (!browsers[i].getNext(tuple)) {
-            // term not found in the search interval. All objects qualify.
-            termBitmap = cleanseSNBitmap(currSNId, CBM_ALL_BITS_SET.getBitSet());
-            break;
-          }
+        if (browsers[i] == null) {
+          // term not found in the search interval. All objects qualify.
+          termBitmap = getOccupiedEntries(currSNId);
+        } else {
+          // Skip postings before currSNId without reading them.
+          bitmapStore.seek(browsers[i], bitmapStore.getKey(term, termIds[i], currSNId));
 
-          // Check if tuple contains term and is within the SN interval.
-          termBitmap = getTermBitmap(tuple, term, fieldNumber,
-                        searchInterval, atSNId);
+          // Flip bits as needed.
+          while (termBitmap == null && currSNId <= endSN) {
+            if (!browsers[i].getNext(tuple)) {
+              // term not found in the search interval. All objects qualify.
+              termBitmap = getOccupiedEntries(currSNId);
+              break;
+            }
 
-          if (atSNId.size() == 0 || atSNId.get(0) > endSN) {
-            // term not found in the search interval. All objects qualify.
-            termBitmap = cleanseSNBitmap(currSNId, CBM_ALL_BITS_SET.getBitSet());
-            break;
-          }
+            // Check if tuple contains term and is within the SN interval.
+            termBitmap = getTermBitmap(tuple, term, termIds[i], fieldNumber,
+                          searchInterval, atSNId);
 
-          // (atSNId != null)
-          if (atSNId.get(0) == currSNId) {
-            if (termBitmap != null) {
-              termBitmap = cleanseSNBitmap(currSNId, termBitmap.flipBS(SUPER_NODE_SIZE));
-            } else {
+            if (atSNId.size() == 0 || atSNId.get(0) > endSN) {
               // term not found in the search interval. All objects qualify.
-              termBitmap = cleanseSNBitmap(currSNId, CBM_ALL_BITS_SET.getBitSet());
+              termBitmap = getOccupiedEntries(currSNId);
+              break;
             }
 
-            // Check next term.
-            break;
-          }
+            // (atSNId != null)
+            if (atSNId.get(0) == currSNId) {
+              if (termBitmap != null) {
+                termBitmap = getEntriesWithout(currSNId, termBitmap);
+              } else {
+                // term not found in the search interval. All objects qualify.
+                termBitmap = getOccupiedEntries(currSNId);
+              }
 
-          if (atSNId.get(0) > currSNId) {
-            // term not found at currSNId. All objects qualify.
-            termBitmap = cleanseSNBitmap(currSNId, CBM_ALL_BITS_SET.getBitSet());
+              // Check next term.
+              break;
+            }
 
-            // Re-position browser. (Wait for other postings.)
-            browsers[i].getPrevious(tuple);
-          }
-        } // while (termBitmap == null)
+            if (atSNId.get(0) > currSNId) {
+              // term not found at currSNId. All objects qualify.
+              termBitmap = getOccupiedEntries(currSNId);
+
+              // Re-position browser. (Wait for other postings.)
+              browsers[i].getPrevious(tuple);
+            }
+          } // while (termBitmap == null)
+        } // if (browsers[i] == null)
 
         // (termBitmap != null at currSNId)
 
@@ -843,18 +1116,210 @@ public class SpatialInvertedFile {
     atSNId.clear();
     return null;
   } // private CBitmap notSemantics()
+
+  /**
+   * Adds predicates on the numeric bins of the store (see NumericBins) for
+   * the numeric query predicates, so they are evaluated with the text
+   * predicates and prune leaf entries before records are read. Numeric
+   * predicates that hold in every bin, e.g. NOT_EQUAL, add nothing.
+   *
+   * @param queryTextPredicates query predicates; they are not modified.
+   * @param numericParams numeric query predicates.
+   * @return copy of the predicates followed by the bin predicates, or
+   * queryTextPredicates itself if there is nothing to add.
+   */
+  public ArrayList<QueryTextPredicate> addNumericPredicates(
+          ArrayList<QueryTextPredicate> queryTextPredicates,
+          ArrayList<NumericParameter> numericParams) {
+    NumericBins bins = (bitmapStore != null)? bitmapStore.getNumericBins() : null;
+
+    if (bins == null || numericParams == null || numericParams.isEmpty()) {
+      return queryTextPredicates;
+    }
+
+    ArrayList<QueryTextPredicate> predicates = new ArrayList<QueryTextPredicate>();
+
+    if (queryTextPredicates != null) {
+      predicates.addAll(queryTextPredicates);
+    }
+
+    for (NumericParameter numericParameter : numericParams) {
+      QueryTextPredicate binPredicate = bins.getPredicate(numericParameter);
+
+      if (binPredicate != null) {
+        predicates.add(binPredicate);
+      }
+    }
+
+    if (predicates.isEmpty()) {
+      return queryTextPredicates;
+    }
+
+    return predicates;
+  } // public ArrayList<QueryTextPredicate> addNumericPredicates()
   
   /**
-   * Computes the SN bitmap as an array of BitSets of a given query.
-   * Every entry represents and individual node bitmap. Some node bitmaps
-   * may be null, meaning that no object within it satisfies the query predicates.
+   * Orders query predicates and their keywords by estimated selectivity, so
+   * that the rarest term drives the SN skipping. Keywords follow the ordering
+   * expected by andSemantics(), orSemantics() and notSemantics(). A predicate is estimated by
+   * the number of super nodes holding its terms: the rarest term for AND,
+   * the sum for OR. NOT predicates qualify almost everywhere and go last.
+   * Ties keep their order.
+   *
+   * @param queryTextPredicates query predicates; they are not modified.
+   * @return ordered copy of the predicates, or queryTextPredicates itself if
+   * the store has no term frequencies.
+   */
+  public ArrayList<QueryTextPredicate> planPredicates(
+          ArrayList<QueryTextPredicate> queryTextPredicates) {
+    MaterializedPredicate materialized = materializedPredicate;
+
+    if (materialized != null && queryTextPredicates != null &&
+        materialized.isPartOf(queryTextPredicates)) {
+      // Materialized predicates are evaluated in memory, first.
+      ArrayList<QueryTextPredicate> plan = new ArrayList<QueryTextPredicate>(
+              planPredicates(materialized.removeFrom(queryTextPredicates)));
+      plan.add(0, materialized);
+      return plan;
+    }
+
+    if (queryTextPredicates == null || bitmapStore == null ||
+        !bitmapStore.hasTermFrequencies()) {
+      return queryTextPredicates;
+    }
+
+    // Super nodes holding a term, then objects to break ties.
+    final HashMap<String, Long> frequencies = new HashMap<String, Long>();
+    final HashMap<QueryTextPredicate, Long> estimates = new HashMap<QueryTextPredicate, Long>();
+    ArrayList<QueryTextPredicate> plan = new ArrayList<QueryTextPredicate>();
+
+    try {
+      for (QueryTextPredicate predicate : queryTextPredicates) {
+        for (String term : predicate.getKeywordList()) {
+          if (!frequencies.containsKey(term)) {
+            TermFrequency frequency = bitmapStore.getTermFrequency(term);
+            frequencies.put(term, (frequency == null)? 0L :
+                    ((long) frequency.getSuperNodes() << 32) | frequency.getDocuments());
+          }
+        }
+      }
+    } catch (IOException e) {
+      Logger.getLogger(SpatialInvertedFile.class.getName()).log(Level.SEVERE, null, e);
+      return queryTextPredicates;
+    }
+
+    for (QueryTextPredicate predicate : queryTextPredicates) {
+      ArrayList<String> keywords = new ArrayList<String>(predicate.getKeywordList());
+      long estimate = 0;
+
+      final boolean isAnd = (predicate.getOperator() == ComparisonOperator.EQUAL);
+
+      // Least frequent keywords first for AND, most frequent first otherwise.
+      Collections.sort(keywords, new Comparator<String>() {
+        public int compare(String t1, String t2) {
+          int c = frequencies.get(t1).compareTo(frequencies.get(t2));
+          return isAnd? c : -c;
+        }
+      });
+
+      if (isAnd) {
+        estimate = keywords.isEmpty()? 0 : frequencies.get(keywords.get(0));
+      } else if (predicate.getOperator() == ComparisonOperator.OR) {
+        for (String term : keywords) {
+          estimate += frequencies.get(term);
+        }
+      } else {
+        estimate = Long.MAX_VALUE;
+      }
+
+      QueryTextPredicate planned = new QueryTextPredicate(predicate.getOperator(),
+              predicate.getFieldNumber(), predicate.getFieldName());
+
+      for (String term : keywords) {
+        planned.add(term);
+      }
+
+      estimates.put(planned, estimate);
+      plan.add(planned);
+    } // for (QueryTextPredicate predicate : queryTextPredicates)
+
+    Collections.sort(plan, new Comparator<QueryTextPredicate>() {
+      public int compare(QueryTextPredicate p1, QueryTextPredicate p2) {
+        return estimates.get(p1).compareTo(estimates.get(p2));
+      }
+    });
+
+    return plan;
+  } // public ArrayList<QueryTextPredicate> planPredicates()
+
+  /**
+   * Summarizes where a query may have results: a predicate can only hold in
+   * groups of TermSNFilter.GROUP_SIZE SNs (subtrees of the level above SNs)
+   * holding every term of an AND predicate, or some term of an OR predicate,
+   * and the query in groups where all its predicates can. NOT predicates
+   * hold anywhere.
+   *
+   * @param queryTextPredicates query predicates.
+   * @return candidate groups, or null if they are not known.
+   */
+  private BitSet getCandidateGroups(ArrayList<QueryTextPredicate> queryTextPredicates) {
+    BitSet candidateGroups = null;
+
+    for (QueryTextPredicate queryTextPredicate : queryTextPredicates) {
+      ComparisonOperator op = queryTextPredicate.getOperator();
+      BitSet groups = null;
+
+      if (queryTextPredicate instanceof MaterializedPredicate) {
+        groups = ((MaterializedPredicate) queryTextPredicate).getGroups();
+      } else if (op == ComparisonOperator.EQUAL) {
+        for (int termId : getTermIds(queryTextPredicate)) {
+          BitSet termGroups = bitmapStore.getGroups(termId);
+
+          if (groups == null) {
+            groups = termGroups;
+          } else if (termGroups != null) {
+            groups.and(termGroups);
+          }
+        }
+      } else if (op == ComparisonOperator.OR) {
+        groups = new BitSet();
+
+        for (int termId : getTermIds(queryTextPredicate)) {
+          BitSet termGroups = bitmapStore.getGroups(termId);
+
+          if (termGroups == null) {
+            // Term may be anywhere.
+            groups = null;
+            break;
+          }
+
+          groups.or(termGroups);
+        }
+      }
+
+      if (groups == null) {
+        continue;
+      } else if (candidateGroups == null) {
+        candidateGroups = (BitSet) groups.clone();
+      } else {
+        candidateGroups.and(groups);
+      }
+    } // for (QueryTextPredicate queryTextPredicate : queryTextPredicates)
+
+    return candidateGroups;
+  } // private BitSet getCandidateGroups()
+
+  /**
+   * Computes the SN bitmap of a given query. The bitmap stays compressed;
+   * individual node bitmaps are decoded when the nodes are expanded.
+   * Predicates are evaluated in the given order; see planPredicates().
    *
    * @param snId a super node id.
    * @param queryTextPredicates query predicates.
    * @return
    * @throws java.io.IOException
    */
-  public BitSet[] getQuerySNbitmap(int startSN, int endSN,
+  public SNQueryBitmap getQuerySNbitmap(int startSN, int endSN,
           ArrayList<QueryTextPredicate> queryTextPredicates,
           ArrayList<Integer> atSNId) throws IOException {
     CBitmap querySNbitmap = null;
@@ -862,12 +1327,34 @@ public class SpatialInvertedFile {
     int lastEvaluatedPredicate = -1;
     int matches = 0;
     int numberOfPredicates = queryTextPredicates.size();
+    final int GROUP_SIZE = TermSNFilter.GROUP_SIZE;
+
+    // Intervals of several groups, e.g. of subtrees above SNs, skip to the
+    // groups where the query may have results. Single groups are checked
+    // term by term by the predicates.
+    BitSet candidateGroups = (startSN / GROUP_SIZE < endSN / GROUP_SIZE)?
+            getCandidateGroups(queryTextPredicates) : null;
 
     while (currSNId <= endSN) {
       if (snNodeBoundaries != null && !snNodeBoundaries.containsKey(currSNId)) {
         currSNId++;
       }
 
+      if (candidateGroups != null) {
+        int group = candidateGroups.nextSetBit(currSNId / GROUP_SIZE);
+
+        if (group < 0 || (long) group * GROUP_SIZE > endSN) {
+          // No candidate group left in the interval.
+          return null;
+        } else if (group * GROUP_SIZE > currSNId) {
+          // Skip the whole groups before it.
+          currSNId = group * GROUP_SIZE;
+          querySNbitmap = null;
+          lastEvaluatedPredicate = -1;
+          matches = 0;
+        }
+      }
+
       for (int i = 0; i < numberOfPredicates && currSNId <= endSN; i++) {
         if (i == lastEvaluatedPredicate) {
           // Predicate already evaluated. Skip it.
@@ -879,7 +1366,10 @@ public class SpatialInvertedFile {
         ComparisonOperator op = queryTextPredicates.get(i).getOperator();
         CBitmap aPredSNbitmap = null;
 
-        if (op == ComparisonOperator.EQUAL) {
+        if (queryTextPredicate instanceof MaterializedPredicate) {
+          aPredSNbitmap = ((MaterializedPredicate) queryTextPredicate).getBitmap(
+               new SNInterval(currSNId, endSN), atSNId);
+        } else if (op == ComparisonOperator.EQUAL) {
           aPredSNbitmap = andSemantics(queryTextPredicate,
                new SNInterval(currSNId, endSN), atSNId);
         } else if (op == ComparisonOperator.NOT_EQUAL) {
@@ -901,9 +1391,10 @@ public class SpatialInvertedFile {
             querySNbitmap = aPredSNbitmap;
           } else {
             // Combine predicate bitmaps.
+            // The predicate that moved the search here, if any, already
+            // matched; it is skipped, not counted again.
             querySNbitmap = combineSuperNodeBitmaps(querySNbitmap, aPredSNbitmap,
                               ComparisonOperator.EQUAL);
-            lastEvaluatedPredicate = -1;
           }
           
           if (querySNbitmap == null || querySNbitmap.cardinality() == 0) {
@@ -943,13 +1434,69 @@ public class SpatialInvertedFile {
         // Candidate found.
         atSNId.add(0, currSNId);
 
-        return CBitmap2BitSets(querySNbitmap);
+        return new SNQueryBitmap(querySNbitmap, M);
       }
     } // while (currSNId <= endSN)
 
     // Interval exhausted.
     return null;
-  } // public BitSet[] getQuerySNbitmap()
+  } // public SNQueryBitmap getQuerySNbitmap()
+
+  /**
+   * Evaluates fixed predicates, e.g. those of a meta-category, over every
+   * SN and keeps their bitmaps in memory. Queries holding these predicate
+   * instances then evaluate them in memory (see planPredicates()). Must be
+   * called again whenever the bitmap store changes.
+   *
+   * @param predicates
+   * @return materialized predicates, or null if there is nothing to
+   * materialize or the store cannot be read.
+   */
+  public MaterializedPredicate materializePredicates(ArrayList<QueryTextPredicate> predicates) {
+    materializedPredicate = null;
+
+    if (predicates == null || predicates.isEmpty() || bitmapStore == null ||
+        snNodeBoundaries == null) {
+      return null;
+    }
+
+    int maxSNId = -1;
+
+    for (Integer snId : snNodeBoundaries.keySet()) {
+      maxSNId = Math.max(maxSNId, snId);
+    }
+
+    ArrayList<QueryTextPredicate> plan = planPredicates(predicates);
+    CBitmap[] bitmaps = new CBitmap[maxSNId + 1];
+    ArrayList<Integer> atSNId = new ArrayList<Integer>();
+    int currSNId = 0;
+
+    try {
+      while (currSNId <= maxSNId) {
+        SNQueryBitmap snQueryBitmap = getQuerySNbitmap(currSNId, maxSNId, plan, atSNId);
+
+        if (snQueryBitmap == null) {
+          break;
+        }
+
+        bitmaps[atSNId.get(0)] = snQueryBitmap.getBitmap();
+        currSNId = atSNId.get(0) + 1;
+      }
+    } catch (IOException e) {
+      Logger.getLogger(SpatialInvertedFile.class.getName()).log(Level.SEVERE, null, e);
+      return null;
+    }
+
+    materializedPredicate = new MaterializedPredicate(predicates, bitmaps);
+    return materializedPredicate;
+  } // public MaterializedPredicate materializePredicates()
+
+  /**
+   * @return predicates evaluated at load time, or null if none.
+   */
+  public MaterializedPredicate getMaterializedPredicate() {
+    return materializedPredicate;
+  }
 
   /**
    * Combines term super node bitmaps according to the op semantics.
@@ -1005,14 +1552,37 @@ public class SpatialInvertedFile {
   } // private CBitmap combineSuperNodeBitmaps()
 
   public boolean startupStore() {
+    if (bitmapStore != null && bitmapStore.startup()) {
+      buildSNMasks();
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Opens the bitmap store for serving queries: reads run concurrently and
+   * the store cannot be modified.
+   */
+  public boolean startupStoreReadOnly() {
     if (bitmapStore != null) {
-      return bitmapStore.startup();
+      bitmapStore.setReadOnly(true);
+
+      if (!bitmapStore.startup()) {
+        return false;
+      }
+
+      buildSNMasks();
+      return true;
     } else {
       return false;
     }
   }
 
   public boolean shutdownStore() {
+    clearPostingCache();
+    materializedPredicate = null;
+
     if (bitmapStore != null) {
       return bitmapStore.shutdown();
     } else {
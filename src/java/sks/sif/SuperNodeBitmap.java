@@ -7,10 +7,17 @@
 
 package sks.sif;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import sks.util.ExternalSorter;
 
 /**
  * Super node bitmap.
@@ -18,11 +25,24 @@ import java.util.Hashtable;
  * @author Ariel Cary
  */
 public class SuperNodeBitmap implements Serializable {
+  // Computed value of the class before it was pinned; keeps stored bitmaps readable.
+  static final long serialVersionUID = 6918790758040419571L;
   private CBitmap anyFieldBitmap;
   private Hashtable<Short, CBitmap> aFieldBitmaps;
   boolean isSingleField;
 
+  private SuperNodeBitmap() {
+  }
+
   public SuperNodeBitmap(Hashtable<Short, BitSet> fieldBitmaps) {
+    this(fieldBitmaps, BitmapCodec.WAH);
+  }
+
+  /**
+   * @param fieldBitmaps uncompressed bitmap of every field.
+   * @param codec encoding of the compressed bitmaps.
+   */
+  public SuperNodeBitmap(Hashtable<Short, BitSet> fieldBitmaps, BitmapCodec codec) {
     if (fieldBitmaps.size() == 0) {
       anyFieldBitmap = null;
       aFieldBitmaps = null;
@@ -58,7 +78,7 @@ public class SuperNodeBitmap implements Serializable {
     BitSet anyFbs = new BitSet();
 
     for (Short fieldNbr: sharedBS.keySet()) {
-      CBitmap cBitmap = new CBitmap(fieldBitmaps.get(fieldNbr));
+      CBitmap cBitmap = new CBitmap(fieldBitmaps.get(fieldNbr), codec);
       aFieldBitmaps.put(fieldNbr, cBitmap);
 
       if (sharedBS.get(fieldNbr).length() > 0) {
@@ -77,10 +97,80 @@ public class SuperNodeBitmap implements Serializable {
       anyFieldBitmap = null;
     } else {
       isSingleField = false;
-      anyFieldBitmap = new CBitmap(anyFbs);
+      anyFieldBitmap = new CBitmap(anyFbs, codec);
     }
   }
   
+  /**
+   * Writes this bitmap in binary form: the distinct bitmaps, then the
+   * bitmap of any field and of every field as references to them, so
+   * bitmaps shared by several fields are written once. See readFrom().
+   */
+  void writeTo(DataOutput out) throws IOException {
+    ArrayList<CBitmap> bitmaps = new ArrayList<CBitmap>();
+    IdentityHashMap<CBitmap, Integer> refs = new IdentityHashMap<CBitmap, Integer>();
+
+    if (anyFieldBitmap != null) {
+      refs.put(anyFieldBitmap, bitmaps.size());
+      bitmaps.add(anyFieldBitmap);
+    }
+
+    if (aFieldBitmaps != null) {
+      for (CBitmap cBitmap : aFieldBitmaps.values()) {
+        if (!refs.containsKey(cBitmap)) {
+          refs.put(cBitmap, bitmaps.size());
+          bitmaps.add(cBitmap);
+        }
+      }
+    }
+
+    out.writeBoolean(isSingleField);
+    ExternalSorter.writeVarLong(out, bitmaps.size());
+
+    for (CBitmap cBitmap : bitmaps) {
+      cBitmap.writeTo(out);
+    }
+
+    // References are index + 1; 0 stands for null.
+    ExternalSorter.writeVarLong(out, (anyFieldBitmap == null)? 0 : refs.get(anyFieldBitmap) + 1);
+    ExternalSorter.writeVarLong(out, (aFieldBitmaps == null)? 0 : aFieldBitmaps.size() + 1);
+
+    if (aFieldBitmaps != null) {
+      for (Map.Entry<Short, CBitmap> field : aFieldBitmaps.entrySet()) {
+        out.writeShort(field.getKey());
+        ExternalSorter.writeVarLong(out, refs.get(field.getValue()) + 1);
+      }
+    }
+  } // void writeTo()
+
+  /**
+   * Reads a bitmap written by writeTo().
+   */
+  static SuperNodeBitmap readFrom(DataInput in) throws IOException {
+    SuperNodeBitmap ret = new SuperNodeBitmap();
+    ret.isSingleField = in.readBoolean();
+    CBitmap[] bitmaps = new CBitmap[(int) ExternalSorter.readVarLong(in)];
+
+    for (int i = 0; i < bitmaps.length; i++) {
+      bitmaps[i] = CBitmap.readFrom(in);
+    }
+
+    int anyFieldRef = (int) ExternalSorter.readVarLong(in);
+    ret.anyFieldBitmap = (anyFieldRef == 0)? null : bitmaps[anyFieldRef - 1];
+    int fields = (int) ExternalSorter.readVarLong(in) - 1;
+
+    if (fields >= 0) {
+      ret.aFieldBitmaps = new Hashtable<Short, CBitmap>();
+
+      for (int i = 0; i < fields; i++) {
+        short fieldNbr = in.readShort();
+        ret.aFieldBitmaps.put(fieldNbr, bitmaps[(int) ExternalSorter.readVarLong(in) - 1]);
+      }
+    }
+
+    return ret;
+  } // static SuperNodeBitmap readFrom()
+
   public CBitmap getAnyFieldBitmap() {
     if (isSingleField && aFieldBitmaps != null) {
       CBitmap anyFBitmap = null;
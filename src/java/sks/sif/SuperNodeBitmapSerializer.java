@@ -0,0 +1,31 @@
+package sks.sif;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import jdbm.helper.Serializer;
+
+/**
+ * Binary B+tree value serializer of SuperNodeBitmap. It writes the field
+ * bitmaps and their compressed words only, without the class descriptors
+ * and object headers of Java serialization.
+ *
+ * @author Ariel Cary
+ */
+public class SuperNodeBitmapSerializer implements Serializer {
+  static final long serialVersionUID = 4417925638160542307L;
+
+  public byte[] serialize(Object obj) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    ((SuperNodeBitmap) obj).writeTo(out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  public Object deserialize(byte[] serialized) throws IOException {
+    return SuperNodeBitmap.readFrom(new DataInputStream(new ByteArrayInputStream(serialized)));
+  }
+} // public class SuperNodeBitmapSerializer
@@ -20,7 +20,15 @@ public class TermAtSN implements Serializable {
    * @throws IOException
    */
   public TermAtSN(String term, int snId) throws IOException {
-    this.term = term.getBytes();
+    this(term.getBytes(), snId);
+  }
+
+  /**
+   * @param term term bytes, as returned by getTermBytes().
+   * @param snId range is positive integers.
+   */
+  TermAtSN(byte[] term, int snId) {
+    this.term = term;
     int size = (int) Math.ceil(Math.log10(snId + 1) / Math.log10(2) / 8f);
 
     if (size <= 0) {
@@ -35,6 +43,10 @@ public class TermAtSN implements Serializable {
     }
   }
 
+  byte[] getTermBytes() {
+    return term;
+  }
+
   public String getTerm() {
     return new String(term);
   }
@@ -42,7 +42,7 @@ public class TermAtSNComparator implements Comparator, Serializable {
     TermAtSN termAtSN1 = (TermAtSN) term1;
     TermAtSN termAtSN2 = (TermAtSN) term2;
 
-    int termComp = termAtSN1.getTerm().compareTo(termAtSN2.getTerm());
+    int termComp = compareTerms(termAtSN1.term, termAtSN2.term);
 
     if (termComp < 0) {
       return -1;
@@ -58,4 +58,25 @@ public class TermAtSNComparator implements Comparator, Serializable {
       }
     }
   } // public int compare(Object term1, Object term2)
+
+  /**
+   * Compares term bytes as String.compareTo() compares the terms. ASCII
+   * bytes are compared in place; the terms are decoded only from the first
+   * non-ASCII byte on (ASCII-compatible default charset).
+   */
+  private static int compareTerms(byte[] term1, byte[] term2) {
+    int n = Math.min(term1.length, term2.length);
+
+    for (int i = 0; i < n; i++) {
+      if (term1[i] < 0 || term2[i] < 0) {
+        return new String(term1).compareTo(new String(term2));
+      }
+
+      if (term1[i] != term2[i]) {
+        return term1[i] - term2[i];
+      }
+    }
+
+    return term1.length - term2.length;
+  } // private static int compareTerms()
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+package sks.sif;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import jdbm.helper.Serializer;
+import sks.util.ExternalSorter;
+
+/**
+ * Binary B+tree key serializer of TermAtSN: term length and bytes, then the
+ * super node id, both lengths as variable-length integers.
+ *
+ * @author Ariel Cary
+ */
+public class TermAtSNSerializer implements Serializer {
+  static final long serialVersionUID = -2291840652718233915L;
+
+  public byte[] serialize(Object obj) throws IOException {
+    TermAtSN termAtSN = (TermAtSN) obj;
+    byte[] term = termAtSN.getTermBytes();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(term.length + 8);
+    DataOutputStream out = new DataOutputStream(bytes);
+    ExternalSorter.writeVarLong(out, term.length);
+    out.write(term);
+    ExternalSorter.writeVarLong(out, termAtSN.getSNId());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  public Object deserialize(byte[] serialized) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+    byte[] term = new byte[(int) ExternalSorter.readVarLong(in)];
+    in.readFully(term);
+    return new TermAtSN(term, (int) ExternalSorter.readVarLong(in));
+  }
+} // public class TermAtSNSerializer
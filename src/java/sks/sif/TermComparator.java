@@ -0,0 +1,29 @@
+package sks.sif;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * Orders terms lexicographically, as TermAtSNComparator does.
+ *
+ * @author Ariel Cary
+ */
+public class TermComparator implements Comparator<Object>, Serializable {
+  final static long serialVersionUID = 1738254096123377841L;
+
+  public TermComparator() {
+  }
+
+  @Override
+  public int compare(Object term1, Object term2) {
+    if (!(term1 instanceof String)) {
+      throw new IllegalArgumentException("term1 is of invalid type");
+    }
+
+    if (!(term2 instanceof String)) {
+      throw new IllegalArgumentException("term2 is of invalid type");
+    }
+
+    return ((String) term1).compareTo((String) term2);
+  }
+} // public class TermComparator
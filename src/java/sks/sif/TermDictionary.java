@@ -0,0 +1,76 @@
+package sks.sif;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Assigns dense Ids to the terms of a category while it is loaded, so
+ * postings carry an int instead of a String. Ids are assigned by a single
+ * thread; comparators may run in other threads (e.g. sorting runs).
+ *
+ * @author Ariel Cary
+ */
+public class TermDictionary {
+  private HashMap<String, Integer> ids = new HashMap<String, Integer>();
+  // Grown by copy and republished, so readers see all terms assigned before
+  // they were handed postings.
+  private volatile String[] terms = new String[1024];
+  private int size = 0;
+
+  /**
+   * @return Id of the term, which is added if needed.
+   */
+  public int getId(String term) {
+    Integer id = ids.get(term);
+
+    if (id == null) {
+      String[] tmpTerms = terms;
+
+      if (size == tmpTerms.length) {
+        tmpTerms = Arrays.copyOf(tmpTerms, size * 2);
+        terms = tmpTerms;
+      }
+
+      id = size++;
+      ids.put(term, id);
+      tmpTerms[id] = term;
+    }
+
+    return id;
+  }
+
+  public String getTerm(int id) {
+    return terms[id];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Orders postings by term, then entryId, then fieldNbr, as expected by
+   * SpatialInvertedFile.buildTermBitmaps(). Terms are compared by value, so
+   * the order does not depend on the Ids.
+   */
+  public Comparator<TermPosting> getPostingOrder() {
+    return new Comparator<TermPosting>() {
+      public int compare(TermPosting p1, TermPosting p2) {
+        if (p1.termId != p2.termId) {
+          String[] tmpTerms = terms;
+          int c = tmpTerms[p1.termId].compareTo(tmpTerms[p2.termId]);
+
+          if (c != 0) {
+            return c;
+          }
+        }
+
+        if (p1.entryId != p2.entryId) {
+          return (p1.entryId < p2.entryId)? -1 : 1;
+        }
+
+        return p1.fieldNbr - p2.fieldNbr;
+      }
+    };
+  } // public Comparator<TermPosting> getPostingOrder()
+} // public class TermDictionary
@@ -0,0 +1,39 @@
+package sks.sif;
+
+import java.io.Serializable;
+
+/**
+ * Number of objects and super nodes holding a term in a category. Used to
+ * order query keywords and predicates by selectivity.
+ *
+ * @author Ariel Cary
+ */
+public class TermFrequency implements Serializable {
+  static final long serialVersionUID = 3296137522390853704L;
+  private int documents;
+  private int superNodes;
+
+  public TermFrequency(int documents, int superNodes) {
+    this.documents = documents;
+    this.superNodes = superNodes;
+  }
+
+  /**
+   * @return number of objects holding the term in any field.
+   */
+  public int getDocuments() {
+    return documents;
+  }
+
+  /**
+   * @return number of super nodes holding the term.
+   */
+  public int getSuperNodes() {
+    return superNodes;
+  }
+
+  @Override
+  public String toString() {
+    return "[docs=" + documents + ", sns=" + superNodes + "]";
+  }
+} // public class TermFrequency
@@ -0,0 +1,34 @@
+package sks.sif;
+
+/**
+ * Packs a pair <term Id, SN> in a long: the term Id, given by the
+ * FrontCodedTermDictionary of the store, in the high word and the SN Id in
+ * the low word. Packed keys order as their pairs.
+ *
+ * @author Ariel Cary
+ */
+public final class TermIdAtSN {
+  private TermIdAtSN() {
+  }
+
+  /**
+   * @param termId term Id, or -1 for terms not in the dictionary. Such keys
+   * order before the keys of every term.
+   * @param snId range is positive integers.
+   */
+  public static long key(int termId, int snId) {
+    return ((long) termId << 32) | (snId & 0xFFFFFFFFL);
+  }
+
+  public static int getTermId(long key) {
+    return (int) (key >> 32);
+  }
+
+  public static int getSNId(long key) {
+    return (int) key;
+  }
+
+  public static String toString(long key) {
+    return (getTermId(key) + "@" + getSNId(key));
+  }
+} // public final class TermIdAtSN
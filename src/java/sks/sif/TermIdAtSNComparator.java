@@ -0,0 +1,31 @@
+package sks.sif;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * Orders keys packed by TermIdAtSN: term Id, then SN Id.
+ *
+ * @author Ariel Cary
+ */
+public class TermIdAtSNComparator implements Comparator<Object>, Serializable {
+  final static long serialVersionUID = 5520416389754193187L;
+
+  public TermIdAtSNComparator() {
+  }
+
+  @Override
+  public int compare(Object key1, Object key2) {
+    if (!(key1 instanceof Long)) {
+      throw new IllegalArgumentException("key1 is of invalid type");
+    }
+
+    if (!(key2 instanceof Long)) {
+      throw new IllegalArgumentException("key2 is of invalid type");
+    }
+
+    long k1 = ((Long) key1).longValue();
+    long k2 = ((Long) key2).longValue();
+    return (k1 < k2)? -1 : ((k1 == k2)? 0 : 1);
+  }
+} // public class TermIdAtSNComparator
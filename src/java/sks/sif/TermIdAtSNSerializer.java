@@ -0,0 +1,35 @@
+package sks.sif;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import jdbm.helper.Serializer;
+import sks.util.ExternalSorter;
+
+/**
+ * Binary B+tree key serializer of keys packed by TermIdAtSN: term Id and
+ * SN Id as variable-length integers.
+ *
+ * @author Ariel Cary
+ */
+public class TermIdAtSNSerializer implements Serializer {
+  static final long serialVersionUID = -6713530846092214416L;
+
+  public byte[] serialize(Object obj) throws IOException {
+    long key = ((Long) obj).longValue();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(10);
+    DataOutputStream out = new DataOutputStream(bytes);
+    ExternalSorter.writeVarLong(out, TermIdAtSN.getTermId(key));
+    ExternalSorter.writeVarLong(out, TermIdAtSN.getSNId(key));
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  public Object deserialize(byte[] serialized) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+    int termId = (int) ExternalSorter.readVarLong(in);
+    return new Long(TermIdAtSN.key(termId, (int) ExternalSorter.readVarLong(in)));
+  }
+} // public class TermIdAtSNSerializer
@@ -0,0 +1,50 @@
+package sks.sif;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import sks.util.ExternalSorter;
+
+/**
+ * Occurrence of a term in a field of the document at an R-tree leaf entry:
+ * &lt;termId, fieldNbr, entryId&gt;. Term Ids are given by a TermDictionary.
+ *
+ * @author Ariel Cary
+ */
+public class TermPosting {
+  public final int termId;
+  public final short fieldNbr;
+  public final long entryId;
+
+  public TermPosting(int termId, short fieldNbr, long entryId) {
+    this.termId = termId;
+    this.fieldNbr = fieldNbr;
+    this.entryId = entryId;
+  }
+
+  /**
+   * Run file encoding: termId, fieldNbr and entryId as variable-length longs.
+   */
+  static public final ExternalSorter.Codec<TermPosting> CODEC = new ExternalSorter.Codec<TermPosting>() {
+    public void write(DataOutput out, TermPosting posting) throws IOException {
+      ExternalSorter.writeVarLong(out, posting.termId);
+      ExternalSorter.writeVarLong(out, posting.fieldNbr);
+      ExternalSorter.writeVarLong(out, posting.entryId);
+    }
+
+    public TermPosting read(DataInput in) throws IOException {
+      int termId = (int) ExternalSorter.readVarLong(in);
+      short fieldNbr = (short) ExternalSorter.readVarLong(in);
+      return new TermPosting(termId, fieldNbr, ExternalSorter.readVarLong(in));
+    }
+
+    public int getMemorySize(TermPosting posting) {
+      return 40; // Object header, fields, and the list slot.
+    }
+  };
+
+  @Override
+  public String toString() {
+    return termId + "\t" + fieldNbr + "\t" + entryId;
+  }
+} // public class TermPosting
@@ -0,0 +1,238 @@
+package sks.sif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Coarse, in-memory map of where the terms of a bitmap store have postings.
+ * SNs are grouped by GROUP_SIZE, the SNs under one node of the level above
+ * them, and the groups holding each term Id are kept. A SN interval with no
+ * group of a term holds no posting of it, so the term can be skipped without
+ * reading the B+tree. Answers are conservative: a group may hold the term at
+ * SNs outside the interval.
+ * <p>
+ * Groups of a term are delta-encoded as variable-length integers. Terms in
+ * more than MAX_GROUPS groups are summarized one level up, by the groups of
+ * GROUP_SIZE groups holding them, after an empty list of groups. Terms in
+ * more than MAX_GROUPS of those are common enough not to be filtered.
+ * Filters written before the upper level read as unfiltered for them.
+ * Instances are immutable and may be shared by concurrent queries.
+ *
+ * @author Ariel Cary
+ */
+public class TermSNFilter implements Serializable {
+  static final long serialVersionUID = -4105876392815290216L;
+  static final int GROUP_SIZE = 80;
+  private static final int MAX_GROUPS = 256;
+
+  private int size;
+  private int[] offsets; // groups of term Id i start at data[offsets[i]]
+  private byte[] data;
+
+  private TermSNFilter(int size, int[] offsets, byte[] data) {
+    this.size = size;
+    this.offsets = offsets;
+    this.data = data;
+  }
+
+  /**
+   * @param termId term Id, or -1 for terms not in the store.
+   * @return false if the term has no posting in [startSN, endSN], true if
+   * it may have one.
+   */
+  public boolean mayContain(int termId, int startSN, int endSN) {
+    if (termId < 0) {
+      return false;
+    } else if (termId >= size) {
+      return true;
+    }
+
+    int[] pos = new int[] {offsets[termId]};
+    int count = readVarInt(data, pos);
+    int startGroup = startSN / GROUP_SIZE;
+    int endGroup = endSN / GROUP_SIZE;
+
+    if (count == 0) {
+      if (pos[0] == getEnd(termId)) {
+        // Term is not filtered.
+        return true;
+      }
+
+      // Groups of groups.
+      count = readVarInt(data, pos);
+      startGroup /= GROUP_SIZE;
+      endGroup /= GROUP_SIZE;
+    }
+
+    int group = 0;
+
+    for (int i = 0; i < count; i++) {
+      group += readVarInt(data, pos);
+
+      if (group > endGroup) {
+        return false;
+      } else if (group >= startGroup) {
+        return true;
+      }
+    }
+
+    return false;
+  } // public boolean mayContain()
+
+  /**
+   * @param termId term Id, or -1 for terms not in the store.
+   * @return groups of GROUP_SIZE SNs where the term may have postings, or
+   * null if the term is not filtered.
+   */
+  public BitSet getGroups(int termId) {
+    BitSet groups = new BitSet();
+
+    if (termId < 0) {
+      return groups;
+    } else if (termId >= size) {
+      return null;
+    }
+
+    int[] pos = new int[] {offsets[termId]};
+    int count = readVarInt(data, pos);
+    int width = 1;
+
+    if (count == 0) {
+      if (pos[0] == getEnd(termId)) {
+        return null;
+      }
+
+      count = readVarInt(data, pos);
+      width = GROUP_SIZE;
+    }
+
+    int group = 0;
+
+    for (int i = 0; i < count; i++) {
+      group += readVarInt(data, pos);
+      groups.set(group * width, (group + 1) * width);
+    }
+
+    return groups;
+  } // public BitSet getGroups()
+
+  /**
+   * @return position in data past the groups of termId.
+   */
+  private int getEnd(int termId) {
+    return (termId + 1 < size)? offsets[termId + 1] : data.length;
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    out.write(value);
+  }
+
+  private static int readVarInt(byte[] data, int[] pos) {
+    int value = 0;
+
+    for (int shift = 0; ; shift += 7) {
+      int b = data[pos[0]++] & 0xFF;
+      value |= (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Builds a filter from the keys of a store, added in key order.
+   */
+  public static class Builder {
+    private ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private int[] offsets = new int[1024];
+    private int[] groups = new int[MAX_GROUPS];
+    private int groupCount = 0;
+    private int[] upperGroups = new int[MAX_GROUPS]; // groups of groups
+    private int upperGroupCount = 0;
+    private int termId = -1;
+    private int size = 0;
+
+    /**
+     * @param termId
+     * @param snId
+     */
+    public void add(int termId, int snId) {
+      if (termId != this.termId) {
+        flush();
+        this.termId = termId;
+      }
+
+      int group = snId / GROUP_SIZE;
+      int upperGroup = group / GROUP_SIZE;
+
+      if (groupCount <= MAX_GROUPS &&
+          (groupCount == 0 || groups[groupCount - 1] != group)) {
+        if (groupCount < MAX_GROUPS) {
+          groups[groupCount] = group;
+        }
+
+        groupCount++;
+      }
+
+      if (upperGroupCount <= MAX_GROUPS &&
+          (upperGroupCount == 0 || upperGroups[upperGroupCount - 1] != upperGroup)) {
+        if (upperGroupCount < MAX_GROUPS) {
+          upperGroups[upperGroupCount] = upperGroup;
+        }
+
+        upperGroupCount++;
+      }
+    } // public void add()
+
+    /**
+     * Writes the groups of the current term.
+     */
+    private void flush() {
+      // Terms without keys, if any, are not filtered.
+      while (size <= termId) {
+        if (size == offsets.length) {
+          offsets = Arrays.copyOf(offsets, 2 * size);
+        }
+
+        offsets[size] = data.size();
+
+        if (size == termId && groupCount <= MAX_GROUPS) {
+          writeVarInt(data, groupCount);
+
+          for (int i = 0; i < groupCount; i++) {
+            writeVarInt(data, groups[i] - ((i > 0)? groups[i - 1] : 0));
+          }
+        } else {
+          writeVarInt(data, 0);
+
+          if (size == termId && upperGroupCount <= MAX_GROUPS) {
+            writeVarInt(data, upperGroupCount);
+
+            for (int i = 0; i < upperGroupCount; i++) {
+              writeVarInt(data, upperGroups[i] - ((i > 0)? upperGroups[i - 1] : 0));
+            }
+          }
+        }
+
+        size++;
+      }
+
+      groupCount = 0;
+      upperGroupCount = 0;
+    } // private void flush()
+
+    public TermSNFilter build() {
+      flush();
+      termId = -1;
+      return new TermSNFilter(size, Arrays.copyOf(offsets, size), data.toByteArray());
+    }
+  } // public static class Builder
+} // public class TermSNFilter
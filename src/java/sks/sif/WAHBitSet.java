@@ -13,7 +13,12 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.BitSet;
 import java.util.logging.Logger;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import sks.util.ExternalSorter;
 
 public class WAHBitSet implements Serializable {
     private static Logger logger = Logger.getLogger(WAHBitSet.class.getName());
@@ -31,12 +36,21 @@ public class WAHBitSet implements Serializable {
 
     private static final boolean RUN_UNTESTED_CODE = false;
     private static final int DEFAULT_INITIAL_SIZE = 4;
+    private static final int SKIP_INTERVAL = 16; // words between skip index entries
     
+    // set bits and bits in vec. nset is -1 when it has to be counted again.
+    // doCount() sets both, and the skip index, once a bitset is built or
+    // read, so that reads never write and bitsets can be shared by queries.
     private int nset;
     private int nbits;
     IntArrayList vec = new IntArrayList(DEFAULT_INITIAL_SIZE);
     ActiveWord active = new ActiveWord();
 
+    // built by doCount() for long vectors; null for short ones. words are
+    // only appended to vec, so the entries stay valid, and later words are
+    // reached by scanning.
+    private transient volatile SkipIndex skipIndex;
+
     /**
      * Create an empty bitset.
      */
@@ -50,17 +64,33 @@ public class WAHBitSet implements Serializable {
      */
     public WAHBitSet(BitSet set) {
         int last = 0, next, size = 0;
+        // append runs of set bits rather than one bit at a time.
         while((next=set.nextSetBit(last)) != -1) {
-            set(next);
-            last = next+1;
-            size ++;
+            appendRun(false, next - last);
+            last = set.nextClearBit(next);
+            appendRun(true, last - next);
+            size += last - next;
         }
+        doCount();
         
         if(size != set.cardinality() || size != this.cardinality()) {
             throw new AssertionError("The sizes were not the same after and before!");
         }
     }
 
+    /**
+     * Returns a bitset of <tt>nbits</tt> bits, all of them one.
+     *
+     * @param nbits the number of bits.
+     * @return the bitset.
+     */
+    public static WAHBitSet ones(int nbits) {
+        WAHBitSet ret = new WAHBitSet();
+        ret.appendRun(true, nbits);
+        ret.doCount();
+        return ret;
+    }
+
     /**
      * Sets the index <tt>i</tt> to one. expands the bitset if required.
      *
@@ -111,19 +141,152 @@ public class WAHBitSet implements Serializable {
         return false;
     }
 
+    /**
+     * Returns the bits from <tt>fromIndex</tt> (inclusive) to <tt>toIndex</tt>
+     * (exclusive), as BitSet.get(from, to) does. Only the words covering the
+     * range are decoded; the skip index locates the first one.
+     *
+     * @param fromIndex index of the first bit.
+     * @param toIndex index after the last bit.
+     * @return the bits, starting at index 0.
+     */
+    public BitSet get(int fromIndex, int toIndex) {
+        BitSet ret = new BitSet(Math.max(toIndex - fromIndex, 0));
+        if (fromIndex >= toIndex) {
+            return ret;
+        }
+
+        int[] pos = seek(fromIndex);
+        int j = pos[0], start = pos[1];
+
+        for (; j < vec.size() && start < toIndex; j++) {
+            int v = vec.getQuick(j);
+            if (isAFill(v)) {
+                int end = start + (v & MAXCNT) * MAXBITS;
+                if (isOneFill(v) && end > fromIndex) {
+                    ret.set(Math.max(start, fromIndex) - fromIndex, Math.min(end, toIndex) - fromIndex);
+                }
+                start = end;
+            } else {
+                setBits(ret, v, start, fromIndex, toIndex);
+                start += MAXBITS;
+            }
+        }
+
+        if (j == vec.size() && start < toIndex && active.nbits > 0) {
+            setBits(ret, active.val << (MAXBITS - active.nbits), start, fromIndex, toIndex);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the index of the first bit set at or after <tt>fromIndex</tt>.
+     *
+     * @param fromIndex the index to start from.
+     * @return the index of the bit, or -1 if there is none.
+     */
+    public int nextSetBit(int fromIndex) {
+        int[] pos = seek(Math.max(fromIndex, 0));
+        int j = pos[0], start = pos[1];
+
+        for (; j <= vec.size(); j++) {
+            int v, len;
+            if (j < vec.size()) {
+                v = vec.getQuick(j);
+            } else if (active.nbits > 0) {
+                v = active.val << (MAXBITS - active.nbits);
+            } else {
+                break;
+            }
+
+            if (isAFill(v) && j < vec.size()) {
+                len = (v & MAXCNT) * MAXBITS;
+                if (isOneFill(v) && start + len > fromIndex) {
+                    return Math.max(start, fromIndex);
+                }
+            } else {
+                len = MAXBITS;
+                // clear the bits before fromIndex.
+                if (fromIndex - start >= MAXBITS) {
+                    v = 0;
+                } else if (fromIndex > start) {
+                    v &= ALLONES >>> (fromIndex - start);
+                }
+                if (v != 0) {
+                    return start + Integer.numberOfLeadingZeros(v) - 1;
+                }
+            }
+            start += len;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the word holding bit <tt>index</tt>, or the end of the vector.
+     *
+     * @return the word position in vec and the index of its first bit.
+     */
+    private int[] seek(int index) {
+        SkipIndex skip = skipIndex;
+        int j = 0, start = 0;
+        if (skip != null) {
+            // the last entry at or before index.
+            int e = Arrays.binarySearch(skip.bits, index);
+            if (e < 0) {
+                e = -e - 2;
+            }
+            j = skip.words[e];
+            start = skip.bits[e];
+        }
+
+        for (; j < vec.size(); j++) {
+            int v = vec.getQuick(j);
+            int len = isAFill(v) ? (v & MAXCNT) * MAXBITS : MAXBITS;
+            if (start + len > index) {
+                break;
+            }
+            start += len;
+        }
+
+        return new int[] {j, start};
+    }
+
+    /**
+     * Sets in <tt>bs</tt> the bits of literal word <tt>v</tt>, starting at
+     * <tt>start</tt>, that fall in [fromIndex, toIndex). Bits are set at
+     * their index minus fromIndex.
+     */
+    private static void setBits(BitSet bs, int v, int start, int fromIndex, int toIndex) {
+        v &= ALLONES;
+        while (v != 0) {
+            int i = Integer.numberOfLeadingZeros(v) - 1;
+            int index = start + i;
+            if (index >= toIndex) {
+                break;
+            }
+            if (index >= fromIndex) {
+                bs.set(index - fromIndex);
+            }
+            v ^= 1 << (SECONDBIT - i);
+        }
+    }
+
     /**
      * Returns the number of 1 bits in the bitset.
      *
      * @return the number of 1 bits in the bitset.
      */
     public int cardinality() {
-        // check the cardinality, again if it has been reset.
-        if (nset == 0 && !vec.isEmpty()) {
-            doCount();
+        // a bitset being built may have to be counted again; it is not stored.
+        int set = nset;
+        if (set < 0) {
+            set = countSet();
         }
 
         // the sizes in the vector and the active word.
-        return nset + Integer.bitCount(active.val);
+        return set + Integer.bitCount(active.val);
     }
 
     /**
@@ -146,6 +309,44 @@ public class WAHBitSet implements Serializable {
         return new IndexSet();
     }
 
+    /**
+     * Writes the compressed words in binary form; see readFrom().
+     */
+    void writeTo(DataOutput out) throws IOException {
+        ExternalSorter.writeVarLong(out, nbits);
+        ExternalSorter.writeVarLong(out, nset >= 0 ? nset : countSet());
+        out.writeInt(active.val);
+        out.writeByte(active.nbits);
+        ExternalSorter.writeVarLong(out, vec.size());
+        for (int i = 0; i < vec.size(); i++) {
+            out.writeInt(vec.getQuick(i));
+        }
+    }
+
+    /**
+     * Reads a bitmap written by writeTo().
+     */
+    static WAHBitSet readFrom(DataInput in) throws IOException {
+        WAHBitSet ret = new WAHBitSet();
+        ret.nbits = (int) ExternalSorter.readVarLong(in);
+        ret.nset = (int) ExternalSorter.readVarLong(in);
+        ret.active.val = in.readInt();
+        ret.active.nbits = in.readUnsignedByte();
+        int[] words = new int[(int) ExternalSorter.readVarLong(in)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readInt();
+        }
+        ret.vec = new IntArrayList(words);
+        // older files may hold 0 for a count to be redone.
+        ret.doCount();
+        return ret;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        doCount();
+    }
+
     /**
      * Returns the amount of memory used by the compressed bit set
      * 
@@ -157,78 +358,18 @@ public class WAHBitSet implements Serializable {
 
     /**
      * Returns a new WAH compressed bitset after anding the current bitset
-     * with the <i>other</i> bitset.
+     * with the <i>other</i> bitset. Neither bitset is modified.
      *
      * @param other the bitset to and with
      * @return The resulting bitset
      */
     public WAHBitSet and(WAHBitSet other) {
-        WAHBitSet ret = new WAHBitSet();
-
-        // ensure that they have the same bit length.
-        if (this.numBits() < other.numBits()) {
-            this.setBit(other.numBits() - 1, 0);
-        } else if (this.numBits() > other.numBits()) {
-            other.setBit(numBits() - 1, 0);
-        }
-
-        // if there is something in the vector.
-        if(vec.size() > 0) {
-            // create new run objects and decode them.
-            run xrun = new run(vec), yrun = new run(other.vec);
-            xrun.decode();
-            yrun.decode();
-            do {
-                // if you finished a run, then get the next one.
-                if (xrun.nWords == 0) {
-                    xrun.inc();
-                    xrun.decode();
-                }
-
-                if (yrun.nWords == 0) {
-                    yrun.inc();
-                    yrun.decode();
-                }
-
-                if (xrun.isFill()) {
-                    if (yrun.isFill()) {
-                        // both are fills... this is the best.
-                        int nWords = Math.min(xrun.nWords, yrun.nWords);
-                        ret.appendFill(nWords, xrun.fillWord & yrun.fillWord);
-                        xrun.nWords -= nWords;
-                        yrun.nWords -= nWords;
-                    } else {
-                        // just cut through the other run
-                        chewUpRun(xrun, ret, yrun);
-                    }
-                } else if (yrun.isFill()) {
-                    // again do the same, with different order.
-                    chewUpRun(yrun, ret, xrun);
-                } else {
-                    // both are literals, so get the new literal and
-                    // append it to the return value.
-                    ret.active.val = xrun.get() &yrun.get();
-                    ret.appendLiteral();
-                    yrun.nWords = 0;
-                    xrun.nWords = 0;
-                }
-            // till they are not at the end.
-            } while (!(xrun.end() && yrun.end()));
-        }
-
-        // set the active word.
-        ret.active.val = this.active.val & other.active.val;
-        ret.active.nbits = this.active.nbits;
-
-        // ensure that the counts are set properly.
-        ret.doCount();
-
-        return ret;
+        return genericOp(OpType.And, other);
     }
 
     /**
      * Returns a new WAH compressed bitset after oring the current bitset
-     * with the <i>other</i> bitset. This function is not as optimized as <i>and</i>
+     * with the <i>other</i> bitset. Neither bitset is modified.
      *
      * @param other the bitset to or with
      * @return The resulting bitset
@@ -237,10 +378,39 @@ public class WAHBitSet implements Serializable {
         return genericOp(OpType.Or, other);
     }
 
-    private WAHBitSet andNot(WAHBitSet other) {
+    /**
+     * Returns a new WAH compressed bitset with the bits of the current bitset
+     * that are not set in the <i>other</i> bitset. Neither bitset is modified.
+     *
+     * @param other the bitset to subtract
+     * @return The resulting bitset
+     */
+    public WAHBitSet andNot(WAHBitSet other) {
         return genericOp(OpType.AndNot, other);
     }
 
+    /**
+     * Returns a new WAH compressed bitset after xoring the current bitset
+     * with the <i>other</i> bitset. Neither bitset is modified.
+     *
+     * @param other the bitset to xor with
+     * @return The resulting bitset
+     */
+    public WAHBitSet xor(WAHBitSet other) {
+        return genericOp(OpType.Xor, other);
+    }
+
+    /**
+     * Returns a new WAH compressed bitset with the first <tt>nbits</tt> bits
+     * of the current bitset flipped, as BitSet.flip(0, nbits) does.
+     *
+     * @param nbits the number of bits to flip
+     * @return The resulting bitset
+     */
+    public WAHBitSet not(int nbits) {
+        return genericOp(OpType.Xor, ones(nbits));
+    }
+
     /**
      * This is an optimization over the and function.  This does not
      * create new bitset. This just counts the number of 1 bits common
@@ -303,26 +473,50 @@ public class WAHBitSet implements Serializable {
     }    
 
     private int numBits() {
-        return ((nbits != 0 ? nbits : (nbits = doCount())) + active.nbits);
+        // nbits is kept up to date by the appends.
+        return nbits + active.nbits;
     }
 
-    private int doCount() {
-        nset = 0;
-        nbits = 0;
+    /**
+     * Sets nset, nbits and the skip index from the words in vec. It is
+     * called before a bitset is shared, never by reads.
+     */
+    private void doCount() {
+        int set = 0, bits = 0;
 
         for (int i = 0; i < vec.size(); i++) {
             int v = vec.getQuick(i);
             if (!isAFill(v)) {
-                nbits += MAXBITS;
-                nset += Integer.bitCount(v);
+                bits += MAXBITS;
+                set += Integer.bitCount(v);
             } else {
                 int tmp = (v & MAXCNT) * MAXBITS;
-                nbits += tmp;
-                nset += tmp * (isOneFill(v) ? 1 : 0);
+                bits += tmp;
+                set += tmp * (isOneFill(v) ? 1 : 0);
             }
         }
-        
-        return nbits;
+
+        nbits = bits;
+        nset = set;
+        skipIndex = (vec.size() > SKIP_INTERVAL) ? new SkipIndex(vec) : null;
+    }
+
+    /**
+     * @return the number of 1 bits in vec, without storing it.
+     */
+    private int countSet() {
+        int set = 0;
+
+        for (int i = 0; i < vec.size(); i++) {
+            int v = vec.getQuick(i);
+            if (!isAFill(v)) {
+                set += Integer.bitCount(v);
+            } else if (isOneFill(v)) {
+                set += (v & MAXCNT) * MAXBITS;
+            }
+        }
+
+        return set;
     }
 
     private void setBit(int ind, int val) {
@@ -375,19 +569,15 @@ public class WAHBitSet implements Serializable {
             if (numBits() != ind + 1)
                 logger.warning("Warning");
 
-            if (nset != 0)
-                nset += (val != 0 ? 1 : 0);
-
+            // nset counts vec only: appended words reset it, and the new
+            // bit is otherwise in the active word.
             return;
         } else if (ind >= nbits) { // modify an active bit
-            int u = active.val;
             if (val != 0) {
                 active.val |= (1 << (active.nbits - (ind - nbits) - 1));
             } else {
                 active.val &= ~(1 << (active.nbits - (ind - nbits) - 1));
             }
-            if (nset != 0 && (u != active.val))
-                nset += (val != 0 ? 1 : -1);
             return;
         } else if (vec.size() * MAXBITS == nbits) { // uncompressed
             int i = ind / MAXBITS;
@@ -395,10 +585,10 @@ public class WAHBitSet implements Serializable {
             int w = (1 << (SECONDBIT - (ind % MAXBITS)));
 
             if (val != 0)
-                vec.setQuick(i, u |= w);
+                vec.setQuick(i, u | w);
             else
-                vec.setQuick(i, u &= ~w);
-            if (nset != 0 && (vec.getQuick(i) != u))
+                vec.setQuick(i, u & ~w);
+            if (nset >= 0 && (vec.getQuick(i) != u))
                 nset += (val != 0 ? 1 : -1);
             return;
         }
@@ -470,7 +660,7 @@ public class WAHBitSet implements Serializable {
                         addOneBit(0);
                     addOneBit(val != 0 ? 1 : 0);
                 }
-                if (nset != 0) nset += val != 0 ? 1 : -1;
+                if (nset >= 0) nset += val != 0 ? 1 : -1;
                 return;
             }
 
@@ -526,33 +716,13 @@ public class WAHBitSet implements Serializable {
                 vec.beforeInsertAllOf(idx, Arrays.asList(u));
             }
 
-            if (nset != 0)
+            if (nset >= 0)
                 nset += val != 0 ? 1 : -1;
         } else {
             throw new AssertionError("Untested code detected, would rather die than run this");
         }
     }
 
-    private static void chewUpRun(run xrun, WAHBitSet ret, run yrun) {
-        if(xrun.fillWord == 0) {
-            ret.appendFill(xrun.nWords, 0);
-            xrun.nWords -= yrun.inc(xrun.nWords);
-        } else {
-            while(true) {
-                int v = yrun.get();
-                if(isAFill(v)) {
-                    yrun.decode();
-                    return;
-                }
-                ret.appendCompressed(v);
-                xrun.nWords --;
-                if(xrun.nWords == 0) break;
-                yrun.inc();
-            }
-        }
-        yrun.nWords = 0;
-    }
-
     private static int countInRun(run xrun, run yrun) {
         int count = 0; 
         if(xrun.fillWord == 0) {
@@ -578,111 +748,96 @@ public class WAHBitSet implements Serializable {
     private void appendCompressed(int v) {
         vec.add(v);
         nbits += MAXBITS;
-        nset = 0;
+        nset = -1;
     }
 
+    /**
+     * Applies <i>op</i> word by word on the compressed words of both bitsets.
+     * Runs of fills are combined in one step, and a fill that decides the
+     * result on its own (e.g. a 0-fill for and) skips the words of the other
+     * bitset. The shorter bitset is taken as padded with zeros.
+     */
     private WAHBitSet genericOp(OpType op, WAHBitSet other) {
         WAHBitSet ret = new WAHBitSet();
+        int length = Math.max(this.numBits(), other.numBits());
+        int words = length / MAXBITS;
+        WordCursor x = new WordCursor(this), y = new WordCursor(other);
+
+        while (words > 0) {
+            int n, v;
+            if (x.isFill() && y.isFill()) {
+                n = Math.min(Math.min(x.count, y.count), words);
+                v = getOpResult(op, x.word, y.word);
+            } else if (x.isFill() && decidesResult(op, x.word, true)) {
+                n = Math.min(x.count, words);
+                v = getOpResult(op, x.word, 0);
+            } else if (y.isFill() && decidesResult(op, y.word, false)) {
+                n = Math.min(y.count, words);
+                v = getOpResult(op, 0, y.word);
+            } else {
+                n = 1;
+                v = getOpResult(op, x.word, y.word);
+            }
 
-        // ensure that they have the same bit length.
-        if (this.numBits() < other.numBits()) {
-            this.setBit(other.numBits() - 1, 0);
-        } else if (this.numBits() > other.numBits()) {
-            other.setBit(numBits() - 1, 0);
+            if (n == 1) {
+                ret.active.val = v;
+                ret.appendLiteral();
+            } else {
+                ret.appendCounter(v != 0 ? 1 : 0, n);
+            }
+            x.skip(n);
+            y.skip(n);
+            words -= n;
         }
 
-        if(vec.size() > 0) {
-            run xrun = new run(vec), yrun = new run(other.vec);
-            xrun.decode();
-            yrun.decode();
-            do {
-                if (xrun.nWords == 0) {
-                    xrun.inc();
-                    xrun.decode();
-                }
-
-                if (yrun.nWords == 0) {
-                    yrun.inc();
-                    yrun.decode();
-                }
-
-                if (xrun.isFill()) {
-                    if (yrun.isFill()) {
-                        int nWords = Math.min(xrun.nWords, yrun.nWords);
-                        ret.appendFill(nWords, getOpResult(op, xrun.fillWord, yrun.fillWord));
-                        xrun.nWords -= nWords;
-                        yrun.nWords -= nWords;
-                    } else {
-                        ret.active.val = getOpResult(op, xrun.fillWord, yrun.get());
-                        ret.appendLiteral();
-                        --xrun.nWords;
-                        yrun.nWords = 0;
-                    }
-                } else if (yrun.isFill()) {
-                    ret.active.val = getOpResult(op, yrun.fillWord, xrun.get());
-                    ret.appendLiteral();
-                    yrun.nWords--;
-                    xrun.nWords = 0;
-                } else {
-                    ret.active.val = getOpResult(op, xrun.get(), yrun.get());
-                    ret.appendLiteral();
-                    yrun.nWords = 0;
-                    xrun.nWords = 0;
-                }
-
-            } while (!(xrun.end() && yrun.end()));
+        // the trailing bits go to the active word.
+        int rest = length % MAXBITS;
+        if (rest > 0) {
+            ret.active.val = getOpResult(op, x.word, y.word) >>> (MAXBITS - rest);
+            ret.active.nbits = rest;
         }
-        ret.active.val = getOpResult(op, this.active.val, other.active.val);
-        ret.active.nbits = this.active.nbits;
 
         ret.doCount();
         return ret;
     }
 
-    private void appendFill(int nWords, int v) {
-        if (vec.isEmpty()) {
-            if (v == 0) {
-                vec.add(HEADER0 | nWords);
-            } else {
-                vec.add(HEADER1 | nWords);
-            }
-        } else if (nWords > 1) {
-            int back = getBack();
-            if (v == 0) {
-                if (isZeroFill(back)) {
-                    setBack(back + nWords);
-                } else {
-                    vec.add(HEADER0 | nWords);
-                }
-            } else if (isOneFill(back)) {
-                setBack(back + nWords);
-            } else {
-                vec.add(HEADER1 | nWords);
-            }
-        } else {
-            active.val = v != 0 ? ALLONES : 0;
-            appendLiteral();
-        }
-    }
-
     private static int getOpResult(OpType op, int x, int y) {
         switch (op) {
             case And:
                 return x & y;
             case AndNot:
-                return x & ~y;
+                return x & ~y & ALLONES;
             case Or:
                 return x | y;
+            case Xor:
+                return x ^ y;
         }
 
         throw new UnsupportedOperationException(op.toString());
     }
 
+    /**
+     * @return true if a fill of <i>fillWord</i> as the left (or right) operand
+     * of <i>op</i> gives the same result whatever the other operand is.
+     */
+    private static boolean decidesResult(OpType op, int fillWord, boolean left) {
+        switch (op) {
+            case And:
+                return fillWord == 0;
+            case AndNot:
+                return left ? fillWord == 0 : fillWord == ALLONES;
+            case Or:
+                return fillWord == ALLONES;
+            default:
+                return false;
+        }
+    }
+
     private void addOneBit(int w) {
         if (RUN_UNTESTED_CODE) {
             int nb1, nb2;
             int cps = (w >>> MAXBITS);
-            nset = 0;
+            nset = -1;
             if (active.nbits != 0) { // active contains some uncompressed bits
                 int w1;
                 nb1 = active.nbits;
@@ -736,7 +891,7 @@ public class WAHBitSet implements Serializable {
         if (RUN_UNTESTED_CODE) {
             int nb1, nb2;
             int cps = (w >>> MAXBITS);
-            nset = 0;
+            nset = -1;
             if (active.nbits != 0) { // active contains some uncompressed bits
                 int w1;
                 nb1 = active.nbits;
@@ -786,6 +941,44 @@ public class WAHBitSet implements Serializable {
         }
     }
 
+    /**
+     * Appends <tt>n</tt> bits of the same value at the end of the bitset.
+     *
+     * @param bit the value of the bits.
+     * @param n the number of bits to append.
+     */
+    public void appendRun(boolean bit, int n) {
+        if (n <= 0) {
+            return;
+        }
+
+        // complete the active word first.
+        if (active.nbits > 0) {
+            int k = Math.min(n, MAXBITS - active.nbits);
+            active.val = (active.val << k) | (bit ? (1 << k) - 1 : 0);
+            active.nbits += k;
+            n -= k;
+            if (active.nbits == MAXBITS) {
+                appendLiteral();
+            }
+        }
+
+        int w = n / MAXBITS;
+        if (w > 1) {
+            appendCounter(bit ? 1 : 0, w);
+        } else if (w == 1) {
+            active.val = bit ? ALLONES : 0;
+            appendLiteral();
+        }
+
+        n -= w * MAXBITS;
+        if (n > 0) {
+            active.val = bit ? (1 << n) - 1 : 0;
+            active.nbits = n;
+        }
+        nset = -1;
+    }
+
     private void appendLiteral() {
         if (vec.size() == 0) {
             vec.add(active.val);
@@ -814,7 +1007,7 @@ public class WAHBitSet implements Serializable {
         }
         nbits += MAXBITS;
         active.reset();
-        nset = 0;        
+        nset = -1;
     }
 
     private void appendCounter(int val, int cnt) {
@@ -888,6 +1081,7 @@ public class WAHBitSet implements Serializable {
         And,
         Or,
         AndNot,
+        Xor,
     }
 
     // lets try our best for inlining
@@ -912,6 +1106,31 @@ public class WAHBitSet implements Serializable {
         }
     }
 
+    /**
+     * Position of every SKIP_INTERVAL-th word in vec and the index of its
+     * first bit.
+     */
+    private static final class SkipIndex {
+        final int[] words;
+        final int[] bits;
+
+        SkipIndex(IntArrayList vec) {
+            int n = (vec.size() + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+            words = new int[Math.max(n, 1)];
+            bits = new int[words.length];
+
+            int start = 0;
+            for (int j = 0; j < vec.size(); j++) {
+                if (j % SKIP_INTERVAL == 0) {
+                    words[j / SKIP_INTERVAL] = j;
+                    bits[j / SKIP_INTERVAL] = start;
+                }
+                int v = vec.getQuick(j);
+                start += isAFill(v) ? (v & MAXCNT) * MAXBITS : MAXBITS;
+            }
+        }
+    }
+
     // this class is used for operations on the compressed
     private static final class run {
         int idx;
@@ -978,6 +1197,67 @@ public class WAHBitSet implements Serializable {
         }
     }
 
+    /**
+     * Reads the words of a bitset as runs: a fill of <tt>count</tt> words, or
+     * a single literal word. The active word is read as a literal word with
+     * its bits moved to the front, and zero fills follow the last word.
+     */
+    private static final class WordCursor {
+        private final IntArrayList vec;
+        private final int activeWord;
+        private final boolean hasActive;
+        private int idx = 0;
+        private boolean activeRead = false;
+        int word;  // the fill word (0 or ALLONES) or the literal word
+        int count; // words left in the run
+        boolean fill;
+
+        WordCursor(WAHBitSet b) {
+            vec = b.vec;
+            hasActive = b.active.nbits > 0;
+            activeWord = hasActive ? (b.active.val << (MAXBITS - b.active.nbits)) & ALLONES : 0;
+            load();
+        }
+
+        boolean isFill() {
+            return fill || word == 0 || word == ALLONES;
+        }
+
+        void skip(int n) {
+            while (n > 0) {
+                int k = Math.min(n, count);
+                count -= k;
+                n -= k;
+                if (count == 0) {
+                    load();
+                }
+            }
+        }
+
+        private void load() {
+            if (idx < vec.size()) {
+                int v = vec.getQuick(idx++);
+                fill = isAFill(v);
+                if (fill) {
+                    word = isOneFill(v) ? ALLONES : 0;
+                    count = v & MAXCNT;
+                } else {
+                    word = v;
+                    count = 1;
+                }
+            } else if (hasActive && !activeRead) {
+                activeRead = true;
+                fill = false;
+                word = activeWord;
+                count = 1;
+            } else {
+                fill = true;
+                word = 0;
+                count = Integer.MAX_VALUE;
+            }
+        }
+    }
+
     /**
      * The IndexSet stores positions of bits that are one.
      *
@@ -2,19 +2,21 @@ package sks.ski;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.Hashtable;
 import java.util.logging.Level;
 import sks.NumericParameter;
 import sks.QueryTextPredicate;
 import sks.dataset.Record;
 import sks.rtree.Node;
+import sks.rtree.NodeEntries;
+import sks.rtree.NodeView;
 import sks.rtree.Point;
 import java.util.logging.Logger;
 import sks.dataset.MalformedRecordException;
 import sks.dataset.RandomDatasetReader;
+import sks.sif.SNQueryBitmap;
+import sks.sif.SpatialInvertedFile;
 
 /**
  *
@@ -22,11 +24,18 @@ import sks.dataset.RandomDatasetReader;
  */
 public class BSKIResultIterator extends ResultIterator {
   private BigSpatialKeywordIndex bSki;
-  private ArrayList<Hashtable<Integer, BitSet[]>> allBufferedSNbitmaps = null;
+  private ArrayList<Hashtable<Integer, SNQueryBitmap>> allBufferedSNbitmaps = null;
   private ArrayList<ArrayList<SNInterval>> allNcSNRanges = null;
-  private RandomAccessFile[] allNodesFile;
+
+  // Shared by all queries on each partition. Not closed by this iterator.
   private RandomDatasetReader[] allDatasetReader;
 
+  // Per-partition flyweights positioned on each node read.
+  private NodeView[] allNodeViews;
+
+  // Per-partition query predicates, ordered by the partition's term frequencies.
+  private ArrayList<ArrayList<QueryTextPredicate>> allQueryTextPredicates;
+
   public BSKIResultIterator(Index index, Point point, double distance,
                    ArrayList<NumericParameter> numericParams,
                    ArrayList<QueryTextPredicate> queryTextPredicates,
@@ -34,10 +43,11 @@ public class BSKIResultIterator extends ResultIterator {
     super(index, point, distance, numericParams, queryTextPredicates, _debug_mode);
 
     bSki = (BigSpatialKeywordIndex) index;
-    allBufferedSNbitmaps = new ArrayList<Hashtable<Integer, BitSet[]>>();
+    allBufferedSNbitmaps = new ArrayList<Hashtable<Integer, SNQueryBitmap>>();
     allNcSNRanges = new ArrayList<ArrayList<SNInterval>>();
-    allNodesFile = new RandomAccessFile[bSki.getRootNode().size()];
     allDatasetReader = new RandomDatasetReader[bSki.getRootNode().size()];
+    allNodeViews = new NodeView[bSki.getRootNode().size()];
+    allQueryTextPredicates = new ArrayList<ArrayList<QueryTextPredicate>>();
 
     enqueueSKIRoots(bSki.getRootNode());
   } // public SKIResultIterator()
@@ -47,8 +57,9 @@ public class BSKIResultIterator extends ResultIterator {
     int nodeSize = root.size();
 
     for (int i = 0; i < nodeSize; i++) {
-      allBufferedSNbitmaps.add(i, new Hashtable<Integer, BitSet[]>());
+      allBufferedSNbitmaps.add(i, new Hashtable<Integer, SNQueryBitmap>());
       allNcSNRanges.add(i, new ArrayList<SNInterval>());
+      allQueryTextPredicates.add(i, queryTextPredicates);
       double distance = root.rects[i].getDistance(queryPoint);
 
       // Query radius filter.
@@ -61,8 +72,15 @@ public class BSKIResultIterator extends ResultIterator {
         continue;
       }
 
-      allNodesFile[i] = new RandomAccessFile(bSki.getSKIs()[i].getSKIManager().getNodesFilename(), "r");
-      allDatasetReader[i] = new RandomDatasetReader(bSki.getSKIs()[i].getDataset());
+      allDatasetReader[i] = bSki.getSKIs()[i].getSKIManager().getDatasetReader(
+              bSki.getSKIs()[i].getDataset());
+      allNodeViews[i] = bSki.getSKIs()[i].getSKIManager().createNodeView();
+      // Numeric predicates are evaluated on the numeric bins of the partition
+      // only along text predicates: SN bitmaps are searched, or not, for
+      // every partition of the query.
+      SpatialInvertedFile sif = bSki.getSKIs()[i].getSIF();
+      allQueryTextPredicates.set(i, sif.planPredicates(queryHasTextPredicates?
+              sif.addNumericPredicates(queryTextPredicates, numericParams) : queryTextPredicates));
 
       queue.add(new SearchEntry(root.refs[i],
                                 distance,
@@ -95,7 +113,7 @@ public class BSKIResultIterator extends ResultIterator {
         searchEntry.parentEntryId = 0;
       }
 
-      Hashtable<Integer, BitSet[]> bufferedQueryBitmaps = allBufferedSNbitmaps.get(searchEntry.skiIndex);
+      Hashtable<Integer, SNQueryBitmap> bufferedQueryBitmaps = allBufferedSNbitmaps.get(searchEntry.skiIndex);
       ArrayList<SNInterval> ncSNIntervals = allNcSNRanges.get(searchEntry.skiIndex);
       SpatialKeywordIndex ski = bSki.getSKIs()[searchEntry.skiIndex];
 
@@ -104,7 +122,8 @@ public class BSKIResultIterator extends ResultIterator {
         if (queryHasTextPredicates &&
             !ski.getRtree().isSubtreeCandidate(searchEntry.parentEntryId,
               (short) (searchEntry.nodeLevel + 1), ncSNIntervals,
-              bufferedQueryBitmaps, queryTextPredicates, ski.getSIF())) {
+              bufferedQueryBitmaps, allQueryTextPredicates.get(searchEntry.skiIndex),
+              ski.getSIF())) {
           // Check the next NN entry.
           continue;
         }
@@ -117,14 +136,15 @@ public class BSKIResultIterator extends ResultIterator {
       //            rooted at <searchEntry.parentEntryId> on level=(searchEntry.nodeLevel + 1)
 
       // Retrieve candidate R-tree node.
-      Node node = ski.getSKIManager().readNode(searchEntry.ref, allNodesFile[searchEntry.skiIndex]);
+      NodeEntries node = ski.getSKIManager().readNode(searchEntry.ref,
+              allNodeViews[searchEntry.skiIndex]);
 
       if (node == null) {
         return false;
       }
 
       long entryId = searchEntry.parentEntryId * ski.getRtree().getMaxCapacity();
-      BitSet[] queryBitmap = null;
+      SNQueryBitmap queryBitmap = null;
 
       if (queryHasTextPredicates) {
         queryBitmap = getQueryBitmap(searchEntry, bufferedQueryBitmaps,
@@ -171,30 +191,8 @@ public class BSKIResultIterator extends ResultIterator {
 
   @Override
   public void clear() {
-    if (allNodesFile != null) {
-      try {
-        for (int i = 0; i < allNodesFile.length; i++) {
-          if (allNodesFile[i] != null) {
-            allNodesFile[i].close();
-            allNodesFile[i] = null;
-          }
-        }
-      } catch (IOException ex) {
-        Logger.getLogger(SKIResultIterator.class.getName()).log(Level.SEVERE, null, ex);
-      }
-    }
-
-    if (allDatasetReader != null) {
-      try {
-        for (int i = 0; i < allDatasetReader.length; i++) {
-          if (allDatasetReader[i] != null) {
-            allDatasetReader[i].close();
-            allDatasetReader[i] = null;
-          }
-        }
-      } catch (IOException ex) {
-        Logger.getLogger(SKIResultIterator.class.getName()).log(Level.SEVERE, null, ex);
-      }
-    }
+    // Files are owned by the SKIManager of each partition.
+    allDatasetReader = null;
+    allNodeViews = null;
   } // public void clear()
 }
\ No newline at end of file
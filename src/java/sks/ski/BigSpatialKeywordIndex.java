@@ -3,6 +3,9 @@ package sks.ski;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import sks.NumericParameter;
 import sks.QueryTextPredicate;
 import sks.dataset.Dataset;
@@ -20,9 +23,58 @@ public class BigSpatialKeywordIndex implements Index, Serializable {
   private SpatialKeywordIndex[] skis = null;
   private Node root = null;
 
+  // Search partitions concurrently (ParallelBSKIResultIterator).
+  private boolean parallelSearch = false;
+
+  // Worker pool shared by all parallel searches.
+  private static ExecutorService searchExecutor = null;
+
   public BigSpatialKeywordIndex() {
   }
 
+  public boolean isParallelSearch() {
+    return parallelSearch;
+  }
+
+  public void setParallelSearch(boolean parallelSearch) {
+    this.parallelSearch = parallelSearch;
+  }
+
+  /**
+   * Gets the worker pool that runs partition searches. Threads are daemons
+   * so that an undeployed application does not keep the JVM alive.
+   * @return worker pool.
+   */
+  static synchronized ExecutorService getSearchExecutor() {
+    if (searchExecutor == null) {
+      searchExecutor = Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private int threadCount = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "sks-search-" + (threadCount++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    return searchExecutor;
+  } // static synchronized ExecutorService getSearchExecutor()
+
+  /**
+   * Stops the worker pool, e.g. when the application is undeployed, so its
+   * threads do not outlive the application. A later search starts a new
+   * pool.
+   */
+  public static synchronized void shutdownSearchExecutor() {
+    if (searchExecutor != null) {
+      searchExecutor.shutdownNow();
+      searchExecutor = null;
+    }
+  }
+
   public SpatialKeywordIndex[] getSKIs() {
     return skis;
   }
@@ -146,6 +198,11 @@ public class BigSpatialKeywordIndex implements Index, Serializable {
                              ArrayList<NumericParameter> numericParams,
                              ArrayList<QueryTextPredicate> queryTextPredicates,
                              boolean _debug_mode) throws IOException {
+    if (parallelSearch) {
+      return new ParallelBSKIResultIterator(this, point, distance, numericParams,
+                     queryTextPredicates, _debug_mode);
+    }
+
     return new BSKIResultIterator(this, point, distance, numericParams,
                    queryTextPredicates, _debug_mode);
   }
@@ -0,0 +1,181 @@
+package sks.ski;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-bounded LRU cache of R-tree nodes read from a nodes file. The cache
+ * is split in independently locked segments, each one with an equal share
+ * of the byte budget, so concurrent queries rarely contend on one lock.
+ *
+ * @author acary001
+ */
+public class NodeCache {
+  private static final int SEGMENT_COUNT = 16;
+
+  private final Segment[] segments;
+  private final long maxBytes;
+
+  // Stats
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxBytes maximum size of cached nodes in bytes.
+   */
+  public NodeCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    segments = new Segment[SEGMENT_COUNT];
+
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment(maxBytes / SEGMENT_COUNT);
+    }
+  }
+
+  private Segment segmentFor(long ref) {
+    int h = (int) (ref ^ (ref >>> 32));
+    h ^= (h >>> 16);
+    return segments[(h & 0x7fffffff) % SEGMENT_COUNT];
+  }
+
+  /**
+   * @param ref node reference.
+   * @return cached node, or null if it is not in the cache.
+   */
+  public Object get(long ref) {
+    Object value = segmentFor(ref).get(ref);
+
+    if (value != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+
+    return value;
+  }
+
+  /**
+   * Caches a node, evicting least recently used nodes if needed.
+   * @param ref node reference.
+   * @param value node; must not be modified once cached.
+   * @param bytes size of the node in bytes.
+   */
+  public void put(long ref, Object value, int bytes) {
+    evictions.addAndGet(segmentFor(ref).put(ref, value, bytes));
+  }
+
+  public void clear() {
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i].clear();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getBytes() {
+    long bytes = 0;
+
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      bytes += segments[i].getBytes();
+    }
+
+    return bytes;
+  }
+
+  public void resetStats() {
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
+  }
+
+  @Override
+  public String toString() {
+    long h = getHits();
+    long m = getMisses();
+    return "hits=" + h + ", misses=" + m +
+           ", hitRate=" + ((h + m > 0)? (100 * h / (h + m)) : 0) + "%" +
+           ", evictions=" + getEvictions() +
+           ", bytes=" + getBytes() + "/" + maxBytes;
+  }
+
+  /**
+   * Cached node and its size.
+   */
+  private static class CacheEntry {
+    final Object value;
+    final int bytes;
+
+    CacheEntry(Object value, int bytes) {
+      this.value = value;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * LRU segment. All methods lock the segment.
+   */
+  private static class Segment {
+    private final LinkedHashMap<Long, CacheEntry> entries =
+            new LinkedHashMap<Long, CacheEntry>(256, 0.75f, true); // access order
+    private final long maxBytes;
+    private long bytes = 0;
+
+    Segment(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized Object get(long ref) {
+      CacheEntry entry = entries.get(ref);
+      return (entry == null)? null : entry.value;
+    }
+
+    /**
+     * @return number of evicted nodes.
+     */
+    synchronized int put(long ref, Object value, int size) {
+      if (size > maxBytes) {
+        return 0; // Too large to be cached.
+      }
+
+      CacheEntry previous = entries.put(ref, new CacheEntry(value, size));
+      bytes += size - ((previous == null)? 0 : previous.bytes);
+      int evicted = 0;
+      Iterator<CacheEntry> iterator = entries.values().iterator();
+
+      // Least recently used nodes come first.
+      while (bytes > maxBytes && iterator.hasNext()) {
+        CacheEntry eldest = iterator.next();
+        iterator.remove();
+        bytes -= eldest.bytes;
+        evicted++;
+      }
+
+      return evicted;
+    } // synchronized int put()
+
+    synchronized void clear() {
+      entries.clear();
+      bytes = 0;
+    }
+
+    synchronized long getBytes() {
+      return bytes;
+    }
+  } // private static class Segment
+} // public class NodeCache
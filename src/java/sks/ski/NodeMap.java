@@ -0,0 +1,189 @@
+package sks.ski;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import sks.Loader;
+import sks.rtree.Pair;
+
+/**
+ * Location of R-tree nodes in the nodes file, indexed by node reference.
+ * Node references are dense integers assigned by VolatileNodeStorage, so
+ * locations are kept in two flat arrays instead of a map of boxed objects.
+ * <p>
+ * File layout (.rtm, big-endian): [magic, version, entry count] followed by
+ * one fixed-width [offset (long), size (int)] entry per node reference.
+ * Entries of unused references have offset -1. Legacy files hold a
+ * serialized Hashtable&lt;Long, Pair&lt;Long, Integer&gt;&gt;.
+ *
+ * @author acary001
+ */
+public class NodeMap {
+  static public final int MAGIC = 0x534B534D; // "SKSM"
+  static public final int VERSION = 1;
+
+  private long[] offsets;
+  private int[] sizes;
+  private int count = 0; // highest node reference + 1
+
+  public NodeMap() {
+    this(1024);
+  }
+
+  public NodeMap(int capacity) {
+    offsets = new long[Math.max(capacity, 1)];
+    sizes = new int[offsets.length];
+    Arrays.fill(offsets, -1);
+  }
+
+  /**
+   * Sets the location of a node.
+   * @param ref node reference.
+   * @param offset node offset in the nodes file.
+   * @param size node size in bytes.
+   */
+  public void put(long ref, long offset, int size) {
+    if (ref < 0 || ref > Integer.MAX_VALUE - 1) {
+      throw new IllegalArgumentException("Invalid node reference: " + ref);
+    }
+
+    int index = (int) ref;
+
+    if (index >= offsets.length) {
+      int newLength = (int) Math.min(Math.max(index + 1L, offsets.length * 2L), Integer.MAX_VALUE - 1);
+      int oldLength = offsets.length;
+      offsets = Arrays.copyOf(offsets, newLength);
+      sizes = Arrays.copyOf(sizes, newLength);
+      Arrays.fill(offsets, oldLength, newLength, -1);
+    }
+
+    offsets[index] = offset;
+    sizes[index] = size;
+
+    if (index >= count) {
+      count = index + 1;
+    }
+  } // public void put()
+
+  public boolean contains(long ref) {
+    return ref >= 0 && ref < count && offsets[(int) ref] >= 0;
+  }
+
+  /**
+   * @param ref node reference.
+   * @return node offset in the nodes file, or -1 if ref is unknown.
+   */
+  public long getOffset(long ref) {
+    return (ref >= 0 && ref < count)? offsets[(int) ref] : -1;
+  }
+
+  /**
+   * @param ref node reference.
+   * @return node size in bytes.
+   */
+  public int getSize(long ref) {
+    return sizes[(int) ref];
+  }
+
+  /**
+   * @return highest node reference + 1.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Writes the map into a file.
+   * @param filename map file.
+   * @throws IOException
+   */
+  public void write(String filename) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(filename), Loader.IO_BUFFER_SIZE));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(count);
+
+      for (int i = 0; i < count; i++) {
+        out.writeLong(offsets[i]);
+        out.writeInt(sizes[i]);
+      }
+    } finally {
+      out.close();
+    }
+  } // public void write()
+
+  /**
+   * Reads a map file written by write() or a legacy serialized map.
+   * @param filename map file.
+   * @return node map.
+   * @throws IOException
+   */
+  public static NodeMap read(String filename) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(filename), Loader.IO_BUFFER_SIZE));
+
+    try {
+      if (in.readInt() != MAGIC) {
+        in.close();
+        return readLegacy(filename);
+      }
+
+      int version = in.readInt();
+
+      if (version != VERSION) {
+        throw new IOException("Unsupported node map version " + version + " in " + filename);
+      }
+
+      int count = in.readInt();
+      NodeMap map = new NodeMap(count);
+
+      for (int i = 0; i < count; i++) {
+        map.offsets[i] = in.readLong();
+        map.sizes[i] = in.readInt();
+      }
+
+      map.count = count;
+      return map;
+    } finally {
+      in.close();
+    }
+  } // public static NodeMap read()
+
+  /**
+   * Reads a serialized Hashtable&lt;Long, Pair&lt;Long, Integer&gt;&gt; map.
+   */
+  private static NodeMap readLegacy(String filename) throws IOException {
+    ObjectInputStream is = new ObjectInputStream(new FileInputStream(filename));
+    Hashtable<Long, Pair<Long, Integer>> legacyMap = null;
+
+    try {
+      legacyMap = (Hashtable<Long, Pair<Long, Integer>>) is.readObject();
+    } catch (ClassNotFoundException ex) {
+      throw new IOException("Invalid node map " + filename + ": " + ex.getMessage());
+    } finally {
+      is.close();
+    }
+
+    NodeMap map = new NodeMap(legacyMap.size());
+    Iterator<Map.Entry<Long, Pair<Long, Integer>>> entries = legacyMap.entrySet().iterator();
+
+    while (entries.hasNext()) {
+      Map.Entry<Long, Pair<Long, Integer>> entry = entries.next();
+      map.put(entry.getKey(), entry.getValue().getLeft(), entry.getValue().getRight());
+    }
+
+    return map;
+  } // private static NodeMap readLegacy()
+} // public class NodeMap
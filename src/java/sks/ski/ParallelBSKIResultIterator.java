@@ -0,0 +1,248 @@
+package sks.ski;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import sks.NumericParameter;
+import sks.QueryTextPredicate;
+import sks.dataset.Record;
+import sks.rtree.Node;
+import sks.rtree.Point;
+
+/**
+ * Parallel version of BSKIResultIterator. Each SKI partition runs its own
+ * incremental k-NN search (SKIResultIterator) on the BigSpatialKeywordIndex
+ * worker pool. Partition streams are merged lazily by distance: a result is
+ * returned only when the head of every live partition stream is known, so
+ * no partition can produce a closer object afterwards.
+ *
+ * @author acary001
+ */
+public class ParallelBSKIResultIterator extends ResultIterator {
+  // Number of results a worker computes ahead for one partition.
+  private static final int PREFETCH_SIZE = 4;
+
+  private BigSpatialKeywordIndex bSki;
+  private PartitionStream[] streams;
+
+  // Partition streams ordered by the distance of their head entry.
+  private PriorityQueue<PartitionStream> heads;
+
+  private PartitionStream nextStream = null;
+
+  public ParallelBSKIResultIterator(Index index, Point point, double distance,
+                   ArrayList<NumericParameter> numericParams,
+                   ArrayList<QueryTextPredicate> queryTextPredicates,
+                   boolean _debug_mode) throws FileNotFoundException, IOException {
+    super(index, point, distance, numericParams, queryTextPredicates, _debug_mode);
+
+    bSki = (BigSpatialKeywordIndex) index;
+    Node root = bSki.getRootNode();
+    streams = new PartitionStream[root.size()];
+    heads = new PriorityQueue<PartitionStream>();
+
+    for (int i = 0; i < root.size(); i++) {
+      // Query radius filter.
+      if (root.rects[i].getDistance(queryPoint) > distanceLimit) {
+        continue;
+      }
+
+      // Numeric predicates.
+      if (root.numRanges != null && !rangeSatisfiesPredicates(root.numRanges[i])) {
+        continue;
+      }
+
+      streams[i] = new PartitionStream(i);
+    }
+
+    // Start all partition searches before waiting on any of them.
+    for (int i = 0; i < streams.length; i++) {
+      if (streams[i] != null) {
+        streams[i].fetch();
+      }
+    }
+  } // public ParallelBSKIResultIterator()
+
+  @Override
+  public boolean hasNext() {
+    if (nextResult != null) {
+      return true;
+    }
+
+    // Every live partition must expose its head entry before merging.
+    for (int i = 0; i < streams.length; i++) {
+      if (streams[i] != null && streams[i].head == null && !streams[i].exhausted) {
+        if (!streams[i].advance()) {
+          return false;
+        }
+
+        if (streams[i].head != null) {
+          heads.add(streams[i]);
+        }
+      }
+    }
+
+    nextStream = heads.poll();
+
+    if (nextStream == null) {
+      return false;
+    }
+
+    nextResult = nextStream.head;
+    nextStream.head = null;
+    return true;
+  } // public boolean hasNext()
+
+  @Override
+  public Record next() {
+    if (nextResult == null) {
+      if (!hasNext()) {
+        throw new java.util.NoSuchElementException();
+      }
+    }
+
+    Record record = nextStream.iterator.recordAt(nextResult.ref);
+    nextResult = null;
+    nextStream = null;
+    return record;
+  } // public Record next()
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Not supported yet.");
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; streams != null && i < streams.length; i++) {
+      if (streams[i] != null) {
+        streams[i].clear();
+        streams[i] = null;
+      }
+    }
+
+    heads.clear();
+  } // public void clear()
+
+  /**
+   * Incremental k-NN stream over one SKI partition. At most one fetch task
+   * per partition is in flight, so the underlying SKIResultIterator is never
+   * accessed by two threads at the same time.
+   */
+  private class PartitionStream implements Comparable<PartitionStream> {
+    private int skiIndex;
+    private SKIResultIterator iterator = null;
+    private Future<ArrayList<SearchEntry>> pending = null;
+    private ArrayList<SearchEntry> buffer = new ArrayList<SearchEntry>();
+    private int bufferPosition = 0;
+    private SearchEntry head = null;
+    private boolean exhausted = false;
+
+    PartitionStream(int skiIndex) {
+      this.skiIndex = skiIndex;
+    }
+
+    /**
+     * Submits the computation of the next batch of results to the pool.
+     */
+    void fetch() {
+      pending = BigSpatialKeywordIndex.getSearchExecutor().submit(new Callable<ArrayList<SearchEntry>>() {
+        @Override
+        public ArrayList<SearchEntry> call() throws Exception {
+          if (iterator == null) {
+            iterator = new SKIResultIterator(bSki.getSKIs()[skiIndex], queryPoint,
+                    distanceLimit, numericParams, queryTextPredicates, _debug_mode);
+          }
+
+          ArrayList<SearchEntry> batch = new ArrayList<SearchEntry>(PREFETCH_SIZE);
+          SearchEntry entry = null;
+
+          while (batch.size() < PREFETCH_SIZE && (entry = iterator.nextEntry()) != null) {
+            batch.add(entry);
+          }
+
+          return batch;
+        }
+      });
+    } // void fetch()
+
+    /**
+     * Sets the head entry of this stream, waiting for the worker if needed.
+     * A partition whose search fails is logged and ends; the other
+     * partitions are still merged.
+     * @return false if the thread was interrupted while waiting.
+     */
+    boolean advance() {
+      if (bufferPosition >= buffer.size()) {
+        if (pending == null) {
+          exhausted = true;
+          return true;
+        }
+
+        try {
+          buffer = pending.get();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return false;
+        } catch (ExecutionException ex) {
+          Logger.getLogger(ParallelBSKIResultIterator.class.getName()).log(Level.SEVERE,
+                  "Search of partition " + skiIndex + " failed", ex);
+          exhausted = true;
+          return true;
+        } finally {
+          pending = null;
+        }
+
+        bufferPosition = 0;
+
+        if (buffer.size() < PREFETCH_SIZE) {
+          // The partition search has no more results after this batch.
+          if (buffer.isEmpty()) {
+            exhausted = true;
+            return true;
+          }
+        } else {
+          // Overlap the next batch with the consumption of this one.
+          fetch();
+        }
+      }
+
+      head = buffer.get(bufferPosition++);
+      return true;
+    } // boolean advance()
+
+    void clear() {
+      if (pending != null) {
+        try {
+          // Do not release files while a worker is using them.
+          pending.get();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+          Logger.getLogger(ParallelBSKIResultIterator.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        pending = null;
+      }
+
+      if (iterator != null) {
+        iterator.clear();
+        iterator = null;
+      }
+
+      buffer = null;
+      head = null;
+    } // void clear()
+
+    @Override
+    public int compareTo(PartitionStream other) {
+      return head.compareTo(other.head);
+    }
+  } // private class PartitionStream
+}
@@ -8,9 +8,10 @@ import java.util.PriorityQueue;
 import sks.NumericParameter;
 import sks.QueryTextPredicate;
 import sks.dataset.Record;
-import sks.rtree.Node;
+import sks.rtree.NodeEntries;
 import sks.rtree.NumericRange;
 import sks.rtree.Point;
+import sks.sif.SNQueryBitmap;
 
 /**
  *
@@ -67,21 +68,44 @@ public abstract class ResultIterator implements Iterator<Record> {
     return true;
   }
 
-  protected void enqueueEntries(Node node, BitSet[] queryBitmap,
+  /**
+   * Tests if the min/max box of a node entry satisfies query numeric predicates.
+   * @param node
+   * @param i entry index.
+   * @return True if the entry satisfies numeric predicates, false otherwise.
+   */
+  protected boolean entrySatisfiesPredicates(NodeEntries node, int i) {
+    if (!node.hasNumericRange(i)) {
+      return true;
+    }
+
+    for (int j = 0; j < numericParams.size(); j++) {
+      if (!numericParams.get(j).isSatisfiedByEntry(node, i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  protected void enqueueEntries(NodeEntries node, SNQueryBitmap queryBitmap,
           long entryId, int skiIndex) {
     int nodeSize = node.size();
+    short nodeLevel = node.getLevel();
     
-    if (node.level == 0 && queryHasTextPredicates) {
+    if (nodeLevel == 0 && queryHasTextPredicates) {
       // Select only candidate objects from this leaf node.
       // (queryBitmap != null)
-      for (int i = queryBitmap[0].nextSetBit(0); i >= 0 && i < nodeSize;
-           i = queryBitmap[0].nextSetBit(i + 1)) {
-        if (node.numRanges != null && !rangeSatisfiesPredicates(node.numRanges[i])) {
+      BitSet leafBitmap = queryBitmap.getLeafBitmap(entryId);
+
+      for (int i = leafBitmap.nextSetBit(0); i >= 0 && i < nodeSize;
+           i = leafBitmap.nextSetBit(i + 1)) {
+        if (!entrySatisfiesPredicates(node, i)) {
           continue;
         }
         
-        queue.add(new SearchEntry(node.refs[i],
-                                  node.rects[i].getDistance(queryPoint),
+        queue.add(new SearchEntry(node.getRef(i),
+                                  node.getDistance(i, queryPoint),
                                   false,      // pointsToInnerNode
                                   (short) 0,  // nodeLevel    // less relevant
                                   entryId + i, // parentEntryId // less relevant
@@ -92,7 +116,7 @@ public abstract class ResultIterator implements Iterator<Record> {
     } // if (node.level == 0)
 
     for (int i = 0; i < nodeSize; i++) {
-      double distance = node.rects[i].getDistance(queryPoint);
+      double distance = node.getDistance(i, queryPoint);
 
       // Query radius filter.
       if (distance > distanceLimit) {
@@ -100,37 +124,38 @@ public abstract class ResultIterator implements Iterator<Record> {
       }
 
       // Numeric predicates.
-      if (node.numRanges != null && !rangeSatisfiesPredicates(node.numRanges[i])) {
+      if (!entrySatisfiesPredicates(node, i)) {
         continue;
       }
       
-      if (node.level == 1 && queryHasTextPredicates) {
+      if (nodeLevel == 1 && queryHasTextPredicates) {
         // Prune level-0 nodes.
-        if (queryBitmap == null || queryBitmap[i] == null || queryBitmap[i].cardinality() == 0) {
+        if (queryBitmap == null || !queryBitmap.isCandidateNode(entryId + i)) {
           // Not a candidate node.
           // System.out.println("Prunning subtree: entryId=" + (entryId + i) + ", nodeRef=" + node.refs[i] + ", level=" + node.level);
           continue;
         }
       }
 
-      queue.add(new SearchEntry(node.refs[i],
+      queue.add(new SearchEntry(node.getRef(i),
                                 distance,
-                                (node.level == 0)? false:true,
-                                (short) Math.max((node.level - 1), 0), // nodeLevel
+                                (nodeLevel == 0)? false:true,
+                                (short) Math.max((nodeLevel - 1), 0), // nodeLevel
                                 entryId + i, // parentEntry
                                 skiIndex)); // skiIndex
     } // for (int i = 0; i < nodeSize; i++)
-  } // protected void enqueueEntries(Node node)
+  } // protected void enqueueEntries(NodeEntries node)
 
   /**
-   * Gets query bitmaps for level 0 and 1 nodes of a given entry
+   * Gets the super node query bitmap of a given level 0 or 1 entry
    * from the buffered bitmap table.
    * @param searchEntry
-   * @return array of uncompressed bitmaps.
+   * @return compressed super node bitmap, or null if the entry has no
+   * candidate objects.
    */
-  protected BitSet[] getQueryBitmap(SearchEntry searchEntry,
-          Hashtable<Integer, BitSet[]> bufferedQueryBitmaps, int M) {
-    BitSet[] queryBitmap = null;
+  protected SNQueryBitmap getQueryBitmap(SearchEntry searchEntry,
+          Hashtable<Integer, SNQueryBitmap> bufferedQueryBitmaps, int M) {
+    SNQueryBitmap queryBitmap = null;
 
     if (searchEntry.nodeLevel == 1) {
       // Get super node query bitmap.
@@ -138,21 +163,19 @@ public abstract class ResultIterator implements Iterator<Record> {
     }
 
     if (searchEntry.nodeLevel == 0) {
-      // Get the individual node query bitmap.
+      // Get the super node bitmap of the individual node.
       int snId = (int) (searchEntry.parentEntryId / M);
-      BitSet[] nodeBitmaps = bufferedQueryBitmaps.get(snId);
-      queryBitmap = new BitSet[1];
-      queryBitmap[0] = nodeBitmaps[(int) (searchEntry.parentEntryId % M)];
+      queryBitmap = bufferedQueryBitmaps.get(snId);
 
-      if (queryBitmap == null || queryBitmap[0] == null ||
-          queryBitmap[0].cardinality() == 0) {
+      if (queryBitmap == null ||
+          queryBitmap.getLeafBitmap(searchEntry.parentEntryId * M).isEmpty()) {
         // This should not happen in level-0 entries.
         return null;
       }
     }
 
     return queryBitmap;
-  } // protected BitSet[] getQueryBitmap()
+  } // protected SNQueryBitmap getQueryBitmap()
 
   public void clear() {
   }
@@ -1,10 +1,12 @@
 package sks.ski;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import sks.rtree.*;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.File;
 import java.io.IOException;
 import java.io.FileOutputStream;
@@ -14,9 +16,14 @@ import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import sks.Loader;
 import sks.dataset.Dataset;
+import sks.dataset.RandomDatasetReader;
 import sks.sif.SpatialInvertedFile;
 
 public class SKIManager {
@@ -31,11 +38,28 @@ public class SKIManager {
   private String tBitmapFilename;
   // private String logFilename;
   
-  // Map: k=nodeId, value=<offset, size>.
-  private transient Hashtable<Long, Pair<Long, Integer>> nodesMap = new Hashtable<Long, Pair<Long, Integer>>();
+  // Node locations: nodeId -> <offset, size>.
+  private transient NodeMap nodesMap = null;
 
-  // IO stats
-  private transient int _io_reads = 0;
+  // Long-lived handles shared by all queries on this category.
+  private transient volatile FileChannel nodesChannel = null;
+  private transient volatile RandomDatasetReader datasetReader = null;
+
+  // Binary nodes file (NodeView format). Legacy files hold serialized nodes.
+  private transient boolean binaryNodes = false;
+  private transient short nodeCapacity = 0;
+  private transient int nodeFieldCount = 0;
+  private transient MappedByteBuffer[] nodeSegments = null;
+
+  // Cache of nodes read from disk; null if disabled.
+  private transient volatile NodeCache nodeCache = null;
+
+  // Mapped segment size of the nodes file. Segments overlap by the
+  // maximum page size so that every page lies within one segment.
+  static private final long NODE_SEGMENT_SIZE = 1L << 30;
+
+  // IO stats, counted by concurrent queries.
+  private final AtomicLong _io_reads = new AtomicLong();
 
   static public final String DATA_SUFFIX = ".asc";
   static public final String HEADER_SUFFIX = ".asc.header";
@@ -52,20 +76,159 @@ public class SKIManager {
   }
 
   public int getIoReads() {
-    return _io_reads;
+    return (int) _io_reads.get();
   }
 
   public void resetIoReads() {
-    _io_reads = 0;
+    _io_reads.set(0);
   }
   
   public void clear() {
-    if (nodesMap != null) {
-      nodesMap.clear();
-      nodesMap = null;
+    nodesMap = null;
+
+    if (nodeCache != null) {
+      nodeCache.clear();
+      nodeCache = null;
     }
+
+    closeFiles();
+  }
+
+  /**
+   * Sets the size of the node cache. Nodes of memory-mapped nodes files are
+   * served from the mapping and are not cached.
+   * @param maxBytes cache size in bytes; 0 disables the cache.
+   */
+  public void setNodeCacheSize(long maxBytes) {
+    nodeCache = (maxBytes > 0)? new NodeCache(maxBytes) : null;
+  }
+
+  /**
+   * @return node cache, or null if disabled.
+   */
+  public NodeCache getNodeCache() {
+    return nodeCache;
+  }
+
+  /**
+   * Gets the channel on the nodes file, opening it on first use.
+   * @return read-only channel on the nodes file.
+   * @throws IOException
+   */
+  private FileChannel getNodesChannel() throws IOException {
+    FileChannel channel = nodesChannel;
+
+    if (channel == null) {
+      synchronized (this) {
+        if (nodesChannel == null) {
+          openNodesFile();
+        }
+
+        channel = nodesChannel;
+      }
+    }
+
+    return channel;
+  } // private FileChannel getNodesChannel()
+
+  /**
+   * Opens the nodes file and detects its format. Binary files are
+   * memory-mapped unless mapping is disabled on this platform.
+   * @throws IOException
+   */
+  private void openNodesFile() throws IOException {
+    FileChannel channel = new RandomAccessFile(nodesFilename, "r").getChannel();
+    ByteBuffer header = ByteBuffer.allocate(NodeView.HEADER_SIZE);
+    binaryNodes = false;
+    nodeSegments = null;
+
+    while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+    }
+
+    if (!header.hasRemaining() && header.getInt(0) == NodeView.MAGIC) {
+      if (header.getInt(4) != NodeView.VERSION) {
+        channel.close();
+        throw new IOException("Unsupported nodes file version " + header.getInt(4) +
+                " in " + nodesFilename);
+      }
+
+      binaryNodes = true;
+      nodeCapacity = header.getShort(8);
+      nodeFieldCount = header.getShort(10);
+      int maxPageSize = header.getInt(12);
+
+      if (RandomDatasetReader.MEMORY_MAPPED) {
+        long fileSize = channel.size();
+        int segmentCount = (int) ((fileSize + NODE_SEGMENT_SIZE - 1) / NODE_SEGMENT_SIZE);
+        MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+
+        for (int i = 0; i < segmentCount; i++) {
+          long start = i * NODE_SEGMENT_SIZE;
+          segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                  Math.min(NODE_SEGMENT_SIZE + maxPageSize, fileSize - start));
+        }
+
+        nodeSegments = segments;
+      }
+    } // if (header.getInt(0) == NodeView.MAGIC)
+
+    nodesChannel = channel;
+  } // private void openNodesFile()
+
+  /**
+   * Creates a view for reading nodes of this category with readNode(ref, view).
+   * @return a new node view.
+   * @throws IOException
+   */
+  public NodeView createNodeView() throws IOException {
+    getNodesChannel();
+    return new NodeView(nodeFieldCount);
   }
 
+  /**
+   * Gets the record reader of this category, opening it on first use.
+   * The reader is thread-safe and must not be closed by its users.
+   * @param dataset category dataset.
+   * @return shared record reader.
+   * @throws IOException
+   */
+  public RandomDatasetReader getDatasetReader(Dataset dataset) throws IOException {
+    RandomDatasetReader reader = datasetReader;
+
+    if (reader == null) {
+      synchronized (this) {
+        if (datasetReader == null) {
+          datasetReader = new RandomDatasetReader(dataset);
+        }
+
+        reader = datasetReader;
+      }
+    }
+
+    return reader;
+  } // public RandomDatasetReader getDatasetReader()
+
+  /**
+   * Closes the nodes and data files held by this category.
+   */
+  private synchronized void closeFiles() {
+    try {
+      if (nodesChannel != null) {
+        nodesChannel.close();
+      }
+
+      if (datasetReader != null) {
+        datasetReader.close();
+      }
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
+
+    nodesChannel = null;
+    nodeSegments = null;
+    datasetReader = null;
+  } // private synchronized void closeFiles()
+
   /**
    * Serializes SKI data structure.
    * @param dataPath
@@ -112,7 +275,8 @@ public class SKIManager {
   } // public SKIManager()
 
   /**
-   * Serializes R-tree nodes in no particular order.
+   * Writes R-tree nodes in no particular order, in the binary page format
+   * of NodeView.
    * @param nodes
    */
   public boolean writeNodes(Rtree rTree) {
@@ -125,63 +289,128 @@ public class SKIManager {
       (new File(mapFilename)).delete();
     }
 
-    RandomAccessFile nodesFile = null;
+    NodeMap nodesMap = writeNodes(rTree.getNodesInStorage(),
+            (short) rTree.getMaxCapacity(), rTree.getNumFieldCount(), nodesFilename);
 
-    try {
-      nodesFile = new RandomAccessFile(nodesFilename, "rw");
-    } catch(IOException ex) {
-      ex.printStackTrace();
+    if (nodesMap == null) {
       return false;
     }
 
-    Hashtable<Long, Node> nodes = rTree.getNodesInStorage();
-    Iterator<Long> keyIndex = nodes.keySet().iterator();
-    Hashtable<Long, Pair<Long, Integer>> nodesMap = new Hashtable<Long, Pair<Long, Integer>>();
-    long fileLen = 0;
+    return writeNodeMap(nodesMap, mapFilename);
+  } // public boolean writeNodes()
 
-    while(keyIndex.hasNext()) {
-      Long tmpNodeRef = keyIndex.next();
-      Node tmpNode = nodes.get(tmpNodeRef);
-      byte[] nodeInBytes = this.nodeToBytes(tmpNode);
-      
-      try {
-        fileLen = nodesFile.length();
-        //nodesFile.setLength(fileLen + nodeInBytes.length); // needed if file is written sequentially?
-        //nodesFile.seek(fileLen); // needed if file is written sequentially?
-        nodesFile.write(nodeInBytes);
-        Pair<Long, Integer> p = new Pair<Long, Integer>((long) fileLen, nodeInBytes.length);
-        nodesMap.put(tmpNodeRef, p);
-      } catch(IOException ex) {
-        ex.printStackTrace();
+  /**
+   * Writes nodes into a binary nodes file.
+   * @param nodes nodes to write, by reference.
+   * @param capacity node capacity.
+   * @param numFieldCount number of numeric fields.
+   * @param filename nodes file.
+   * @return node map, or null on errors.
+   */
+  private NodeMap writeNodes(Hashtable<Long, Node> nodes,
+          short capacity, int numFieldCount, String filename) {
+    NodeMap nodesMap = new NodeMap(nodes.size());
+    DataOutputStream out = null;
+
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(filename), Loader.IO_BUFFER_SIZE));
+      NodeView.writeHeader(out, capacity, numFieldCount);
+      long fileLen = NodeView.HEADER_SIZE;
+      Iterator<Long> keyIndex = nodes.keySet().iterator();
+
+      while(keyIndex.hasNext()) {
+        Long tmpNodeRef = keyIndex.next();
+        int pageSize = NodeView.writeNode(out, nodes.get(tmpNodeRef), numFieldCount);
+        nodesMap.put(tmpNodeRef, fileLen, pageSize);
+        fileLen += pageSize;
       }
+
+      out.close();
+    } catch(IOException ex) {
+      ex.printStackTrace();
+      return null;
     }
 
+    return nodesMap;
+  } // private NodeMap writeNodes()
+
+  /**
+   * Persists a node map.
+   * @return true on success.
+   */
+  private boolean writeNodeMap(NodeMap nodesMap, String filename) {
     try {
-      nodesFile.close();
+      nodesMap.write(filename);
     } catch(IOException ex) {
       ex.printStackTrace();
       return false;
     }
 
-    // Persist node map.
-    FileOutputStream fos = null;
-    ObjectOutputStream os = null;
+    return true;
+  } // private boolean writeNodeMap()
+
+  /**
+   * Converts a nodes file of serialized Node objects into the binary format.
+   * The node map is rewritten with the new page offsets. The category must
+   * not be serving queries during the conversion.
+   * @param rTree R-tree of the category.
+   * @return true if the file was converted or is already binary.
+   */
+  public boolean convertNodesFile(Rtree rTree) {
+    if (nodesMap == null) {
+      if (!loadNodeMap()) {
+        return false;
+      }
+    }
 
     try {
-      fos = new FileOutputStream(mapFilename);
-      os = new ObjectOutputStream(fos);
-      os.writeObject(nodesMap);
-      os.close();
+      getNodesChannel();
     } catch(IOException ex) {
       ex.printStackTrace();
       return false;
     }
 
-    nodesMap.clear();
-    nodesMap = null;
-    
-    return true;
-  } // public boolean writeNodes()
+    if (binaryNodes) {
+      return true; // Nothing to do.
+    }
+
+    // Read all nodes. Nodes are small compared to the bitmap store.
+    Hashtable<Long, Node> nodes = new Hashtable<Long, Node>();
+    for (long ref = 0; ref < nodesMap.getCount(); ref++) {
+      if (!nodesMap.contains(ref)) {
+        continue;
+      }
+
+      Node node = readNode(ref);
+
+      if (node == null) {
+        return false;
+      }
+
+      nodes.put(ref, node);
+    }
+
+    NodeMap newNodesMap = writeNodes(nodes,
+            (short) rTree.getMaxCapacity(), rTree.getNumFieldCount(), nodesFilename + TEMP_SUFFIX);
+    nodes.clear();
+
+    if (newNodesMap == null || !writeNodeMap(newNodesMap, mapFilename + TEMP_SUFFIX)) {
+      return false;
+    }
+
+    // Replace files.
+    closeFiles();
+    boolean success = deleteFile(nodesFilename) && deleteFile(mapFilename) &&
+            renameFile(nodesFilename + TEMP_SUFFIX, nodesFilename) &&
+            renameFile(mapFilename + TEMP_SUFFIX, mapFilename);
+
+    if (success) {
+      nodesMap = newNodesMap;
+    }
+
+    return success;
+  } // public boolean convertNodesFile()
 
   private byte[] nodeToBytes(Node node) {
     ByteArrayOutputStream bos = null;
@@ -225,21 +454,11 @@ public class SKIManager {
    * @return
    */
   public boolean loadNodeMap() {
-    FileInputStream fis = null;
-    ObjectInputStream is = null;
-
     try {
-      fis = new FileInputStream(mapFilename);
-      is = new ObjectInputStream(fis);
-      nodesMap = (Hashtable<Long, Pair<Long, Integer>>) is.readObject();
-      is.close();
-      fis.close();
+      nodesMap = NodeMap.read(mapFilename);
     } catch(IOException ex) {
       ex.printStackTrace();
       return false;
-    } catch(ClassNotFoundException ex) {
-      ex.printStackTrace();
-      return false;
     }
 
     return true;
@@ -251,37 +470,165 @@ public class SKIManager {
    * @param ref node Id.
    * @return requested R-tree node.
    */
-  public Node readNode(long ref, RandomAccessFile nodesFH) {
-    long offset = nodesMap.get(ref).getLeft();
-    byte[] nodeInBytes = null;
-    long startTimeNOD = 0, elaTimeNOD = 0; // DEBUG
-    
+  public Node readNode(long ref) {
     try {
-      startTimeNOD = System.nanoTime();
-      nodeInBytes = new byte[this.nodesMap.get(ref).getRight()];
-
-      if (nodesFH == null) {
-        RandomAccessFile nodesFile = new RandomAccessFile(nodesFilename, "r");
-        nodesFile.seek(offset);
-        nodesFile.read(nodeInBytes);
-        nodesFile.close();
-        nodesFile = null;
-      } else {
-        nodesFH.seek(offset);
-        nodesFH.read(nodeInBytes);
+      getNodesChannel();
+    } catch(IOException ex) {
+      ex.printStackTrace();
+      return null;
+    }
+
+    if (binaryNodes) {
+      NodeView view = (NodeView) readNode(ref, new NodeView(nodeFieldCount));
+      return (view == null)? null : view.toNode(nodeCapacity);
+    }
+
+    // Legacy file of serialized nodes.
+    NodeCache cache = nodeCache;
+
+    if (cache != null) {
+      Node node = (Node) cache.get(ref);
+
+      if (node != null) {
+        return node;
       }
+    }
+
+    long offset = nodesMap.getOffset(ref);
 
-      _io_reads++;
-      elaTimeNOD = System.nanoTime() - startTimeNOD;
+    if (offset < 0) {
+      return null;
+    }
+
+    byte[] nodeInBytes = new byte[nodesMap.getSize(ref)];
+
+    try {
+      readFully(ByteBuffer.wrap(nodeInBytes), offset);
+      _io_reads.incrementAndGet();
     } catch(IOException ex) {
       ex.printStackTrace();
       return null;
     }
 
     Node node = bytesToNode(nodeInBytes);
+
+    if (cache != null && node != null) {
+      cache.put(ref, node, nodeInBytes.length);
+    }
+
     return node;
   }
 
+  /**
+   * Reads an R-tree node for query traversal. With binary nodes files the
+   * given view is positioned on the node page and returned, so no objects
+   * are allocated; legacy files return a deserialized Node.
+   * @param ref node Id.
+   * @param view view created by createNodeView(), owned by the caller.
+   * @return requested R-tree node, or null on errors.
+   */
+  public NodeEntries readNode(long ref, NodeView view) {
+    long offset = nodesMap.getOffset(ref);
+
+    if (offset < 0) {
+      return null;
+    }
+
+    try {
+      getNodesChannel();
+
+      if (!binaryNodes) {
+        return readNode(ref);
+      }
+
+      MappedByteBuffer[] segments = nodeSegments;
+      NodeCache cache = nodeCache;
+      int pageSize = nodesMap.getSize(ref);
+
+      if (segments != null) {
+        // Page is in the memory-mapped file.
+        int segment = (int) (offset / NODE_SEGMENT_SIZE);
+        view.wrap(segments[segment], (int) (offset - segment * NODE_SEGMENT_SIZE));
+        _io_reads.incrementAndGet();
+      } else if (cache != null) {
+        ByteBuffer page = (ByteBuffer) cache.get(ref);
+
+        if (page == null) {
+          // Cached pages are only read with absolute gets, so they can be shared.
+          page = ByteBuffer.allocate(pageSize);
+          readFully(page, offset);
+          cache.put(ref, page, pageSize);
+          _io_reads.incrementAndGet();
+        }
+
+        view.wrap(page, 0);
+      } else {
+        ByteBuffer pageBuffer = view.getPageBuffer(pageSize);
+        readFully(pageBuffer, offset);
+        view.wrap(pageBuffer, 0);
+        _io_reads.incrementAndGet();
+      }
+    } catch(IOException ex) {
+      ex.printStackTrace();
+      return null;
+    }
+
+    return view;
+  } // public NodeEntries readNode()
+
+  /**
+   * Fills a buffer with positional reads of the nodes file, so concurrent
+   * queries can share the file.
+   * @param buffer buffer to fill.
+   * @param offset file offset.
+   * @throws IOException
+   */
+  private void readFully(ByteBuffer buffer, long offset) throws IOException {
+    FileChannel channel = getNodesChannel();
+    int start = buffer.position();
+    boolean interrupted = false;
+
+    try {
+      while (buffer.hasRemaining()) {
+        try {
+          if (channel.read(buffer, offset + buffer.position() - start) < 0) {
+            throw new java.io.EOFException("Truncated node at " + offset + " in " + nodesFilename);
+          }
+        } catch (ClosedChannelException ex) {
+          // A reader interrupted while reading closes the shared channel.
+          // Read on without the interrupt and restore it when done.
+          interrupted |= Thread.interrupted();
+          channel = reopenNodesChannel(channel, ex);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  } // private void readFully()
+
+  /**
+   * Replaces a nodes channel closed by an interrupted reader. The file is
+   * not reopened once clear() has closed it.
+   * @param closedChannel channel that was found closed.
+   * @param ex exception thrown by the closed channel.
+   * @return open channel on the nodes file.
+   * @throws IOException
+   */
+  private synchronized FileChannel reopenNodesChannel(FileChannel closedChannel,
+          ClosedChannelException ex) throws IOException {
+    if (nodesChannel == null) {
+      throw ex;
+    }
+
+    if (nodesChannel == closedChannel) {
+      nodesChannel = new RandomAccessFile(nodesFilename, "r").getChannel();
+    }
+
+    return nodesChannel;
+  } // private synchronized FileChannel reopenNodesChannel()
+
   /**
    *
    * @param ski
@@ -597,7 +944,7 @@ public class SKIManager {
 
     // Reload upper level nodes in depth-first order.
     for (int i = 0; i < node.size; i++) {
-      Node childNode = readNode(node.refs[i], null);
+      Node childNode = readNode(node.refs[i]);
       storage.writeNode(node.refs[i], childNode);
 
       if (node.level > 0) {
@@ -2,9 +2,7 @@ package sks.ski;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.Hashtable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -13,42 +11,53 @@ import sks.QueryTextPredicate;
 import sks.dataset.MalformedRecordException;
 import sks.dataset.RandomDatasetReader;
 import sks.dataset.Record;
-import sks.rtree.Node;
+import sks.rtree.NodeEntries;
+import sks.rtree.NodeView;
 import sks.rtree.Point;
+import sks.sif.SNQueryBitmap;
 
 /**
  *
  * @author acary001
  */
 public class SKIResultIterator extends ResultIterator {
-  // Uncompressed super node bitmaps computed along the query processing path.
-  private Hashtable<Integer, BitSet[]> bufferedQueryBitmaps = null;
+  // Super node bitmaps computed along the query processing path.
+  private Hashtable<Integer, SNQueryBitmap> bufferedQueryBitmaps = null;
   
   // Non-candidate super node intervals.
   private ArrayList<SNInterval> ncSNIntervals = null;
 
   private SpatialKeywordIndex ski;
-  private RandomAccessFile nodesFile;
+
+  // Shared by all queries on the category. Not closed by this iterator.
   private RandomDatasetReader datasetReader;
 
+  // Flyweight positioned on each node read from the nodes file.
+  private NodeView nodeView;
+
   public SKIResultIterator(Index index, Point point, double distance,
                    ArrayList<NumericParameter> numericParams,
                    ArrayList<QueryTextPredicate> queryTextPredicates,
                    boolean _debug_mode) throws FileNotFoundException, IOException {
     super(index, point, distance, numericParams, queryTextPredicates, _debug_mode);
 
-    bufferedQueryBitmaps = new Hashtable<Integer, BitSet[]>();
+    bufferedQueryBitmaps = new Hashtable<Integer, SNQueryBitmap>();
     ncSNIntervals = new ArrayList<SNInterval>();
     ski = (SpatialKeywordIndex) index;
-    nodesFile = new RandomAccessFile(ski.getSKIManager().getNodesFilename(), "r");
-    datasetReader = new RandomDatasetReader(ski.getDataset());
-
-    BitSet[] queryBitmap = null;
+    // Numeric predicates are also evaluated on the numeric bins of the SIF.
+    this.queryTextPredicates = ski.getSIF().planPredicates(
+            ski.getSIF().addNumericPredicates(queryTextPredicates, numericParams));
+    queryHasTextPredicates = (this.queryTextPredicates != null &&
+            this.queryTextPredicates.size() > 0);
+    datasetReader = ski.getSKIManager().getDatasetReader(ski.getDataset());
+    nodeView = ski.getSKIManager().createNodeView();
+
+    SNQueryBitmap queryBitmap = null;
     
     if (ski.getRtree().getRootNode().level < 2 && queryHasTextPredicates) {
       // Call isSubtreeCandidate() is needed for small R-trees, e.g. levels < 2.
       if (ski.getRtree().isSubtreeCandidate(0, (short) (ski.getRtree().getRootNode().level + 1),
-          ncSNIntervals, bufferedQueryBitmaps, queryTextPredicates, ski.getSIF())) {
+          ncSNIntervals, bufferedQueryBitmaps, this.queryTextPredicates, ski.getSIF())) {
         queryBitmap = getQueryBitmap(new SearchEntry(ski.getRtree().getRootNode().ref,
           ski.getRtree().getRootNode().getMinBoundingRect().getDistance(queryPoint), // distance
           false, // isNodeReference,
@@ -102,8 +111,8 @@ public class SKIResultIterator extends ResultIterator {
       //            rooted at <searchEntry.parentEntryId> on level=(searchEntry.nodeLevel + 1)
 
       // Retrieve candidate R-tree node.
-      //23-MAY-2011: Node node = ski.getSKIManager().readNode(searchEntry.ref, nodesFile);
-      Node node = null;
+      //23-MAY-2011: Node node = ski.getSKIManager().readNode(searchEntry.ref);
+      NodeEntries node = null;
 
       // Retrieve candidate R-tree node.
       if (ski.getRtree().getNodesInStorage().containsKey(searchEntry.ref)) {
@@ -111,7 +120,7 @@ public class SKIResultIterator extends ResultIterator {
         node = ski.getRtree().getNodesInStorage().get(searchEntry.ref);
       } else {
         // Read node from the persistent storage.
-        node = ski.getSKIManager().readNode(searchEntry.ref, nodesFile);
+        node = ski.getSKIManager().readNode(searchEntry.ref, nodeView);
       }
 
       if (node == null) {
@@ -119,7 +128,7 @@ public class SKIResultIterator extends ResultIterator {
       }
 
       long entryId = searchEntry.parentEntryId * ski.getRtree().getMaxCapacity();
-      BitSet[] queryBitmap = null;
+      SNQueryBitmap queryBitmap = null;
 
       if (queryHasTextPredicates) {
         queryBitmap = getQueryBitmap(searchEntry, bufferedQueryBitmaps,
@@ -159,6 +168,37 @@ public class SKIResultIterator extends ResultIterator {
     return record;
   } // public Record next()
 
+  /**
+   * Gets the next qualifying entry without reading its record.
+   * @return next result entry, or null if there are no more results.
+   */
+  SearchEntry nextEntry() {
+    if (nextResult == null && !hasNext()) {
+      return null;
+    }
+
+    SearchEntry entry = nextResult;
+    nextResult = null;
+    return entry;
+  }
+
+  /**
+   * Reads the record of a result entry returned by nextEntry().
+   * @param ref record reference.
+   * @return record, or null on errors.
+   */
+  Record recordAt(long ref) {
+    try {
+      return datasetReader.recordAt(ref);
+    } catch (IOException e) {
+      // IO error.
+    } catch (MalformedRecordException e) {
+      // This should not happen here. Only well-formed records are indexed.
+    }
+
+    return null;
+  }
+
   @Override
   public void remove() {
     throw new UnsupportedOperationException("Not supported yet.");
@@ -166,22 +206,7 @@ public class SKIResultIterator extends ResultIterator {
 
   @Override
   public void clear() {
-    if (nodesFile != null) {
-      try {
-        nodesFile.close();
-        nodesFile = null;
-      } catch (IOException ex) {
-        Logger.getLogger(SKIResultIterator.class.getName()).log(Level.SEVERE, null, ex);
-      }
-    }
-
-    if (datasetReader != null) {
-      try {
-        datasetReader.close();
-        datasetReader = null;
-      } catch (IOException ex) {
-        Logger.getLogger(SKIResultIterator.class.getName()).log(Level.SEVERE, null, ex);
-      }
-    }
+    // Files are owned by the SKIManager of the category.
+    datasetReader = null;
   } // public void clear()
 }
\ No newline at end of file
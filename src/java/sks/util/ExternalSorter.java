@@ -0,0 +1,389 @@
+/*
+ * ExternalSorter.java
+ */
+
+package sks.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import sks.Loader;
+
+/**
+ * External merge sort with bounded memory. Records are buffered until the
+ * memory budget of a run is used, then the run is sorted and spilled to a
+ * temporary file in a compact binary encoding. Runs are sorted and written
+ * by worker threads while the caller keeps adding records. sort() merges the
+ * runs with a k-way merge; records that fit in memory are never spilled.
+ *
+ * @author Ariel Cary
+ */
+public class ExternalSorter<T> {
+  static private final String RUN_SUFFIX = ".run";
+  static private final int MAX_FAN_IN = 128;
+  static private final int RUN_BUFFER_SIZE = Loader.IO_BUFFER_SIZE;
+
+  /**
+   * Binary encoding of records in run files.
+   */
+  public interface Codec<T> {
+    void write(DataOutput out, T record) throws IOException;
+    T read(DataInput in) throws IOException;
+
+    /**
+     * @return approximate heap size of a record in bytes.
+     */
+    int getMemorySize(T record);
+  }
+
+  /**
+   * Stream of sorted records.
+   */
+  public interface Reader<T> {
+    /**
+     * @return next record, or null at the end.
+     */
+    T read() throws IOException;
+    void close() throws IOException;
+  }
+
+  private final Codec<T> codec;
+  private final Comparator<? super T> comparator;
+  private final long runBytes;
+  private final int threads;
+  private final File tmpDir;
+  private final String prefix;
+  private ExecutorService executor = null;
+
+  private ArrayList<T> buffer = new ArrayList<T>();
+  private long bufferBytes = 0;
+  private ArrayList<File> runs = new ArrayList<File>();
+  private ArrayList<Long> runCounts = new ArrayList<Long>();
+  private LinkedList<Future<Object>> pendingRuns = new LinkedList<Future<Object>>();
+  private long count = 0;
+
+  /**
+   * @param codec record encoding.
+   * @param comparator sort order.
+   * @param memoryBytes memory budget for buffered records.
+   * @param threads number of threads sorting and writing runs.
+   * @param tmpDir directory of run files.
+   * @param prefix run file name prefix.
+   */
+  public ExternalSorter(Codec<T> codec, Comparator<? super T> comparator,
+          long memoryBytes, int threads, File tmpDir, String prefix) {
+    this.codec = codec;
+    this.comparator = comparator;
+    this.threads = Math.max(threads, 1);
+    // A run is being filled while the others are written.
+    this.runBytes = Math.max(memoryBytes / (this.threads + 1), 1024 * 1024);
+    this.tmpDir = tmpDir;
+    this.prefix = prefix;
+  }
+
+  /**
+   * Adds a record. Records must not be modified afterwards.
+   */
+  public void add(T record) throws IOException {
+    buffer.add(record);
+    bufferBytes += codec.getMemorySize(record);
+    count++;
+
+    if (bufferBytes >= runBytes) {
+      spill();
+    }
+  }
+
+  public long size() {
+    return count;
+  }
+
+  /**
+   * Sorts the buffered records into a new run file.
+   */
+  private void spill() throws IOException {
+    final ArrayList<T> records = buffer;
+    final File run = File.createTempFile(prefix, RUN_SUFFIX, tmpDir);
+    runs.add(run);
+    runCounts.add((long) records.size());
+    buffer = new ArrayList<T>(records.size());
+    bufferBytes = 0;
+
+    if (threads == 1) {
+      writeRun(records, run);
+      return;
+    }
+
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threads);
+    }
+
+    // Bound memory: at most threads runs are in flight.
+    while (pendingRuns.size() >= threads) {
+      waitFor(pendingRuns.removeFirst());
+    }
+
+    pendingRuns.add(executor.submit(new Callable<Object>() {
+      public Object call() throws IOException {
+        writeRun(records, run);
+        return null;
+      }
+    }));
+  } // private void spill()
+
+  private void writeRun(List<T> records, File run) throws IOException {
+    Collections.sort(records, comparator);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(run), RUN_BUFFER_SIZE));
+
+    try {
+      for (T record : records) {
+        codec.write(out, record);
+      }
+    } finally {
+      out.close();
+    }
+
+    records.clear();
+  } // private void writeRun()
+
+  private void waitFor(Future<Object> future) throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException ex) {
+      throw new IOException("Interrupted while writing a run: " + ex.getMessage());
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+
+      throw new IOException("Cannot write a run: " + ex.getCause());
+    }
+  } // private void waitFor()
+
+  /**
+   * Sorts all added records. No records may be added afterwards.
+   * @return reader of the sorted records; the caller closes it before
+   * closing the sorter.
+   * @throws IOException
+   */
+  public Reader<T> sort() throws IOException {
+    if (runs.isEmpty()) {
+      // Everything fits in memory.
+      Collections.sort(buffer, comparator);
+      final ArrayList<T> records = buffer;
+      buffer = new ArrayList<T>();
+
+      return new Reader<T>() {
+        private int next = 0;
+
+        public T read() {
+          return (next < records.size())? records.get(next++) : null;
+        }
+
+        public void close() {
+          records.clear();
+        }
+      };
+    } // if (runs.isEmpty())
+
+    if (!buffer.isEmpty()) {
+      spill();
+    }
+
+    while (!pendingRuns.isEmpty()) {
+      waitFor(pendingRuns.removeFirst());
+    }
+
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+
+    // Reduce the number of open runs.
+    while (runs.size() > MAX_FAN_IN) {
+      File run = File.createTempFile(prefix, RUN_SUFFIX, tmpDir);
+      MergeReader merger = new MergeReader(runs.subList(0, MAX_FAN_IN),
+              runCounts.subList(0, MAX_FAN_IN));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(run), RUN_BUFFER_SIZE));
+      long runCount = 0;
+
+      try {
+        T record;
+
+        while ((record = merger.read()) != null) {
+          codec.write(out, record);
+          runCount++;
+        }
+      } finally {
+        out.close();
+        merger.close();
+      }
+
+      for (int i = 0; i < MAX_FAN_IN; i++) {
+        runs.remove(0).delete();
+        runCounts.remove(0);
+      }
+
+      runs.add(run);
+      runCounts.add(runCount);
+    } // while (runs.size() > MAX_FAN_IN)
+
+    return new MergeReader(runs, runCounts);
+  } // public Reader<T> sort()
+
+  /**
+   * Stops worker threads and deletes run files. Runs being written are
+   * finished before their files are deleted.
+   */
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+
+      executor = null;
+    }
+
+    pendingRuns.clear();
+
+    for (File run : runs) {
+      run.delete();
+    }
+
+    runs.clear();
+    runCounts.clear();
+    buffer.clear();
+  } // public void close()
+
+  /**
+   * Open run and its current record.
+   */
+  private class RunCursor {
+    DataInputStream in;
+    long remaining;
+    T head;
+
+    RunCursor(File run, long remaining) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(
+              new FileInputStream(run), RUN_BUFFER_SIZE));
+      this.remaining = remaining;
+    }
+
+    boolean advance() throws IOException {
+      if (remaining == 0) {
+        head = null;
+        return false;
+      }
+
+      head = codec.read(in);
+      remaining--;
+      return true;
+    }
+  } // private class RunCursor
+
+  /**
+   * k-way merge of sorted runs.
+   */
+  private class MergeReader implements Reader<T> {
+    private PriorityQueue<RunCursor> heap;
+    private ArrayList<RunCursor> cursors = new ArrayList<RunCursor>();
+
+    MergeReader(List<File> runFiles, List<Long> counts) throws IOException {
+      heap = new PriorityQueue<RunCursor>(Math.max(runFiles.size(), 1),
+              new Comparator<RunCursor>() {
+        public int compare(RunCursor c1, RunCursor c2) {
+          return comparator.compare(c1.head, c2.head);
+        }
+      });
+
+      try {
+        for (int i = 0; i < runFiles.size(); i++) {
+          RunCursor cursor = new RunCursor(runFiles.get(i), counts.get(i));
+          cursors.add(cursor);
+
+          if (cursor.advance()) {
+            heap.add(cursor);
+          }
+        }
+      } catch (IOException ex) {
+        close();
+        throw ex;
+      }
+    } // MergeReader()
+
+    public T read() throws IOException {
+      RunCursor cursor = heap.poll();
+
+      if (cursor == null) {
+        return null;
+      }
+
+      T record = cursor.head;
+
+      if (cursor.advance()) {
+        heap.add(cursor);
+      }
+
+      return record;
+    }
+
+    public void close() throws IOException {
+      for (RunCursor cursor : cursors) {
+        cursor.in.close();
+      }
+
+      cursors.clear();
+      heap.clear();
+    }
+  } // private class MergeReader
+
+  /**
+   * Writes a non-negative long in 7-bit groups, low bits first.
+   */
+  static public void writeVarLong(DataOutput out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+
+    out.writeByte((int) value);
+  }
+
+  static public long readVarLong(DataInput in) throws IOException {
+    long value = 0;
+
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+} // public class ExternalSorter
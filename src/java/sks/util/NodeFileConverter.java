@@ -0,0 +1,51 @@
+package sks.util;
+
+import sks.ski.SKIManager;
+import sks.ski.SpatialKeywordIndex;
+
+/**
+ * Converts the R-tree nodes file (.rtn) of existing indexes from serialized
+ * Node objects into the binary page format read by NodeView. The node map
+ * (.rtm) is rewritten accordingly. Categories must be unloaded first.
+ *
+ * @author Ariel Cary
+ */
+public class NodeFileConverter {
+  public static void main(String[] args) {
+    if (args.length < 2) {
+      System.err.println("Usage: NodeFileConverter <indexPath> <category> [<category> ...]");
+      System.exit(1);
+    }
+
+    String indexPath = args[0];
+
+    if (!indexPath.endsWith("/")) {
+      indexPath += "/";
+    }
+
+    int exitValue = 0;
+
+    for (int i = 1; i < args.length; i++) {
+      String category = args[i];
+      SKIManager skiManager = new SKIManager(indexPath, indexPath, category, false);
+      SpatialKeywordIndex ski = skiManager.readSKI();
+
+      if (ski == null) {
+        System.err.println(category + ": cannot read index.");
+        exitValue = 2;
+        continue;
+      }
+
+      if (skiManager.convertNodesFile(ski.getRtree())) {
+        System.out.println(category + ": nodes file converted.");
+      } else {
+        System.err.println(category + ": conversion failed.");
+        exitValue = 2;
+      }
+
+      ski.clear();
+    } // for (int i = 1; i < args.length; i++)
+
+    System.exit(exitValue);
+  } // public static void main()
+}
@@ -0,0 +1,149 @@
+package sks.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import sks.dataset.Dataset;
+import sks.dataset.DatasetReader;
+import sks.dataset.MalformedRecordException;
+import sks.dataset.RandomDatasetReader;
+import sks.dataset.Record;
+
+/**
+ * Microbenchmark of random record fetches: RandomAccessFile.seek/readLine
+ * (the former RandomDatasetReader) against positional channel reads and
+ * memory-mapped reads of RandomDatasetReader.
+ * <p>
+ * Usage: RecordReaderBenchmark dataFile headerFile [fetches] [rounds]
+ *
+ * @author Ariel Cary
+ */
+public class RecordReaderBenchmark {
+  /**
+   * Collects the offsets of well-formed records.
+   * @param dataset input dataset.
+   * @param maxRecords maximum number of offsets to collect.
+   * @return record offsets.
+   */
+  private static long[] getRecordOffsets(Dataset dataset, int maxRecords) throws IOException {
+    DatasetReader reader = new DatasetReader(dataset);
+    long[] offsets = new long[maxRecords];
+    int count = 0;
+
+    try {
+      while (count < maxRecords) {
+        try {
+          Record rec = reader.readRecord(false, false);
+
+          if (rec == null) {
+            break;
+          }
+
+          offsets[count++] = rec.getReference();
+        } catch (MalformedRecordException ex) {
+          // Skip record.
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    long[] result = new long[count];
+    System.arraycopy(offsets, 0, result, 0, count);
+    return result;
+  } // private static long[] getRecordOffsets()
+
+  /**
+   * Reads lines with one read call per byte, as RandomDatasetReader used to.
+   * @return sum of line lengths.
+   */
+  private static long readLegacy(File dataFile, long[] offsets) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+    long bytes = 0;
+
+    try {
+      for (long offset : offsets) {
+        file.seek(offset);
+        bytes += file.readLine().length();
+      }
+    } finally {
+      file.close();
+    }
+
+    return bytes;
+  }
+
+  /**
+   * Reads lines with RandomDatasetReader.
+   * @return sum of line lengths.
+   */
+  private static long readRandom(RandomDatasetReader reader, long[] offsets) throws IOException {
+    long bytes = 0;
+
+    for (long offset : offsets) {
+      bytes += reader.lineAt(offset).length();
+    }
+
+    return bytes;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage: RecordReaderBenchmark dataFile headerFile [fetches] [rounds]");
+      return;
+    }
+
+    Dataset dataset = new Dataset(new File(args[0]), new File(args[1]));
+    int fetches = (args.length > 2)? Integer.parseInt(args[2]) : 100000;
+    int rounds = (args.length > 3)? Integer.parseInt(args[3]) : 5;
+
+    // Random access pattern over the first records of the file.
+    long[] recordOffsets = getRecordOffsets(dataset, 1000000);
+
+    if (recordOffsets.length == 0) {
+      System.out.println("No records in " + args[0]);
+      return;
+    }
+
+    Random random = new Random(1);
+    long[] offsets = new long[fetches];
+
+    for (int i = 0; i < fetches; i++) {
+      offsets[i] = recordOffsets[random.nextInt(recordOffsets.length)];
+    }
+
+    RandomDatasetReader channelReader = new RandomDatasetReader(dataset, false);
+    RandomDatasetReader mappedReader = new RandomDatasetReader(dataset, true);
+
+    try {
+      System.out.println("round\treadLine(ms)\tpread(ms)\tmmap(ms)\tbytes");
+
+      for (int round = 1; round <= rounds; round++) {
+        long start = System.nanoTime();
+        long legacyBytes = readLegacy(dataset.getFile(), offsets);
+        long legacyTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long channelBytes = readRandom(channelReader, offsets);
+        long channelTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long mappedBytes = readRandom(mappedReader, offsets);
+        long mappedTime = System.nanoTime() - start;
+
+        if (legacyBytes != channelBytes || legacyBytes != mappedBytes) {
+          System.out.println("Readers disagree: " + legacyBytes + ", " +
+                  channelBytes + ", " + mappedBytes);
+          return;
+        }
+
+        System.out.println(round + "\t" + (legacyTime / 1000000) + "\t" +
+                (channelTime / 1000000) + "\t" + (mappedTime / 1000000) + "\t" + legacyBytes);
+      } // for (int round = 1; round <= rounds; round++)
+    } finally {
+      channelReader.close();
+      mappedReader.close();
+    }
+  } // public static void main()
+}
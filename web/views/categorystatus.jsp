@@ -13,5 +13,7 @@
 		<h2>Load status for category <span class="category">${requestScope['category']}</span></h2>
 		<h4>Status: Loaded</h4>
 		<h4>Last updated on: ${requestScope['updatedOn']}</h4>
+		<h4>Node cache: ${empty requestScope['nodeCache'] ? 'disabled' : requestScope['nodeCache']}</h4>
+		<h4>Posting cache: ${empty requestScope['postingCache'] ? 'disabled' : requestScope['postingCache']}</h4>
 	</body>
 </html>